@@ -25,11 +25,13 @@ import org.opendatakit.aggregate.odktables.rest.entity.Column;
 import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
 import org.opendatakit.services.database.AndroidConnectFactory;
 import org.opendatakit.database.DatabaseConstants;
+import org.opendatakit.database.LocalKeyValueStoreConstants;
 import org.opendatakit.services.database.OdkConnectionFactorySingleton;
 import org.opendatakit.services.database.OdkConnectionInterface;
 import org.opendatakit.database.data.*;
 import org.opendatakit.database.utilities.CursorUtils;
 import org.opendatakit.database.utilities.KeyValueStoreUtils;
+import org.opendatakit.services.database.utlities.FileContentHashUtils;
 import org.opendatakit.services.database.utlities.ODKDatabaseImplUtils;
 import org.opendatakit.exception.ActionNotAuthorizedException;
 import org.opendatakit.logging.WebLogger;
@@ -41,6 +43,7 @@ import org.opendatakit.utilities.ODKFileUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.*;
@@ -3305,6 +3308,164 @@ public abstract class AbstractODKDatabaseUtilsTest extends AndroidTestCase {
     ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
   }
 
+  /*
+   * Test that the file content hash cache returns the hash of the current
+   * file content and is refreshed when the file changes
+   */
+  public void testFileContentHashCache_ExpectPass() throws IOException {
+    FileContentHashUtils hashUtils = new FileContentHashUtils();
+    File folder = new File(ODKFileUtils.getOutputFolder(getAppName()), "hashCacheTest");
+    File file = new File(folder, "content.txt");
+    folder.mkdirs();
+
+    try {
+      writeTestFile(file, "first version of the content");
+      file.setLastModified(System.currentTimeMillis() - 10000L);
+      String md5 = ODKFileUtils.getMd5Hash(getAppName(), file);
+      assertEquals(md5, hashUtils.getMd5Hash(db, getAppName(), file));
+      // cached value
+      assertEquals(md5, hashUtils.getMd5Hash(db, getAppName(), file));
+
+      // a different length and modification time invalidates the cached value
+      writeTestFile(file, "second, longer version of the content");
+      file.setLastModified(System.currentTimeMillis() - 5000L);
+      String md5Changed = ODKFileUtils.getMd5Hash(getAppName(), file);
+      assertFalse(md5.equals(md5Changed));
+      assertEquals(md5Changed, hashUtils.getMd5Hash(db, getAppName(), file));
+
+      // the warm-up pass finds everything already cached
+      assertEquals(0, hashUtils.warmUp(db, getAppName(), folder));
+      hashUtils.invalidate(db, getAppName(), file);
+      assertEquals(1, hashUtils.warmUp(db, getAppName(), folder));
+      assertEquals(0, hashUtils.warmUp(db, getAppName(), folder));
+
+      // a file modified within the timestamp resolution is hashed but not cached
+      writeTestFile(file, "third version of the content, just written");
+      String md5Racy = ODKFileUtils.getMd5Hash(getAppName(), file);
+      assertEquals(md5Racy, hashUtils.getMd5Hash(db, getAppName(), file));
+      assertEquals(1, hashUtils.warmUp(db, getAppName(), folder));
+
+      // unless the writer records the hash it verified
+      hashUtils.putMd5Hash(db, getAppName(), file, md5Racy);
+      assertEquals(0, hashUtils.warmUp(db, getAppName(), folder));
+      assertEquals(md5Racy, hashUtils.getMd5Hash(db, getAppName(), file));
+
+      // and drops entries for files that no longer exist
+      file.delete();
+      hashUtils.warmUp(db, getAppName(), folder);
+      Cursor c = db.rawQuery("SELECT COUNT(*) FROM " +
+          FileContentHashUtils.FILE_CONTENT_HASHES_TABLE_NAME + " WHERE " +
+          FileContentHashUtils.PATH + "=?",
+          new Object[] { ODKFileUtils.asRelativePath(getAppName(), file) });
+      assertNotNull(c);
+      assertTrue(c.moveToFirst());
+      assertEquals(0, c.getInt(0));
+      c.close();
+    } finally {
+      file.delete();
+      folder.delete();
+    }
+  }
+
+  /*
+   * Test that cached table security settings follow changes to the table metadata,
+   * including changes that are rolled back
+   */
+  public void testTableMetadataCacheInvalidation_ExpectPass() {
+    String tableId = testTable;
+    List<Column> columns = new ArrayList<Column>();
+    columns.add(new Column("col1", "col1", "string", "[]"));
+    ODKDatabaseImplUtils.get().createOrOpenTableWithColumns(db, tableId, columns);
+
+    try {
+      // unverified users can create rows by default
+      assertTrue(ODKDatabaseImplUtils.get().getAccessContext(db, tableId, activeUser, null)
+          .canCreateRow);
+      // cached value
+      assertTrue(ODKDatabaseImplUtils.get().getAccessContext(db, tableId, activeUser, null)
+          .canCreateRow);
+
+      ODKDatabaseImplUtils.get().replaceTableMetadata(db,
+          buildUnverifiedUserCanCreateEntry(tableId, false));
+      assertFalse(ODKDatabaseImplUtils.get().getAccessContext(db, tableId, activeUser, null)
+          .canCreateRow);
+
+      // a rolled-back change is not retained
+      db.beginTransactionNonExclusive();
+      try {
+        ODKDatabaseImplUtils.get().replaceTableMetadata(db,
+            buildUnverifiedUserCanCreateEntry(tableId, true));
+        assertTrue(ODKDatabaseImplUtils.get().getAccessContext(db, tableId, activeUser, null)
+            .canCreateRow);
+      } finally {
+        db.endTransaction();
+      }
+      assertFalse(ODKDatabaseImplUtils.get().getAccessContext(db, tableId, activeUser, null)
+          .canCreateRow);
+    } finally {
+      ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+    }
+  }
+
+  /*
+   * Test that the uploads table tracks the instances in a data table
+   */
+  public void testUploadsTableMaintainedIncrementally_ExpectPass()
+      throws ActionNotAuthorizedException {
+    String tableId = testTable;
+    String testCol = "testColumn";
+    List<Column> columns = new ArrayList<Column>();
+    columns.add(new Column(testCol, testCol, ElementDataType.integer.name(), "[]"));
+    OrderedColumns orderedColumns = ODKDatabaseImplUtils.get()
+        .createOrOpenTableWithColumns(db, tableId, columns);
+
+    try {
+      // triggers are created along with the table
+      assertFalse(ODKDatabaseImplUtils.get().ensureUploadsTriggers(db, tableId));
+      assertEquals(0, countUploads(tableId));
+
+      ContentValues cvValues = new ContentValues();
+      cvValues.put(testCol, 5);
+      String uuid = UUID.randomUUID().toString();
+      ODKDatabaseImplUtils.get().insertRowWithId(db, tableId, orderedColumns, cvValues, uuid,
+          activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+      assertEquals(1, countUploads(tableId));
+
+      ODKDatabaseImplUtils.get().deleteRowWithId(db, tableId, uuid,
+          activeUser, RoleConsts.ADMIN_ROLES_LIST);
+      assertEquals(0, countUploads(tableId));
+    } finally {
+      ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+    }
+  }
+
+  private int countUploads(String tableId) {
+    Cursor c = db.rawQuery("SELECT COUNT(*) FROM " + DatabaseConstants.UPLOADS_TABLE_NAME +
+        " WHERE " + InstanceColumns.DATA_TABLE_TABLE_ID + "=?", new Object[] { tableId });
+    try {
+      assertTrue(c.moveToFirst());
+      return c.getInt(0);
+    } finally {
+      c.close();
+    }
+  }
+
+  private KeyValueStoreEntry buildUnverifiedUserCanCreateEntry(String tableId, boolean value) {
+    return KeyValueStoreUtils.buildEntry(tableId, KeyValueStoreConstants.PARTITION_TABLE,
+        LocalKeyValueStoreConstants.TableSecurity.ASPECT,
+        LocalKeyValueStoreConstants.TableSecurity.KEY_UNVERIFIED_USER_CAN_CREATE,
+        ElementDataType.bool, Boolean.toString(value));
+  }
+
+  private void writeTestFile(File file, String content) throws IOException {
+    FileOutputStream fos = new FileOutputStream(file);
+    try {
+      fos.write(content.getBytes(CharEncoding.UTF_8));
+    } finally {
+      fos.close();
+    }
+  }
+
   /*
    * Test delete server conflict row with id
    * Place a row in conflict and then delete it
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.iki.elonen;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the contents of small, frequently-served files (the framework JS, CSS
+ * and HTML under each app's system and config folders) so that page
+ * navigations are served from memory rather than re-read from external storage.
+ * <p/>
+ * Entries are keyed by canonical path and are valid only while the file's
+ * lastModified and length match those it had when it was read. The total size
+ * of the held contents is limited to a byte budget, evicting the
+ * least-recently-used files first.
+ * <p/>
+ * Thread-safe; requests are served on multiple threads.
+ */
+public final class HotAssetCache {
+
+  public static final long DEFAULT_MAX_BYTES = 8L * 1024L * 1024L;
+  public static final long DEFAULT_MAX_ENTRY_BYTES = 256L * 1024L;
+
+  private static final class Entry {
+    final byte[] data;
+    final long lastModified;
+
+    Entry(byte[] data, long lastModified) {
+      this.data = data;
+      this.lastModified = lastModified;
+    }
+  }
+
+  // access-ordered, so the eldest entry is the least-recently-used file
+  private final LinkedHashMap<String, Entry> entries =
+      new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+  private long maxBytes;
+  private long maxEntryBytes;
+  private long totalBytes = 0L;
+
+  private long hitCount = 0L;
+  private long missCount = 0L;
+  private long staleCount = 0L;
+  private long evictionCount = 0L;
+
+  public HotAssetCache() {
+    this(DEFAULT_MAX_BYTES, DEFAULT_MAX_ENTRY_BYTES);
+  }
+
+  /**
+   * @param maxBytes      total size of the file contents that may be held; 0 disables the cache
+   * @param maxEntryBytes size of the largest file that is held
+   */
+  public HotAssetCache(long maxBytes, long maxEntryBytes) {
+    setLimits(maxBytes, maxEntryBytes);
+  }
+
+  /**
+   * Change the byte budget, evicting files as needed.
+   *
+   * @param maxBytes      total size of the file contents that may be held; 0 disables the cache
+   * @param maxEntryBytes size of the largest file that is held
+   */
+  public synchronized void setLimits(long maxBytes, long maxEntryBytes) {
+    if (maxBytes < 0L || maxEntryBytes < 0L) {
+      throw new IllegalArgumentException("maxBytes and maxEntryBytes must not be negative");
+    }
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = Math.min(maxEntryBytes, Integer.MAX_VALUE);
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, Entry> e = it.next();
+      if (e.getValue().data.length > this.maxEntryBytes) {
+        it.remove();
+        totalBytes -= e.getValue().data.length;
+      }
+    }
+    evictToBudget();
+  }
+
+  /**
+   * @param length
+   * @return true if a file of this length would be held
+   */
+  public synchronized boolean isCacheable(long length) {
+    return length <= maxEntryBytes && length <= maxBytes;
+  }
+
+  /**
+   * Retrieve the contents of a file.
+   *
+   * @param canonicalPath
+   * @param lastModified  the file's current lastModified
+   * @param length        the file's current length
+   * @return the contents (do not modify) or null if they must be read from the file.
+   */
+  public synchronized byte[] get(String canonicalPath, long lastModified, long length) {
+    Entry e = entries.get(canonicalPath);
+    if (e == null) {
+      ++missCount;
+      return null;
+    }
+    if (e.lastModified != lastModified || e.data.length != length) {
+      // the file was modified since it was read
+      entries.remove(canonicalPath);
+      totalBytes -= e.data.length;
+      ++staleCount;
+      ++missCount;
+      return null;
+    }
+    ++hitCount;
+    return e.data;
+  }
+
+  /**
+   * Hold the contents of a file, if it is small enough.
+   *
+   * @param canonicalPath
+   * @param lastModified  the file's lastModified before its contents were read
+   * @param data          the contents; must not be modified afterward
+   */
+  public synchronized void put(String canonicalPath, long lastModified, byte[] data) {
+    if (!isCacheable(data.length)) {
+      return;
+    }
+    Entry old = entries.remove(canonicalPath);
+    if (old != null) {
+      totalBytes -= old.data.length;
+    }
+    entries.put(canonicalPath, new Entry(data, lastModified));
+    totalBytes += data.length;
+    evictToBudget();
+  }
+
+  private void evictToBudget() {
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (totalBytes > maxBytes && it.hasNext()) {
+      Map.Entry<String, Entry> e = it.next();
+      it.remove();
+      totalBytes -= e.getValue().data.length;
+      ++evictionCount;
+    }
+  }
+
+  /**
+   * Drop everything.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    totalBytes = 0L;
+  }
+
+  public synchronized int getFileCount() {
+    return entries.size();
+  }
+
+  public synchronized long getTotalBytes() {
+    return totalBytes;
+  }
+
+  public synchronized long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  public synchronized void dump(StringBuilder b) {
+    b.append("HotAssetCache: ").append(entries.size()).append(" files, ")
+        .append(totalBytes).append(" of ").append(maxBytes).append(" bytes")
+        .append(", hits=").append(hitCount)
+        .append(", misses=").append(missCount)
+        .append(" (stale=").append(staleCount).append(")")
+        .append(", evictions=").append(evictionCount);
+  }
+}
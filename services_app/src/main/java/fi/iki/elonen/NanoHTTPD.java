@@ -48,6 +48,7 @@ import java.io.Closeable;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
@@ -67,7 +68,9 @@ import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.security.KeyStore;
 import java.text.SimpleDateFormat;
@@ -86,6 +89,15 @@ import java.util.Properties;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -308,11 +320,15 @@ public abstract class NanoHTTPD {
         @Override
         public void run() {
             OutputStream outputStream = null;
+            HTTPSession session = null;
             try {
                 outputStream = this.acceptSocket.getOutputStream();
                 TempFileManager tempFileManager = NanoHTTPD.this.tempFileManagerFactory.create();
-                HTTPSession session = new HTTPSession(tempFileManager, this.inputStream, outputStream, this.acceptSocket.getInetAddress());
+                session = new HTTPSession(tempFileManager, this.inputStream, outputStream, this.acceptSocket.getInetAddress());
                 while (!this.acceptSocket.isClosed()) {
+                    if (!session.awaitRequest(this.acceptSocket)) {
+                        break;
+                    }
                     session.execute();
                 }
             } catch (Exception e) {
@@ -327,6 +343,9 @@ public abstract class NanoHTTPD {
                     NanoHTTPD.LOG.log(Level.SEVERE, "Communication with the client broken, or an bug in the handler code", e);
                 }
             } finally {
+                if (session != null) {
+                    session.release();
+                }
                 safeClose(outputStream);
                 safeClose(this.inputStream);
                 safeClose(this.acceptSocket);
@@ -501,6 +520,158 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * Strategy that runs client connections on a bounded pool of worker
+     * threads rather than spawning a new thread per connection.
+     * <p/>
+     * <p>
+     * Connections that arrive while all workers are busy wait in a bounded
+     * queue. If that queue is full, the connection is refused (closed
+     * immediately). While connections are waiting, workers do not hold
+     * keep-alive connections open after the current response (see
+     * {@link NanoHTTPD#allowKeepAlive(int)}), and a worker waiting on an idle
+     * connection closes it within {@link NanoHTTPD#IDLE_POLL_INTERVAL} (see
+     * {@link NanoHTTPD.HTTPSession#awaitRequest(Socket)}).
+     * </p>
+     */
+    public static class BoundedThreadPoolAsyncRunner implements AsyncRunner {
+
+        public static final int DEFAULT_MAX_WORKERS = 8;
+
+        public static final int DEFAULT_MAX_QUEUED = 64;
+
+        /**
+         * How long an idle worker thread is kept (in milliseconds)
+         */
+        private static final long IDLE_WORKER_TIMEOUT = 30000L;
+
+        private final AtomicLong requestCount = new AtomicLong(0L);
+
+        private final AtomicLong rejectedCount = new AtomicLong(0L);
+
+        private final AtomicInteger activeCount = new AtomicInteger(0);
+
+        private final List<ClientHandler> running = Collections.synchronizedList(new ArrayList<NanoHTTPD.ClientHandler>());
+
+        private final ThreadPoolExecutor executor;
+
+        public BoundedThreadPoolAsyncRunner() {
+            this(DEFAULT_MAX_WORKERS, DEFAULT_MAX_QUEUED);
+        }
+
+        /**
+         * @param maxWorkers
+         *            number of connections serviced concurrently
+         * @param maxQueued
+         *            number of connections that may wait for a worker
+         */
+        public BoundedThreadPoolAsyncRunner(int maxWorkers, int maxQueued) {
+            if (maxWorkers < 1 || maxQueued < 0) {
+                throw new IllegalArgumentException("maxWorkers must be positive and maxQueued non-negative");
+            }
+            BlockingQueue<Runnable> queue = (maxQueued == 0) ? new SynchronousQueue<Runnable>() : new ArrayBlockingQueue<Runnable>(maxQueued);
+            this.executor = new ThreadPoolExecutor(maxWorkers, maxWorkers, IDLE_WORKER_TIMEOUT, TimeUnit.MILLISECONDS, queue, new ThreadFactory() {
+
+                private final AtomicInteger threadCount = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread t = new Thread(r);
+                    t.setDaemon(true);
+                    t.setName("NanoHttpd Request Processor (#" + this.threadCount.incrementAndGet() + ")");
+                    return t;
+                }
+            });
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+
+        /**
+         * @return a list with currently running or waiting clients.
+         */
+        public List<ClientHandler> getRunning() {
+            return this.running;
+        }
+
+        /**
+         * @return the number of connections being serviced by a worker
+         */
+        public int getActiveConnectionCount() {
+            return this.activeCount.get();
+        }
+
+        /**
+         * @return the number of connections waiting for a worker
+         */
+        public int getQueuedConnectionCount() {
+            return this.executor.getQueue().size();
+        }
+
+        /**
+         * @return the number of connections accepted since the runner was created
+         */
+        public long getRequestCount() {
+            return this.requestCount.get();
+        }
+
+        /**
+         * @return the number of connections refused because the queue was full
+         */
+        public long getRejectedConnectionCount() {
+            return this.rejectedCount.get();
+        }
+
+        public int getMaxWorkers() {
+            return this.executor.getMaximumPoolSize();
+        }
+
+        @Override
+        public void closeAll() {
+            // copy of the list for concurrency
+            for (ClientHandler clientHandler : new ArrayList<ClientHandler>(this.running)) {
+                clientHandler.close();
+            }
+        }
+
+        @Override
+        public void closed(ClientHandler clientHandler) {
+            this.running.remove(clientHandler);
+        }
+
+        @Override
+        public void exec(final ClientHandler clientHandler) {
+            this.requestCount.incrementAndGet();
+            this.running.add(clientHandler);
+            try {
+                this.executor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        BoundedThreadPoolAsyncRunner.this.activeCount.incrementAndGet();
+                        try {
+                            clientHandler.run();
+                        } finally {
+                            BoundedThreadPoolAsyncRunner.this.activeCount.decrementAndGet();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                this.rejectedCount.incrementAndGet();
+                this.running.remove(clientHandler);
+                clientHandler.close();
+                NanoHTTPD.LOG.log(Level.WARNING, "Refused connection -- all workers busy and queue full");
+            }
+        }
+
+        /**
+         * Close all connections and stop the worker threads.
+         * The runner cannot be used afterward.
+         */
+        public void shutdown() {
+            closeAll();
+            this.executor.shutdownNow();
+        }
+    }
+
     /**
      * Default strategy for creating and cleaning up temporary files.
      * <p/>
@@ -733,6 +904,12 @@ public abstract class NanoHTTPD {
 
         private final BufferedInputStream inputStream;
 
+        /**
+         * Holds the request line and headers. Taken from the server's pool
+         * and returned to it when the connection closes.
+         */
+        private byte[] headerBuffer;
+
         private int splitbyte;
 
         private int rlen;
@@ -755,10 +932,15 @@ public abstract class NanoHTTPD {
 
         private String protocolVersion;
 
+        // number of requests read on this connection
+        private int requestsServed = 0;
+
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream) {
             this.tempFileManager = tempFileManager;
             this.inputStream = new BufferedInputStream(inputStream, HTTPSession.BUFSIZE);
             this.outputStream = outputStream;
+            this.headerBuffer = acquireHeaderBuffer();
+            this.parms = new HashMap<String, List<String>>();
         }
 
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream, InetAddress inetAddress) {
@@ -768,64 +950,160 @@ public abstract class NanoHTTPD {
             this.remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress().toString();
             this.remoteHostname = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "localhost" : inetAddress.getHostName().toString();
             this.headers = new HashMap<String, String>();
+            this.headerBuffer = acquireHeaderBuffer();
+            this.parms = new HashMap<String, List<String>>();
         }
 
         /**
-         * Decodes the sent headers and loads the data into Key/value pairs
+         * Wait for the next request to start arriving on the connection.
+         * Rather than blocking in read() for the whole socket timeout, the
+         * wait polls every {@link NanoHTTPD#IDLE_POLL_INTERVAL} so that an
+         * idle keep-alive (or pre-opened) connection gives up its worker as
+         * soon as other connections are waiting for one.
+         * 
+         * @param socket
+         *            the connection's socket; its read timeout bounds the
+         *            total wait and is restored on return
+         * @return true if a request has started to arrive; false if the
+         *         connection should be closed
          */
-        private void decodeHeader(BufferedReader in, Map<String, String> pre, Map<String, List<String>> parms, Map<String, String> headers) throws ResponseException {
+        boolean awaitRequest(Socket socket) throws IOException {
+            int timeout = socket.getSoTimeout();
+            long deadline = System.currentTimeMillis() + timeout;
             try {
-                // Read the request line
-                String inLine = in.readLine();
-                if (inLine == null) {
-                    return;
+                while (true) {
+                    int poll = IDLE_POLL_INTERVAL;
+                    if (timeout > 0) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        poll = (int) Math.min(poll, remaining);
+                    }
+                    socket.setSoTimeout(poll);
+                    try {
+                        // leave the byte for execute()
+                        this.inputStream.mark(1);
+                        if (this.inputStream.read() == -1) {
+                            return false;
+                        }
+                        this.inputStream.reset();
+                        return true;
+                    } catch (SocketTimeoutException e) {
+                        if (hasQueuedConnections()) {
+                            return false;
+                        }
+                    }
                 }
-
-                StringTokenizer st = new StringTokenizer(inLine);
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+            } finally {
+                if (!socket.isClosed()) {
+                    socket.setSoTimeout(timeout);
                 }
+            }
+        }
 
-                pre.put("method", st.nextToken());
+        /**
+         * Return the header buffer to the server's pool. Call once the
+         * connection is closed.
+         */
+        void release() {
+            if (this.headerBuffer != null) {
+                releaseHeaderBuffer(this.headerBuffer);
+                this.headerBuffer = null;
+            }
+        }
 
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
-                }
+        /**
+         * Decodes the request line and headers directly from the header bytes
+         * and loads them into Key/value pairs. Well-known header names map to
+         * shared String constants, so only the URI and the header values are
+         * materialized as Strings.
+         */
+        private void decodeHeader(byte[] buf, int len, Map<String, List<String>> parms, Map<String, String> headers) throws ResponseException {
+            // Read the request line
+            int lineEnd = findLineEnd(buf, 0, len);
+            int next = nextLineStart(buf, lineEnd, len);
+            if (lineEnd == 0 && next == 0) {
+                return;
+            }
+
+            int pos = skipWhitespace(buf, 0, lineEnd);
+            if (pos == lineEnd) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+            }
+            int methodStart = pos;
+            int methodEnd = findTokenEnd(buf, pos, lineEnd);
 
-                String uri = st.nextToken();
+            pos = skipWhitespace(buf, methodEnd, lineEnd);
+            if (pos == lineEnd) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+            }
+            int uriEnd = findTokenEnd(buf, pos, lineEnd);
+            String uri = new String(buf, pos, uriEnd - pos, UTF8);
 
-                // Decode parameters from the URI
-                int qmi = uri.indexOf('?');
-                if (qmi >= 0) {
-                    decodeParms(uri.substring(qmi + 1), parms);
-                    uri = decodePercent(uri.substring(0, qmi));
-                } else {
-                    uri = decodePercent(uri);
-                }
+            // Decode parameters from the URI
+            int qmi = uri.indexOf('?');
+            if (qmi >= 0) {
+                decodeParms(uri.substring(qmi + 1), parms);
+                uri = decodePercent(uri.substring(0, qmi));
+            } else {
+                uri = decodePercent(uri);
+            }
 
-                // If there's another token, its protocol version,
-                // followed by HTTP headers.
-                // NOTE: this now forces header names lower case since they are
-                // case insensitive and vary by client.
-                if (st.hasMoreTokens()) {
-                    protocolVersion = st.nextToken();
-                } else {
-                    protocolVersion = "HTTP/1.1";
-                    NanoHTTPD.LOG.log(Level.FINE, "no protocol version specified, strange. Assuming HTTP/1.1.");
+            this.method = lookupMethod(buf, methodStart, methodEnd);
+            if (this.method == null) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. HTTP verb " + new String(buf, methodStart, methodEnd - methodStart, UTF8) + " unhandled.");
+            }
+
+            // If there's another token, its protocol version,
+            // followed by HTTP headers.
+            // NOTE: this now forces header names lower case since they are
+            // case insensitive and vary by client.
+            pos = skipWhitespace(buf, uriEnd, lineEnd);
+            if (pos < lineEnd) {
+                int versionEnd = findTokenEnd(buf, pos, lineEnd);
+                protocolVersion = bytesEqual(buf, pos, versionEnd, HTTP_1_1_BYTES, false) ? HTTP_1_1 : new String(buf, pos, versionEnd - pos, UTF8);
+            } else {
+                protocolVersion = HTTP_1_1;
+                NanoHTTPD.LOG.log(Level.FINE, "no protocol version specified, strange. Assuming HTTP/1.1.");
+            }
+
+            int lineStart = next;
+            String lastName = null;
+            while (lineStart < len) {
+                lineEnd = findLineEnd(buf, lineStart, len);
+                next = nextLineStart(buf, lineEnd, len);
+                int nameStart = skipWhitespace(buf, lineStart, lineEnd);
+                if (nameStart == lineEnd) {
+                    // blank line -- end of the headers
+                    break;
+                }
+                if (nameStart > lineStart && lastName != null) {
+                    // folded line -- continues the value of the previous header
+                    int valueEnd = trimEnd(buf, nameStart, lineEnd);
+                    headers.put(lastName, headers.get(lastName) + " " + new String(buf, nameStart, valueEnd - nameStart, UTF8));
+                    lineStart = next;
+                    continue;
                 }
-                String line = in.readLine();
-                while (line != null && !line.trim().isEmpty()) {
-                    int p = line.indexOf(':');
-                    if (p >= 0) {
-                        headers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
+                int colon = nameStart;
+                while (colon < lineEnd && buf[colon] != ':') {
+                    ++colon;
+                }
+                if (colon < lineEnd) {
+                    int nameEnd = trimEnd(buf, nameStart, colon);
+                    int valueStart = skipWhitespace(buf, colon + 1, lineEnd);
+                    int valueEnd = trimEnd(buf, valueStart, lineEnd);
+                    String name = lookupHeaderName(buf, nameStart, nameEnd);
+                    if (name == null) {
+                        name = new String(buf, nameStart, nameEnd - nameStart, UTF8).toLowerCase(Locale.US);
                     }
-                    line = in.readLine();
+                    headers.put(name, new String(buf, valueStart, valueEnd - valueStart, UTF8));
+                    lastName = name;
                 }
-
-                pre.put("uri", uri);
-            } catch (IOException ioe) {
-                throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage(), ioe);
+                lineStart = next;
             }
+
+            this.uri = uri;
         }
 
         /**
@@ -988,7 +1266,7 @@ public abstract class NanoHTTPD {
                 // Apache's default header limit is 8KB.
                 // Do NOT assume that a single read will get the entire header
                 // at once!
-                byte[] buf = new byte[HTTPSession.BUFSIZE];
+                byte[] buf = this.headerBuffer;
                 this.splitbyte = 0;
                 this.rlen = 0;
 
@@ -1023,36 +1301,32 @@ public abstract class NanoHTTPD {
                     this.inputStream.skip(this.splitbyte);
                 }
 
+                // fresh maps for each request: serve() may hand them to the
+                // Response (see SimpleWebServer), so they must not be cleared
+                // by the next request on this connection.
                 this.parms = new HashMap<String, List<String>>();
-                if (null == this.headers) {
-                    this.headers = new HashMap<String, String>();
-                } else {
-                    this.headers.clear();
-                }
-
-                // Create a BufferedReader for parsing the header.
-                BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, this.rlen)));
+                this.headers = new HashMap<String, String>();
+                this.method = null;
+                this.uri = null;
+                this.queryParameterString = null;
+                this.cookies = null;
 
                 // Decode the header into parms and header java properties
-                Map<String, String> pre = new HashMap<String, String>();
-                decodeHeader(hin, pre, this.parms, this.headers);
+                decodeHeader(buf, this.splitbyte > 0 ? this.splitbyte : this.rlen, this.parms, this.headers);
 
                 if (null != this.remoteIp) {
                     this.headers.put("remote-addr", this.remoteIp);
                     this.headers.put("http-client-ip", this.remoteIp);
                 }
 
-                this.method = Method.lookup(pre.get("method"));
                 if (this.method == null) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. HTTP verb " + pre.get("method") + " unhandled.");
+                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. HTTP verb null unhandled.");
                 }
 
-                this.uri = pre.get("uri");
-
-                this.cookies = new CookieHandler(this.headers);
-
                 String connection = this.headers.get("connection");
-                boolean keepAlive = "HTTP/1.1".equals(protocolVersion) && (connection == null || !connection.matches("(?i).*close.*"));
+                boolean keepAlive = HTTP_1_1.equals(protocolVersion) && (connection == null || !containsIgnoreCase(connection, "close"));
+                ++this.requestsServed;
+                keepAlive = keepAlive && allowKeepAlive(this.requestsServed);
 
                 // Ok, now do the serve()
 
@@ -1067,7 +1341,9 @@ public abstract class NanoHTTPD {
                     throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
                 } else {
                     String acceptEncoding = this.headers.get("accept-encoding");
-                    this.cookies.unloadQueue(r);
+                    if (this.cookies != null) {
+                        this.cookies.unloadQueue(r);
+                    }
                     r.setRequestMethod(this.method);
                     r.setGzipEncoding(useGzipWhenAccepted(r) && acceptEncoding != null && acceptEncoding.contains("gzip"));
                     r.setKeepAlive(keepAlive);
@@ -1172,6 +1448,10 @@ public abstract class NanoHTTPD {
 
         @Override
         public CookieHandler getCookies() {
+            // parsed only if the handler asks for it
+            if (this.cookies == null) {
+                this.cookies = new CookieHandler(this.headers);
+            }
             return this.cookies;
         }
 
@@ -1632,6 +1912,14 @@ public abstract class NanoHTTPD {
 
         private long contentLength;
 
+        /**
+         * If the data is a region of a file, the channel of that file and the
+         * position of the region within it. Otherwise null.
+         */
+        private FileChannel fileChannel;
+
+        private long fileChannelPosition;
+
         /**
          * Headers for the HTTP response. Use addHeader() to add lines. the
          * lowercase map is automatically kept up to date.
@@ -1894,6 +2182,14 @@ public abstract class NanoHTTPD {
          *             if something goes wrong while sending the data.
          */
         private void sendBody(OutputStream outputStream, long pending) throws IOException {
+            if (this.fileChannel != null) {
+                if (pending != -1) {
+                    // neither gzipped nor chunked -- let the channel move the bytes
+                    sendFileChannelBody(outputStream, pending);
+                    return;
+                }
+                this.fileChannel.position(this.fileChannelPosition);
+            }
             long BUFFER_SIZE = 16 * 1024;
             byte[] buff = new byte[(int) BUFFER_SIZE];
             boolean sendEverything = pending == -1;
@@ -1910,12 +2206,33 @@ public abstract class NanoHTTPD {
             }
         }
 
+        /**
+         * Sends the file region with FileChannel.transferTo(). This uses
+         * sendfile() when the target is backed by a socket or file channel,
+         * and otherwise avoids staging the file through a heap buffer of
+         * our own.
+         */
+        private void sendFileChannelBody(OutputStream outputStream, long pending) throws IOException {
+            // do not close the target; that would close the socket stream
+            WritableByteChannel target = Channels.newChannel(outputStream);
+            long position = this.fileChannelPosition;
+            while (pending > 0) {
+                long sent = this.fileChannel.transferTo(position, pending, target);
+                if (sent <= 0) {
+                    break;
+                }
+                position += sent;
+                pending -= sent;
+            }
+        }
+
         public void setChunkedTransfer(boolean chunkedTransfer) {
             this.chunkedTransfer = chunkedTransfer;
         }
 
         public void setData(InputStream data) {
             this.data = data;
+            this.fileChannel = null;
         }
 
         public void setMimeType(String mimeType) {
@@ -2047,6 +2364,19 @@ public abstract class NanoHTTPD {
      */
     public static final int SOCKET_READ_TIMEOUT = 5000;
 
+    /**
+     * How often a worker waiting for the next request on an idle connection
+     * checks whether other connections are waiting for a worker (in
+     * milliseconds).
+     */
+    public static final int IDLE_POLL_INTERVAL = 250;
+
+    /**
+     * Default maximum number of requests served on one keep-alive connection
+     * before it is closed.
+     */
+    public static final int DEFAULT_MAX_KEEP_ALIVE_REQUESTS = 100;
+
     /**
      * Common MIME type for dynamic content: plain text
      */
@@ -2068,6 +2398,64 @@ public abstract class NanoHTTPD {
      */
     private static final Logger LOG = Logger.getLogger(NanoHTTPD.class.getName());
 
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String HTTP_1_1 = "HTTP/1.1";
+
+    private static final byte[] HTTP_1_1_BYTES = HTTP_1_1.getBytes(UTF8);
+
+    private static final Method[] METHODS = Method.values();
+
+    private static final byte[][] METHOD_BYTES;
+
+    /**
+     * Request header names that are mapped to these shared (lower-case)
+     * Strings rather than allocated for every request.
+     */
+    private static final String[] WELL_KNOWN_HEADER_NAMES = {
+        "host",
+        "connection",
+        "accept",
+        "accept-charset",
+        "accept-encoding",
+        "accept-language",
+        "authorization",
+        "cache-control",
+        "content-length",
+        "content-type",
+        "cookie",
+        "dnt",
+        "if-match",
+        "if-modified-since",
+        "if-none-match",
+        "if-range",
+        "origin",
+        "pragma",
+        "range",
+        "referer",
+        "upgrade-insecure-requests",
+        "user-agent",
+        "x-requested-with"
+    };
+
+    private static final byte[][] WELL_KNOWN_HEADER_NAME_BYTES;
+
+    static {
+        METHOD_BYTES = new byte[METHODS.length][];
+        for (int i = 0; i < METHODS.length; ++i) {
+            METHOD_BYTES[i] = METHODS[i].name().getBytes(UTF8);
+        }
+        WELL_KNOWN_HEADER_NAME_BYTES = new byte[WELL_KNOWN_HEADER_NAMES.length][];
+        for (int i = 0; i < WELL_KNOWN_HEADER_NAMES.length; ++i) {
+            WELL_KNOWN_HEADER_NAME_BYTES[i] = WELL_KNOWN_HEADER_NAMES[i].getBytes(UTF8);
+        }
+    }
+
+    /**
+     * Maximum number of idle request-header buffers kept for reuse.
+     */
+    private static final int MAX_POOLED_HEADER_BUFFERS = 16;
+
     /**
      * Hashtable mapping (String)FILENAME_EXTENSION -> (String)MIME_TYPE
      */
@@ -2214,11 +2602,21 @@ public abstract class NanoHTTPD {
      */
     protected AsyncRunner asyncRunner;
 
+    /**
+     * Request-header buffers of closed connections, for reuse by new ones.
+     */
+    private final BlockingQueue<byte[]> headerBufferPool = new ArrayBlockingQueue<byte[]>(MAX_POOLED_HEADER_BUFFERS);
+
     /**
      * Pluggable strategy for creating and cleaning up temporary files.
      */
     private TempFileManagerFactory tempFileManagerFactory;
 
+    /**
+     * Maximum number of requests served on one keep-alive connection.
+     */
+    private volatile int maxKeepAliveRequests = DEFAULT_MAX_KEEP_ALIVE_REQUESTS;
+
     /**
      * Constructs an HTTP server on given port.
      */
@@ -2325,6 +2723,116 @@ public abstract class NanoHTTPD {
         return parms;
     }
 
+    private byte[] acquireHeaderBuffer() {
+        byte[] buf = this.headerBufferPool.poll();
+        return (buf != null) ? buf : new byte[HTTPSession.BUFSIZE];
+    }
+
+    private void releaseHeaderBuffer(byte[] buf) {
+        // dropped if the pool is full
+        this.headerBufferPool.offer(buf);
+    }
+
+    /**
+     * @return the index of the end of the line starting at start, excluding
+     *         any CR before the LF.
+     */
+    private static int findLineEnd(byte[] buf, int start, int len) {
+        int i = start;
+        while (i < len && buf[i] != '\n') {
+            ++i;
+        }
+        return (i > start && buf[i - 1] == '\r') ? i - 1 : i;
+    }
+
+    /**
+     * @return the index of the start of the line after the one ending at
+     *         lineEnd.
+     */
+    private static int nextLineStart(byte[] buf, int lineEnd, int len) {
+        int i = lineEnd;
+        if (i < len && buf[i] == '\r') {
+            ++i;
+        }
+        if (i < len && buf[i] == '\n') {
+            ++i;
+        }
+        return i;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        // as String.trim()
+        return (b & 0xff) <= ' ';
+    }
+
+    private static int skipWhitespace(byte[] buf, int start, int end) {
+        while (start < end && isWhitespace(buf[start])) {
+            ++start;
+        }
+        return start;
+    }
+
+    private static int trimEnd(byte[] buf, int start, int end) {
+        while (end > start && isWhitespace(buf[end - 1])) {
+            --end;
+        }
+        return end;
+    }
+
+    private static int findTokenEnd(byte[] buf, int start, int end) {
+        while (start < end && !isWhitespace(buf[start])) {
+            ++start;
+        }
+        return start;
+    }
+
+    private static boolean bytesEqual(byte[] buf, int start, int end, byte[] value, boolean ignoreCase) {
+        if (end - start != value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; ++i) {
+            byte b = buf[start + i];
+            if (ignoreCase && b >= 'A' && b <= 'Z') {
+                b = (byte) (b + ('a' - 'A'));
+            }
+            if (b != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Method lookupMethod(byte[] buf, int start, int end) {
+        for (int i = 0; i < METHODS.length; ++i) {
+            if (bytesEqual(buf, start, end, METHOD_BYTES[i], false)) {
+                return METHODS[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the shared lower-case String for the header name, or null if
+     *         it is not a well-known header.
+     */
+    private static String lookupHeaderName(byte[] buf, int start, int end) {
+        for (int i = 0; i < WELL_KNOWN_HEADER_NAMES.length; ++i) {
+            if (bytesEqual(buf, start, end, WELL_KNOWN_HEADER_NAME_BYTES[i], true)) {
+                return WELL_KNOWN_HEADER_NAMES[i];
+            }
+        }
+        return null;
+    }
+
+    private static boolean containsIgnoreCase(String str, String part) {
+        for (int i = 0; i + part.length() <= str.length(); ++i) {
+            if (str.regionMatches(true, i, part, 0, part.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Decode percent encoded <code>String</code> values.
      * 
@@ -2398,6 +2906,18 @@ public abstract class NanoHTTPD {
         return new Response(status, mimeType, data, totalBytes);
     }
 
+    /**
+     * Create a response with known length whose body is the region of the
+     * file starting at position. Unless the body is gzipped, it is sent with
+     * FileChannel.transferTo() rather than copied through a buffer.
+     */
+    public static Response newFixedLengthFileResponse(IStatus status, String mimeType, FileInputStream data, long position, long totalBytes) {
+        Response r = new Response(status, mimeType, data, totalBytes);
+        r.fileChannel = data.getChannel();
+        r.fileChannelPosition = position;
+        return r;
+    }
+
     /**
      * Create a text response with known length.
      */
@@ -2486,6 +3006,51 @@ public abstract class NanoHTTPD {
         this.asyncRunner = asyncRunner;
     }
 
+    /**
+     * Decide whether the connection may be kept open after the current
+     * response. Keep-alive connections are closed after
+     * {@link #setMaxKeepAliveRequests(int)} requests, and whenever
+     * connections are waiting for a worker (see
+     * {@link #hasQueuedConnections()}). A connection kept open is still
+     * closed if connections start waiting while it is idle.
+     * 
+     * @param requestsServed
+     *            number of requests read on this connection, including the
+     *            current one
+     * @return true if the connection may be kept open
+     */
+    protected boolean allowKeepAlive(int requestsServed) {
+        if (requestsServed >= this.maxKeepAliveRequests) {
+            return false;
+        }
+        return !hasQueuedConnections();
+    }
+
+    /**
+     * @return true if a {@link BoundedThreadPoolAsyncRunner} has connections
+     *         waiting for a worker
+     */
+    protected boolean hasQueuedConnections() {
+        AsyncRunner runner = this.asyncRunner;
+        return (runner instanceof BoundedThreadPoolAsyncRunner) && ((BoundedThreadPoolAsyncRunner) runner).getQueuedConnectionCount() > 0;
+    }
+
+    /**
+     * @param maxKeepAliveRequests
+     *            maximum number of requests served on one keep-alive
+     *            connection before it is closed.
+     */
+    public void setMaxKeepAliveRequests(int maxKeepAliveRequests) {
+        if (maxKeepAliveRequests < 1) {
+            throw new IllegalArgumentException("maxKeepAliveRequests must be positive");
+        }
+        this.maxKeepAliveRequests = maxKeepAliveRequests;
+    }
+
+    public int getMaxKeepAliveRequests() {
+        return this.maxKeepAliveRequests;
+    }
+
     /**
      * Pluggable strategy for creating and cleaning up temporary files.
      * 
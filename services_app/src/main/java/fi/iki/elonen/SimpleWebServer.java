@@ -35,10 +35,10 @@ package fi.iki.elonen;
 
 import org.opendatakit.utilities.ODKFileUtils;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
@@ -47,6 +47,7 @@ import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
@@ -92,6 +93,56 @@ public class SimpleWebServer extends NanoHTTPD {
     LICENCE = text;
   }
 
+  /**
+   * Maximum number of files whose metadata is cached.
+   */
+  private static final int MAX_CACHED_FILE_METADATA = 512;
+
+  /**
+   * The stat results, ETag and MIME type of a file. Valid only while the
+   * file's lastModified and length are unchanged.
+   */
+  static final class FileMetadata {
+    final String canonicalPath;
+    final long lastModified;
+    final long length;
+    final String etag;
+    final String mime;
+    /**
+     * The pre-compressed sibling (the file name + ".gz"), if there was one no
+     * older than the file when this entry was created. Otherwise null.
+     */
+    final File gzipFile;
+
+    FileMetadata(String canonicalPath, long lastModified, long length, String etag, String mime,
+        File gzipFile) {
+      this.canonicalPath = canonicalPath;
+      this.lastModified = lastModified;
+      this.length = length;
+      this.etag = etag;
+      this.mime = mime;
+      this.gzipFile = gzipFile;
+    }
+  }
+
+  /**
+   * Access only within synchronized (fileMetadataCache)
+   *
+   * Keyed by absolute path; least-recently-used entries are evicted first.
+   */
+  @SuppressWarnings("serial")
+  private final LinkedHashMap<String, FileMetadata> fileMetadataCache =
+      new LinkedHashMap<String, FileMetadata>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FileMetadata> eldest) {
+          return size() > MAX_CACHED_FILE_METADATA;
+        }
+      };
+
+  private volatile boolean servePrecompressedFiles = true;
+
+  private final HotAssetCache hotAssets = new HotAssetCache();
+
   private final boolean quiet;
 
   private boolean shouldCreateLogFile;
@@ -121,6 +172,33 @@ public class SimpleWebServer extends NanoHTTPD {
     init();
   }
 
+  /**
+   * If true (the default), a full-file request from a client that accepts gzip
+   * is answered with the file's pre-compressed ".gz" sibling, when there is one.
+   *
+   * @param servePrecompressedFiles
+   */
+  public void setServePrecompressedFiles(boolean servePrecompressedFiles) {
+    this.servePrecompressedFiles = servePrecompressedFiles;
+  }
+
+  /**
+   * Change the byte budget of the in-memory cache of small files.
+   *
+   * @param maxBytes      total size of the file contents that may be held; 0 disables the cache
+   * @param maxEntryBytes size of the largest file that is held
+   */
+  public void setHotAssetCacheLimits(long maxBytes, long maxEntryBytes) {
+    hotAssets.setLimits(maxBytes, maxEntryBytes);
+  }
+
+  /**
+   * @return the in-memory cache of small files (for its hit/miss counters)
+   */
+  public HotAssetCache getHotAssetCache() {
+    return hotAssets;
+  }
+
   @Override
   protected boolean useGzipWhenAccepted(Response r) {
     return super.useGzipWhenAccepted(r) && r.getStatus() != Response.Status.NOT_MODIFIED;
@@ -309,9 +387,7 @@ public class SimpleWebServer extends NanoHTTPD {
         return respond(headers, session, uri + indexFile);
       }
     }
-    String mimeTypeForFile = getMimeTypeForFile(uri);
-
-    Response response = serveFile(uri, headers, f, mimeTypeForFile);
+    Response response = serveFile(uri, headers, f, getFileMetadata(uri, f));
 
     return response != null ? response : getNotFoundResponse();
   }
@@ -380,15 +456,53 @@ public class SimpleWebServer extends NanoHTTPD {
     return res;
   }
 
+  /**
+   * Returns the metadata of the file, from the cache if the file has not been
+   * modified since it was cached.
+   *
+   * The presence of a pre-compressed sibling is only re-checked when the file
+   * itself changes; deploy the two together.
+   */
+  FileMetadata getFileMetadata(String uri, File file) {
+    String path = file.getAbsolutePath();
+    long lastModified = file.lastModified();
+    long length = file.length();
+
+    synchronized (fileMetadataCache) {
+      FileMetadata m = fileMetadataCache.get(path);
+      if (m != null && m.lastModified == lastModified && m.length == length) {
+        return m;
+      }
+    }
+
+    String etag = Integer.toHexString((path + lastModified + "" + length).hashCode());
+    File gzipFile = new File(path + ".gz");
+    if (!gzipFile.isFile() || gzipFile.lastModified() < lastModified) {
+      gzipFile = null;
+    }
+    String canonicalPath;
+    try {
+      canonicalPath = file.getCanonicalPath();
+    } catch (IOException e) {
+      canonicalPath = path;
+    }
+    FileMetadata m = new FileMetadata(canonicalPath, lastModified, length, etag,
+        getMimeTypeForFile(uri), gzipFile);
+    synchronized (fileMetadataCache) {
+      fileMetadataCache.put(path, m);
+    }
+    return m;
+  }
+
   /**
    * Serves file from homeDir and its' subdirectories (only). Uses only URI,
    * ignores all headers and HTTP parameters.
    */
-  Response serveFile(String uri, Map<String, String> header, File file, String mime) {
+  Response serveFile(String uri, Map<String, String> header, File file, FileMetadata metadata) {
     Response res;
     try {
-      // Calculate etag
-      String etag = Integer.toHexString((file.getAbsolutePath() + file.lastModified() + "" + file.length()).hashCode());
+      String etag = metadata.etag;
+      String mime = metadata.mime;
 
       // Support (simple) skipping:
       long startFrom = 0;
@@ -418,7 +532,14 @@ public class SimpleWebServer extends NanoHTTPD {
 
       // Change return code and add Content-Range header when skipping is
       // requested
-      long fileLen = file.length();
+      long fileLen = metadata.length;
+
+      if (range == null && metadata.gzipFile != null) {
+        res = servePrecompressedFile(header, metadata, ifNoneMatch);
+        if (res != null) {
+          return res;
+        }
+      }
 
       if (headerIfRangeMissingOrMatching && range != null && startFrom >= 0 && startFrom < fileLen) {
         // range request that matches current etag
@@ -439,10 +560,8 @@ public class SimpleWebServer extends NanoHTTPD {
             newLen = 0;
           }
 
-          FileInputStream fis = new FileInputStream(file);
-          fis.skip(startFrom);
-
-          res = newFixedLengthResponse(Response.Status.PARTIAL_CONTENT, mime, fis, newLen);
+          res = newFileRegionResponse(Response.Status.PARTIAL_CONTENT, mime, file,
+              metadata.canonicalPath, metadata.lastModified, fileLen, startFrom, newLen);
           res.addHeader("Accept-Ranges", "bytes");
           res.addHeader("Content-Length", "" + newLen);
           res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen);
@@ -471,9 +590,13 @@ public class SimpleWebServer extends NanoHTTPD {
           res.addHeader("ETag", etag);
         } else {
           // supply the file
-          res = newFixedFileResponse(file, mime);
+          res = newFixedFileResponse(file, mime, metadata.canonicalPath, metadata.lastModified,
+              fileLen);
           res.addHeader("Content-Length", "" + fileLen);
           res.addHeader("ETag", etag);
+          if (metadata.gzipFile != null) {
+            res.addHeader("Vary", "Accept-Encoding");
+          }
         }
       }
     } catch (IOException ioe) {
@@ -483,13 +606,100 @@ public class SimpleWebServer extends NanoHTTPD {
     return res;
   }
 
-  private Response newFixedFileResponse(File file, String mime) throws FileNotFoundException {
+  /**
+   * Answers a full-file request with the pre-compressed sibling of the file,
+   * as-is, if the client accepts gzip and the sibling is still current.
+   *
+   * @return the response or null if the file itself should be served.
+   */
+  private Response servePrecompressedFile(Map<String, String> header, FileMetadata metadata,
+      String ifNoneMatch) throws IOException {
+    String acceptEncoding = header.get("accept-encoding");
+    if (!servePrecompressedFiles || acceptEncoding == null || !acceptEncoding.contains("gzip")) {
+      return null;
+    }
+    File gzipFile = metadata.gzipFile;
+    long gzipLen = gzipFile.length();
+    long gzipLastModified = gzipFile.lastModified();
+    if (gzipLen == 0L || gzipLastModified < metadata.lastModified) {
+      return null;
+    }
+
+    // the compressed representation gets its own validator
+    String etag = metadata.etag + "-gzip";
     Response res;
-    res = newFixedLengthResponse(Response.Status.OK, mime, new FileInputStream(file), (int) file.length());
+    if (ifNoneMatch != null && ("*".equals(ifNoneMatch) || ifNoneMatch.equals(etag))) {
+      res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, metadata.mime, "");
+    } else {
+      res = newFixedFileResponse(gzipFile, metadata.mime, metadata.canonicalPath + ".gz",
+          gzipLastModified, gzipLen);
+      res.addHeader("Content-Length", "" + gzipLen);
+      res.addHeader("Content-Encoding", "gzip");
+    }
+    res.addHeader("ETag", etag);
+    res.addHeader("Vary", "Accept-Encoding");
+    return res;
+  }
+
+  private Response newFixedFileResponse(File file, String mime, String canonicalPath,
+      long lastModified, long fileLen) throws IOException {
+    Response res;
+    res = newFileRegionResponse(Response.Status.OK, mime, file, canonicalPath, lastModified,
+        fileLen, 0L, fileLen);
     res.addHeader("Accept-Ranges", "bytes");
     return res;
   }
 
+  /**
+   * Serve [position, position+count) of the file. Small files are served from
+   * (and on a miss, read whole into) the hot-asset cache; others are streamed
+   * from the file.
+   */
+  private Response newFileRegionResponse(IStatus status, String mime, File file,
+      String canonicalPath, long lastModified, long fileLen, long position, long count)
+      throws IOException {
+    byte[] data = hotAssets.get(canonicalPath, lastModified, fileLen);
+    if (data == null && hotAssets.isCacheable(fileLen)) {
+      data = readHotAsset(file, canonicalPath, lastModified, fileLen);
+    }
+    if (data != null) {
+      return newFixedLengthResponse(status, mime,
+          new ByteArrayInputStream(data, (int) position, (int) count), count);
+    }
+    return newFixedLengthFileResponse(status, mime, new FileInputStream(file), position, count);
+  }
+
+  /**
+   * Read the whole file and hold it in the hot-asset cache.
+   *
+   * @return the contents or null if the file changed while it was being read.
+   */
+  private byte[] readHotAsset(File file, String canonicalPath, long lastModified, long fileLen)
+      throws IOException {
+    byte[] data = new byte[(int) fileLen];
+    FileInputStream fis = new FileInputStream(file);
+    try {
+      int offset = 0;
+      while (offset < data.length) {
+        int read = fis.read(data, offset, data.length - offset);
+        if (read < 0) {
+          return null;
+        }
+        offset += read;
+      }
+      if (fis.read() != -1) {
+        return null;
+      }
+    } finally {
+      fis.close();
+    }
+    if (file.lastModified() != lastModified) {
+      return null;
+    }
+    hotAssets.put(canonicalPath, lastModified, data);
+    return data;
+  }
+
   protected Response addCORSHeaders(Map<String, String> queryHeaders, Response resp, String cors) {
     resp.addHeader("Access-Control-Allow-Origin", cors);
     resp.addHeader("Access-Control-Allow-Headers", calculateAllowHeaders(queryHeaders));
@@ -24,7 +24,10 @@ import org.sqlite.database.sqlite.SQLiteDatabaseConfiguration;
 import org.sqlite.database.sqlite.SQLiteException;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 public class AndroidOdkConnection implements OdkConnectionInterface {
   final Object mutex;
@@ -35,9 +38,17 @@ public class AndroidOdkConnection implements OdkConnectionInterface {
    * One reference will be added when we put this into the OdkConnectionFactoryInterface session map
    */
   final OperationLog operationLog;
+  final TableMetadataCache tableMetadataCache;
+  /**
+   * tableIds with metadata changes in the current transaction
+   * (null entry if any tableId may have changed).
+   * Access only within synchronized pendingMetadataChanges
+   */
+  private final Set<String> pendingMetadataChanges = new HashSet<String>();
   final String appName;
   final SQLiteConnection db;
-  final String sessionQualifier;
+  // changes when a pooled connection is leased to another session
+  volatile String sessionQualifier;
   int referenceCount = 1;
   final Object initializationMutex = new Object();
   boolean initializationComplete = false;
@@ -73,7 +84,8 @@ public class AndroidOdkConnection implements OdkConnectionInterface {
       // this isn't going to throw an exception
       AndroidOdkConnection connection = new AndroidOdkConnection(
           appNameSharedStateContainer.getSessionMutex(), appName,
-          appNameSharedStateContainer.getOperationLog(), db, sessionQualifier);
+          appNameSharedStateContainer.getOperationLog(),
+          appNameSharedStateContainer.getTableMetadataCache(), db, sessionQualifier);
       success = true;
       return connection;
     } finally {
@@ -86,10 +98,11 @@ public class AndroidOdkConnection implements OdkConnectionInterface {
   }
 
   private AndroidOdkConnection(Object mutex, String appName, OperationLog operationLog,
-      SQLiteConnection db, String sessionQualifier) {
+      TableMetadataCache tableMetadataCache, SQLiteConnection db, String sessionQualifier) {
     this.mutex = mutex;
     this.appName = appName;
     this.operationLog = operationLog;
+    this.tableMetadataCache = tableMetadataCache;
     this.db = db;
     this.sessionQualifier = sessionQualifier;
   }
@@ -148,6 +161,11 @@ public class AndroidOdkConnection implements OdkConnectionInterface {
     return sessionQualifier;
   }
 
+  public void setSessionQualifier(String sessionQualifier) {
+    this.sessionQualifier = sessionQualifier;
+    db.setSessionQualifier(sessionQualifier);
+  }
+
   public void dumpDetail(StringBuilder b) {
     db.dump(b, true);
   }
@@ -509,6 +527,43 @@ public class AndroidOdkConnection implements OdkConnectionInterface {
       }
     } finally {
       operationLog.endOperation(cookie);
+      releasePendingMetadataChanges();
+    }
+  }
+
+  public TableMetadataCache getTableMetadataCache() {
+    return tableMetadataCache;
+  }
+
+  public void noteTableMetadataChanged(String tableId) {
+    if (!internalInTransaction()) {
+      tableMetadataCache.invalidate(tableId);
+      return;
+    }
+    synchronized (pendingMetadataChanges) {
+      if (pendingMetadataChanges.add(tableId)) {
+        tableMetadataCache.beginPendingChange(tableId);
+      } else {
+        tableMetadataCache.invalidate(tableId);
+      }
+    }
+  }
+
+  /**
+   * Once the outermost transaction has ended (committed or rolled back),
+   * allow the tableIds changed within it to be cached again.
+   */
+  private void releasePendingMetadataChanges() {
+    ArrayList<String> tableIds;
+    synchronized (pendingMetadataChanges) {
+      if (pendingMetadataChanges.isEmpty() || internalInTransaction()) {
+        return;
+      }
+      tableIds = new ArrayList<String>(pendingMetadataChanges);
+      pendingMetadataChanges.clear();
+    }
+    for (String tableId : tableIds) {
+      tableMetadataCache.endPendingChange(tableId);
     }
   }
 
@@ -526,19 +581,9 @@ public class AndroidOdkConnection implements OdkConnectionInterface {
 
   public int update(String table, Map<String, Object> values, String whereClause,
       Object[] whereArgs) {
-    StringBuilder b = new StringBuilder();
-    b.append("delete(\"").append(table).append("\",...,");
-    if (whereClause == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(whereClause).append("\",");
-    }
-    if (whereArgs == null) {
-      b.append("null)");
-    } else {
-      b.append("...)");
-    }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+    final int cookie = operationLog.beginCall(sessionQualifier,
+        OperationLogEntry.CallShape.TABLE_VALUES_WHERE_ARGS,
+        "update", table, whereClause, whereArgs != null);
     try {
       // invoke method
       // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
@@ -567,19 +612,9 @@ public class AndroidOdkConnection implements OdkConnectionInterface {
   }
 
   public int delete(String table, String whereClause, Object[] whereArgs) {
-    StringBuilder b = new StringBuilder();
-    b.append("delete(\"").append(table).append("\",");
-    if (whereClause == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(whereClause).append("\",");
-    }
-    if (whereArgs == null) {
-      b.append("null)");
-    } else {
-      b.append("...)");
-    }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+    final int cookie = operationLog.beginCall(sessionQualifier,
+        OperationLogEntry.CallShape.TABLE_WHERE_ARGS,
+        "delete", table, whereClause, whereArgs != null);
 
     try {
       // invoke method
@@ -609,14 +644,9 @@ public class AndroidOdkConnection implements OdkConnectionInterface {
 
   public long replaceOrThrow(String table, String nullColumnHack, Map<String, Object> initialValues)
       throws SQLException {
-    StringBuilder b = new StringBuilder();
-    b.append("replaceOrThrow(\"").append(table).append("\",");
-    if (nullColumnHack == null) {
-      b.append("null,...)");
-    } else {
-      b.append("\"").append(nullColumnHack).append("\",...)");
-    }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+    final int cookie = operationLog.beginCall(sessionQualifier,
+        OperationLogEntry.CallShape.TABLE_HACK_VALUES,
+        "replaceOrThrow", table, nullColumnHack, false);
 
     try {
       // invoke method
@@ -646,14 +676,9 @@ public class AndroidOdkConnection implements OdkConnectionInterface {
 
   public long insertOrThrow(String table, String nullColumnHack, Map<String, Object> values)
       throws SQLException {
-    StringBuilder b = new StringBuilder();
-    b.append("insertOrThrow(\"").append(table).append("\",");
-    if (nullColumnHack == null) {
-      b.append("null,...)");
-    } else {
-      b.append("\"").append(nullColumnHack).append("\",...)");
-    }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+    final int cookie = operationLog.beginCall(sessionQualifier,
+        OperationLogEntry.CallShape.TABLE_HACK_VALUES,
+        "insertOrThrow", table, nullColumnHack, false);
 
     try {
       // invoke method
@@ -682,14 +707,8 @@ public class AndroidOdkConnection implements OdkConnectionInterface {
   }
 
   public void execSQL(String sql, Object[] bindArgs) throws SQLException {
-    StringBuilder b = new StringBuilder();
-    b.append("execSQL(\"").append(sql).append("\",");
-    if (bindArgs == null) {
-      b.append("null)");
-    } else {
-      b.append("...)");
-    }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+    final int cookie = operationLog.beginCall(sessionQualifier,
+        OperationLogEntry.CallShape.SQL_ARGS, "execSQL", sql, null, bindArgs != null);
 
     try {
       // invoke method
@@ -718,14 +737,8 @@ public class AndroidOdkConnection implements OdkConnectionInterface {
   }
 
   public Cursor rawQuery(String sql, Object[] selectionArgs) {
-    StringBuilder b = new StringBuilder();
-    b.append("rawQuery(\"").append(sql).append("\",");
-    if (selectionArgs == null) {
-      b.append("null)");
-    } else {
-      b.append("...)");
-    }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+    final int cookie = operationLog.beginCall(sessionQualifier,
+        OperationLogEntry.CallShape.SQL_ARGS, "rawQuery", sql, null, selectionArgs != null);
 
     try {
       // invoke method
@@ -756,44 +769,8 @@ public class AndroidOdkConnection implements OdkConnectionInterface {
 
   public Cursor query(String table, String[] columns, String selection, Object[] selectionArgs,
       String groupBy, String having, String orderBy, String limit) {
-    StringBuilder b = new StringBuilder();
-    b.append("query(\"").append(table).append("\",");
-    if (columns == null) {
-      b.append("null,");
-    } else {
-      b.append("...,");
-    }
-    if (selection == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(selection).append("\",");
-    }
-    if (selectionArgs == null) {
-      b.append("null,");
-    } else {
-      b.append("...,");
-    }
-    if (groupBy == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(groupBy).append("\",");
-    }
-    if (having == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(having).append("\",");
-    }
-    if (orderBy == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(orderBy).append("\",");
-    }
-    if (limit == null) {
-      b.append("null)");
-    } else {
-      b.append("\"").append(limit).append("\")");
-    }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+    final int cookie = operationLog.beginQueryCall(sessionQualifier, "query", table,
+        columns != null, selection, selectionArgs != null, groupBy, having, orderBy, true, limit);
 
     try {
       // invoke method
@@ -826,44 +803,8 @@ public class AndroidOdkConnection implements OdkConnectionInterface {
 
   public Cursor queryDistinct(String table, String[] columns, String selection,
       Object[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
-    StringBuilder b = new StringBuilder();
-    b.append("queryDistinct(\"").append(table).append("\",");
-    if (columns == null) {
-      b.append("null,");
-    } else {
-      b.append("...,");
-    }
-    if (selection == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(selection).append("\",");
-    }
-    if (selectionArgs == null) {
-      b.append("null,");
-    } else {
-      b.append("...,");
-    }
-    if (groupBy == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(groupBy).append("\",");
-    }
-    if (having == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(having).append("\",");
-    }
-    if (orderBy == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(orderBy).append("\",");
-    }
-    if (limit == null) {
-      b.append("null)");
-    } else {
-      b.append("\"").append(limit).append("\")");
-    }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+    final int cookie = operationLog.beginQueryCall(sessionQualifier, "queryDistinct", table,
+        columns != null, selection, selectionArgs != null, groupBy, having, orderBy, true, limit);
 
     try {
       // invoke method
@@ -34,6 +34,12 @@ public class AppNameSharedStateContainer {
 
    private final String appName;
    private final Object appNameMutex = new Object();
+   /**
+    * Held while this process holds the database lock file. A FileLock only
+    * excludes other processes; a second thread of this process trying to lock
+    * the file would get an OverlappingFileLockException.
+    */
+   private final Object dbLockFileMutex = new Object();
    /**
     * Access only within appNameMutex
     *
@@ -49,8 +55,46 @@ public class AppNameSharedStateContainer {
    private final WeakHashMap<OdkConnectionInterface, Long>
        pendingDestruction = new WeakHashMap<OdkConnectionInterface, Long>();
 
+   /**
+    * Access only within appNameMutex
+    *
+    * Idle pooled read connections, most-recently returned last.
+    * The pool holds one reference count on each of these.
+    */
+   private final LinkedList<IdleConnection> idleConnections = new LinkedList<IdleConnection>();
+   /**
+    * Access only within appNameMutex
+    *
+    * sessionQualifiers in sessionQualifierConnectionMap that hold a pooled connection.
+    */
+   private final Set<String> leasedSessionQualifiers = new HashSet<String>();
+
+   /**
+    * Access only within appNameMutex
+    *
+    * pool statistics
+    */
+   private long poolHitCount = 0L;
+   private long poolMissCount = 0L;
+   private long poolReturnCount = 0L;
+   private long poolDiscardCount = 0L;
+   private long poolEvictionCount = 0L;
+   private boolean poolPrewarmStarted = false;
+
+   private static final class IdleConnection {
+      final OdkConnectionInterface dbConnection;
+      final long idleSince;
+
+      IdleConnection(OdkConnectionInterface dbConnection, long idleSince) {
+         this.dbConnection = dbConnection;
+         this.idleSince = idleSince;
+      }
+   }
+
    private final OperationLog operationLog;
 
+   private final TableMetadataCache tableMetadataCache = new TableMetadataCache();
+
    private String beginTransactionSessionQualifier = null;
    private Long beginTransactionThreadId = null;
 
@@ -129,25 +173,165 @@ public class AppNameSharedStateContainer {
     * released. If a connection stays on the pendingDestruction list
     * for very long, then we have a problem.
     *
+    * @param sessionQualifier the key of the dbConnection in the sessionQualifierConnectionMap
     * @param dbConnection
     * @return  true if the dbConnection should have -1 reference count to complete action.
     */
-   boolean moveIntoPendingDestruction( OdkConnectionInterface dbConnection ) {
+   boolean moveIntoPendingDestruction( String sessionQualifier,
+       OdkConnectionInterface dbConnection ) {
       OdkConnectionInterface reference = null;
       synchronized (appNameMutex) {
          // add the connection to the pending destruction list
          pendingDestruction.put(dbConnection, System.currentTimeMillis());
          // remove it from the sessionQualifierConnectionMap if it is there.
-         reference = sessionQualifierConnectionMap.remove(dbConnection.getSessionQualifier());
+         reference = sessionQualifierConnectionMap.get(sessionQualifier);
+         if ( reference == dbConnection ) {
+            sessionQualifierConnectionMap.remove(sessionQualifier);
+            leasedSessionQualifiers.remove(sessionQualifier);
+         } else {
+            reference = null;
+         }
 
          if ( sessionQualifierConnectionMap.isEmpty() ) {
             operationLog.clearOperations();
+            // bound the staleness of changes made by other processes
+            tableMetadataCache.invalidate(null);
          }
       }
       // and report back whether the connection needs to have -1 reference adjustment.
       return ( reference != null );
    }
 
+   /**
+    * Take the most-recently-used idle pooled connection, if any, and register it
+    * in the sessionQualifierConnectionMap under the given sessionQualifier.
+    * The connection's own session qualifier is rebound to that sessionQualifier.
+    * The pool's reference count becomes the map's reference count.
+    *
+    * @param sessionQualifier
+    * @param idleTimeout idle connections older than this (ms) are evicted
+    * @param minIdle never evict below this many idle connections
+    * @param evicted receives evicted connections; caller must -1 reference count
+    *                each of these outside of the mutex.
+    * @return null if nothing is pooled, otherwise the connection with +1 reference count.
+    */
+   OdkConnectionInterface leaseIdleConnection( String sessionQualifier, long idleTimeout,
+       int minIdle, List<OdkConnectionInterface> evicted ) {
+      synchronized (appNameMutex) {
+         evictIdleConnections(idleTimeout, minIdle, evicted);
+         if ( sessionQualifierConnectionMap.containsKey(sessionQualifier) ) {
+            return null;
+         }
+         IdleConnection idle = idleConnections.pollLast();
+         if ( idle == null ) {
+            ++poolMissCount;
+            return null;
+         }
+         ++poolHitCount;
+         idle.dbConnection.setSessionQualifier(sessionQualifier);
+         sessionQualifierConnectionMap.put(sessionQualifier, idle.dbConnection);
+         leasedSessionQualifiers.add(sessionQualifier);
+         // +1 for the caller
+         idle.dbConnection.acquireReference();
+         return idle.dbConnection;
+      }
+   }
+
+   /**
+    * Remove the connection from the sessionQualifierConnectionMap and place it
+    * on the idle list. The map's reference count becomes the pool's reference count.
+    *
+    * @param sessionQualifier
+    * @param dbConnection
+    * @param maxIdle capacity of the idle list
+    * @return true if the connection was pooled. If false, nothing was changed.
+    */
+   boolean returnToPool( String sessionQualifier, OdkConnectionInterface dbConnection,
+       int maxIdle ) {
+      synchronized (appNameMutex) {
+         if ( sessionQualifierConnectionMap.get(sessionQualifier) != dbConnection ||
+              idleConnections.size() >= maxIdle ) {
+            ++poolDiscardCount;
+            return false;
+         }
+         sessionQualifierConnectionMap.remove(sessionQualifier);
+         leasedSessionQualifiers.remove(sessionQualifier);
+         idleConnections.addLast(new IdleConnection(dbConnection, System.currentTimeMillis()));
+         ++poolReturnCount;
+
+         if ( sessionQualifierConnectionMap.isEmpty() ) {
+            operationLog.clearOperations();
+            // bound the staleness of changes made by other processes
+            tableMetadataCache.invalidate(null);
+         }
+         return true;
+      }
+   }
+
+   /**
+    * Add a freshly opened connection to the idle list.
+    * The pool takes over the caller's reference count.
+    *
+    * @param dbConnection
+    * @param targetSize number of pooled (idle plus leased) connections to fill to
+    * @return true if it was added; otherwise the caller still owns the reference.
+    */
+   boolean addIdleConnection( OdkConnectionInterface dbConnection, int targetSize ) {
+      synchronized (appNameMutex) {
+         if ( idleConnections.size() + leasedSessionQualifiers.size() >= targetSize ) {
+            return false;
+         }
+         idleConnections.addLast(new IdleConnection(dbConnection, System.currentTimeMillis()));
+         return true;
+      }
+   }
+
+   /**
+    * @return true the first time this is called. Used to pre-open the pool only once.
+    */
+   boolean startPoolPrewarm() {
+      synchronized (appNameMutex) {
+         boolean first = !poolPrewarmStarted;
+         poolPrewarmStarted = true;
+         return first;
+      }
+   }
+
+   /**
+    * Access only within appNameMutex
+    */
+   private void evictIdleConnections( long idleTimeout, int minIdle,
+       List<OdkConnectionInterface> evicted ) {
+      long cutoff = System.currentTimeMillis() - idleTimeout;
+      // oldest are first
+      while ( idleConnections.size() > minIdle &&
+              idleConnections.getFirst().idleSince < cutoff ) {
+         IdleConnection idle = idleConnections.removeFirst();
+         pendingDestruction.put(idle.dbConnection, System.currentTimeMillis());
+         evicted.add(idle.dbConnection);
+         ++poolEvictionCount;
+      }
+   }
+
+   /**
+    * Remove all idle pooled connections.
+    *
+    * @return the connections; caller must -1 reference count each of these
+    * outside of the mutex.
+    */
+   List<OdkConnectionInterface> drainIdleConnections() {
+      List<OdkConnectionInterface> drained = new ArrayList<OdkConnectionInterface>();
+      synchronized (appNameMutex) {
+         for ( IdleConnection idle : idleConnections ) {
+            pendingDestruction.put(idle.dbConnection, System.currentTimeMillis());
+            drained.add(idle.dbConnection);
+         }
+         idleConnections.clear();
+         poolPrewarmStarted = false;
+      }
+      return drained;
+   }
+
    TreeSet<String> getAllSessionQualifiers() {
       TreeSet<String> sessionQualifiers = new TreeSet<String>();
       synchronized (appNameMutex) {
@@ -175,6 +359,19 @@ public class AppNameSharedStateContainer {
             b.append("\n-------\n");
          }
 
+         b.append("\n-----connectionPool------------------\n\n");
+         b.append("idle ").append(idleConnections.size())
+             .append(" leased ").append(leasedSessionQualifiers.size())
+             .append(" hits ").append(poolHitCount)
+             .append(" misses ").append(poolMissCount)
+             .append(" returns ").append(poolReturnCount)
+             .append(" discards ").append(poolDiscardCount)
+             .append(" evictions ").append(poolEvictionCount)
+             .append("\n");
+
+         b.append("\n-----tableMetadataCache------------\n\n");
+         tableMetadataCache.dump(b);
+
          b.append("\n-----pendingDestruction------------\n\n");
 
          for (WeakHashMap.Entry<OdkConnectionInterface, Long> dbconnectionPD : pendingDestruction.entrySet()) {
@@ -197,10 +394,18 @@ public class AppNameSharedStateContainer {
       return new Object();
    }
 
+   Object getDbLockFileMutex() {
+      return dbLockFileMutex;
+   }
+
    public OperationLog getOperationLog() {
       return operationLog;
    }
 
+   public TableMetadataCache getTableMetadataCache() {
+      return tableMetadataCache;
+   }
+
    void setBeginTransactionSession(String sessionQualifier) {
       synchronized (appNameMutex) {
          beginTransactionSessionQualifier = sessionQualifier;
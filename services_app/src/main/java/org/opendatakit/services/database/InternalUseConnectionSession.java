@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.database;
+
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.logging.WebLogger;
+
+/**
+ * A connection to the app database for code that does not otherwise hold one
+ * (e.g., the sync process, which otherwise reaches the database through the
+ * database service). The connection is opened on first use and held until
+ * {@link #close()}; the sync process does not pool internal-use connections,
+ * so this is a single plain connection.
+ * <p>
+ * Thread-safe.
+ */
+public class InternalUseConnectionSession {
+  private static final String TAG = "InternalUseConnectionSession";
+
+  private final String appName;
+
+  private DbHandle dbHandleName = null;
+  private OdkConnectionInterface db = null;
+  private boolean unavailable = false;
+
+  public InternalUseConnectionSession(String appName) {
+    this.appName = appName;
+  }
+
+  public String getAppName() {
+    return appName;
+  }
+
+  /**
+   * The session owns the reference count of the returned connection; callers
+   * must not release it.
+   *
+   * @return the connection, or null if the database is not available
+   */
+  public synchronized OdkConnectionInterface getConnection() {
+    if (db == null && !unavailable) {
+      AndroidConnectFactory.configure();
+      dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+          .generateInternalUseDbHandle();
+      try {
+        // +1 referenceCount if db is returned (non-null)
+        db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+            .getConnection(appName, dbHandleName);
+      } catch (Exception e) {
+        WebLogger.getLogger(appName).w(TAG, "database unavailable: " + e.toString());
+        unavailable = true;
+      }
+    }
+    return db;
+  }
+
+  /**
+   * Release the connection, if one was opened. The session may be used again
+   * afterwards; it will open a new connection.
+   */
+  public synchronized void close() {
+    if (db != null) {
+      try {
+        db.releaseReference();
+      } finally {
+        db = null;
+        // this closes the connection
+        OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+            .removeConnection(appName, dbHandleName);
+      }
+    }
+    unavailable = false;
+  }
+}
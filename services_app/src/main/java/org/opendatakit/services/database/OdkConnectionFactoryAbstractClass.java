@@ -14,6 +14,8 @@
 
 package org.opendatakit.services.database;
 
+import android.database.Cursor;
+
 import org.opendatakit.utilities.LocalizationUtils;
 import org.opendatakit.services.database.utlities.ODKDatabaseImplUtils;
 import org.opendatakit.utilities.ODKFileUtils;
@@ -72,6 +74,20 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
    */
   private final Map<String, AppNameSharedStateContainer> appNameSharedStateMap = new TreeMap<String, AppNameSharedStateContainer>();
 
+  /**
+   * Default limits on the pool of connections that are reused across
+   * internal-use (content provider) handles. Processes that do not serve
+   * the content providers override these at startup
+   * (see {@link #setConnectionPoolLimits(int, int, long)}).
+   */
+  public static final int DEFAULT_POOL_MIN_SIZE = 1;
+  public static final int DEFAULT_POOL_MAX_SIZE = 4;
+  public static final long DEFAULT_POOL_IDLE_TIMEOUT = 60000L;
+
+  private volatile int poolMinSize = DEFAULT_POOL_MIN_SIZE;
+  private volatile int poolMaxSize = DEFAULT_POOL_MAX_SIZE;
+  private volatile long poolIdleTimeout = DEFAULT_POOL_IDLE_TIMEOUT;
+
   /**
    * Log the given Info message for the specified appName
    *
@@ -133,6 +149,142 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
     return new DbHandle(LocalizationUtils.genUUID());
   }
 
+  /**
+   * Configure the pool of connections used by internal-use handles
+   * (see {@link #generateInternalUseDbHandle()}).
+   * <p/>
+   * Opening a connection takes the database lock file and natively opens and
+   * configures the WAL database. Content providers open a handle per call, so
+   * rather than closing their connections, up to maxSize of them are kept open
+   * and leased to subsequent internal-use handles. Idle connections beyond
+   * minSize are closed after idleTimeout.
+   *
+   * @param minSize number of connections to pre-open and keep open when idle
+   * @param maxSize maximum number of idle connections kept; 0 disables pooling
+   * @param idleTimeout milliseconds after which an idle connection may be closed
+   */
+  @Override
+  public final void setConnectionPoolLimits(int minSize, int maxSize, long idleTimeout) {
+    if (minSize < 0 || maxSize < minSize || idleTimeout < 0L) {
+      throw new IllegalArgumentException("invalid connection pool limits");
+    }
+    this.poolMinSize = minSize;
+    this.poolMaxSize = maxSize;
+    this.poolIdleTimeout = idleTimeout;
+  }
+
+  private boolean isPooledSessionQualifier(String appName, String sessionQualifier) {
+    return poolMaxSize > 0 && !sessionQualifier.equals(appName) &&
+        sessionQualifier.endsWith(INTERNAL_TYPE_SUFFIX);
+  }
+
+  private void releaseAll(List<OdkConnectionInterface> connections) {
+    for (OdkConnectionInterface dbConnection : connections) {
+      // -1 for the pool's reference; this closes the connection
+      dbConnection.releaseReference();
+    }
+  }
+
+  /**
+   * Lease an idle pooled connection to the sessionQualifier.
+   *
+   * @return the connection with +1 reference count or null if none is idle.
+   */
+  private OdkConnectionInterface leasePooledConnection(
+      final AppNameSharedStateContainer appNameSharedStateContainer, String sessionQualifier) {
+    List<OdkConnectionInterface> evicted = new ArrayList<OdkConnectionInterface>();
+    OdkConnectionInterface dbConnection = null;
+    try {
+      dbConnection = appNameSharedStateContainer.leaseIdleConnection(sessionQualifier,
+          poolIdleTimeout, poolMinSize, evicted);
+    } finally {
+      releaseAll(evicted);
+    }
+    return dbConnection;
+  }
+
+  /**
+   * Pre-open and warm up to the minimum pool size on a background thread.
+   * Done once per appName, after a connection has been opened successfully
+   * (so the database exists and is initialized).
+   */
+  private void prewarmPool(final AppNameSharedStateContainer appNameSharedStateContainer) {
+    if (poolMinSize == 0 || !appNameSharedStateContainer.startPoolPrewarm()) {
+      return;
+    }
+    final String appName = appNameSharedStateContainer.getAppName();
+    Thread t = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < poolMinSize; ++i) {
+            OdkConnectionInterface dbConnection = openPooledConnection(appNameSharedStateContainer);
+            if (dbConnection == null) {
+              break;
+            }
+            boolean pooled = false;
+            try {
+              // load the schema so that the first lease does not pay for it
+              Cursor c = dbConnection.rawQuery("SELECT name FROM sqlite_master", null);
+              if (c != null) {
+                try {
+                  while (c.moveToNext()) {
+                    // nothing
+                  }
+                } finally {
+                  c.close();
+                }
+              }
+              pooled = appNameSharedStateContainer.addIdleConnection(dbConnection, poolMinSize);
+            } finally {
+              if (!pooled) {
+                dbConnection.releaseReference();
+              }
+            }
+            if (!pooled) {
+              break;
+            }
+          }
+        } catch (Exception e) {
+          logWarn(appName, "prewarmPool -- unable to pre-open connection: " + e.toString());
+        }
+      }
+    }, "OdkConnectionPool prewarm " + appName);
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Open a connection for the pool under the database lock file, as
+   * getNewConnectionImpl does, so that it cannot race another process that is
+   * creating, upgrading or deleting the database.
+   *
+   * @return the connection with +1 reference count, or null if the database
+   * no longer exists (it is only created and initialized by getNewConnectionImpl).
+   */
+  private OdkConnectionInterface openPooledConnection(
+      AppNameSharedStateContainer appNameSharedStateContainer) throws IOException {
+    String appName = appNameSharedStateContainer.getAppName();
+    File lockfile = new File(getDbLockFilePath(appName));
+    synchronized (appNameSharedStateContainer.getDbLockFileMutex()) {
+      RandomAccessFile raf = new RandomAccessFile(lockfile, "rw");
+      try {
+        FileLock fileLock = raf.getChannel().lock();
+        try {
+          if (!new File(getDbFilePath(appName)).exists()) {
+            return null;
+          }
+          return attemptToOpenDb(appNameSharedStateContainer,
+              LocalizationUtils.genUUID() + POOLED_TYPE_SUFFIX + INTERNAL_TYPE_SUFFIX);
+        } finally {
+          fileLock.release();
+        }
+      } finally {
+        raf.close();
+      }
+    }
+  }
+
   /**
    * Dump the state and history of the database layer.
    * Useful for debugging and understanding
@@ -413,13 +565,22 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
       }
 
     }
+    if (isPooledSessionQualifier(appName, sessionQualifier)) {
+      dbConnection = leasePooledConnection(appNameSharedStateContainer, sessionQualifier);
+      if (dbConnection != null) {
+        return dbConnection;
+      }
+    }
+
     // otherwise, create a connection for the sessionQualifier and return that
     logInfo(appName, "getConnectionImpl -- " + sessionQualifier +
             " -- creating new connection for " + appName + " when getting " + sessionQualifier);
     OdkConnectionInterface db = null;
     try {
-      db = getNewConnectionImpl(appNameSharedStateContainer,
-              sessionQualifier);
+      synchronized (appNameSharedStateContainer.getDbLockFileMutex()) {
+        db = getNewConnectionImpl(appNameSharedStateContainer,
+                sessionQualifier);
+      }
     } catch (IllegalAccessException e) {
       e.printStackTrace();
       throw new SQLiteCantOpenDatabaseException("Found existing conn on new - WHAAT?");
@@ -429,6 +590,9 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
       throw new SQLiteCantOpenDatabaseException("unable to initialize session database for "
               + appName + " when getting " + sessionQualifier);
     } else {
+      if (isPooledSessionQualifier(appName, sessionQualifier)) {
+        prewarmPool(appNameSharedStateContainer);
+      }
       return db;
     }
   }
@@ -478,8 +642,19 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
       // +1 reference count (or null)
       dbConnection = appNameSharedStateContainer.getExisting(sessionQualifier);
       if (dbConnection != null) {
+        // if nothing else holds the connection (only the map and our getExisting),
+        // hand it back to the pool rather than closing it.
+        if (isPooledSessionQualifier(appName, sessionQualifier) &&
+            dbConnection.getReferenceCount() == 2 &&
+            dbConnection.isOpen() && !dbConnection.inTransaction() &&
+            appNameSharedStateContainer.returnToPool(sessionQualifier, dbConnection,
+                poolMaxSize)) {
+          // no change in reference count -- the pool now holds the map's reference
+          return;
+        }
         // no change in reference count
-        releaseTwice = appNameSharedStateContainer.moveIntoPendingDestruction(dbConnection);
+        releaseTwice = appNameSharedStateContainer.moveIntoPendingDestruction(sessionQualifier,
+            dbConnection);
       }
     } finally {
       if (dbConnection != null) {
@@ -553,6 +728,9 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
       // nothing to do...
       return false;
     }
+    List<OdkConnectionInterface> idle = appNameSharedStateContainer.drainIdleConnections();
+    logInfo(appName, "removeAllConnections " + idle.size() + " pooled connections");
+    releaseAll(idle);
     TreeSet<String> sessionQualifiers = appNameSharedStateContainer.getAllSessionQualifiers();
     if ( sessionQualifiers.isEmpty() ) {
       // nothing to do...
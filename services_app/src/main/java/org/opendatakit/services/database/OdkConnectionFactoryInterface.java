@@ -18,6 +18,12 @@ public interface OdkConnectionFactoryInterface {
     */
    String INTERNAL_TYPE_SUFFIX = "-internal";
 
+   /**
+    * Infix of the sessionQualifier of a connection opened ahead of time for the
+    * pool of connections that are leased to internal-use handles.
+    */
+   String POOLED_TYPE_SUFFIX = "-pooled";
+
    /**
     * Generate a database handle (a wrapper for a session qualifier)
     * that is suitable for non-service uses. e.g., content providers.
@@ -45,6 +51,17 @@ public interface OdkConnectionFactoryInterface {
     */
    void dumpInfo(boolean asError);
 
+   /**
+    * Configure the pool of connections leased to internal-use handles in this
+    * process. Called once, when the process's first component starts; until then
+    * the defaults suited to the content providers apply.
+    *
+    * @param minSize number of connections to pre-open and keep open when idle
+    * @param maxSize maximum number of idle connections kept; 0 disables pooling
+    * @param idleTimeout milliseconds after which an idle connection may be closed
+    */
+   void setConnectionPoolLimits(int minSize, int maxSize, long idleTimeout);
+
    /**
     * Get a connection to the database for the given dbHandleName.
     * If no connection exists, this will create a new connection for that dbHandleName
@@ -35,6 +35,14 @@ public interface OdkConnectionInterface {
 
     String getSessionQualifier();
 
+   /**
+    * Called when a pooled connection is leased to a session other than the one
+    * it was opened for, so that its operations are logged under that session.
+    *
+    * @param sessionQualifier
+    */
+    void setSessionQualifier(String sessionQualifier);
+
     void dumpDetail(StringBuilder b);
 
    /**
@@ -138,4 +146,19 @@ public interface OdkConnectionInterface {
 
     Cursor queryDistinct(String table, String[] columns, String selection,
         Object[] selectionArgs, String groupBy, String having, String orderBy, String limit) throws SQLException;
+
+   /**
+    * @return the cache of table revIds and security settings shared by all
+    * connections to this appName.
+    */
+    TableMetadataCache getTableMetadataCache();
+
+   /**
+    * Report a change to the table definition or table-level metadata of a tableId.
+    * Its cached values are dropped, and if this connection is within a transaction,
+    * are not cached again until that transaction ends.
+    *
+    * @param tableId null if the change may affect any tableId
+    */
+    void noteTableMetadataChanged(String tableId);
 }
@@ -17,30 +17,49 @@ package org.opendatakit.services.database;
 import org.opendatakit.logging.WebLogger;
 import org.sqlite.database.sqlite.SQLiteDebug;
 
-import java.util.ArrayList;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Extracted from the SQLiteDatabase class.
  * Thread-safe.
+ * <p/>
+ * All sessions of an appName share one OperationLog, so recording an operation
+ * must not serialize the threads using the database. The recent operations are
+ * kept in a lock-free ring buffer: each operation claims a slot by atomically
+ * incrementing a sequence number (which is also its cookie) and publishes a new
+ * entry into that slot. Ending an operation only updates its own entry, and
+ * does nothing if the slot has since been claimed by a newer operation.
  *
  * @author mitchellsundt@gmail.com
  */
 public final class OperationLog {
 
-   private static final int MAX_RECENT_OPERATIONS = 60;
-   private static final int COOKIE_GENERATION_SHIFT = 8;
-   private static final int COOKIE_INDEX_MASK = 0xff;
+   // must be a power of 2
+   private static final int MAX_RECENT_OPERATIONS = 64;
+   private static final int COOKIE_INDEX_MASK = MAX_RECENT_OPERATIONS - 1;
    private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
 
 
-   private final OperationLogEntry[] mOperations = new OperationLogEntry[MAX_RECENT_OPERATIONS];
+   private final AtomicReferenceArray<OperationLogEntry> mOperations =
+       new AtomicReferenceArray<OperationLogEntry>(MAX_RECENT_OPERATIONS);
+
+   /**
+    * cookie of the most recently begun operation
+    */
+   private final AtomicInteger mSequence = new AtomicInteger(0);
 
    private final String appName;
-   private int mIndex;
-   private int mGeneration;
+
+  /**
+   * guards the open and close histograms.
+   * Connections are opened and closed rarely compared to operations.
+   */
+  private final Object mTickMutex = new Object();
+
   /**
-   * Access only within synchronized mOperations
+   * Access only within synchronized mTickMutex
    *
    * tracks the number of opens in the last 65 seconds
    */
@@ -49,7 +68,7 @@ public final class OperationLog {
   private int lastOpenIdx = 0;
 
   /**
-   * Access only within synchronized mOperations
+   * Access only within synchronized mTickMutex
    *
    * tracks the number of closes in the last 65 seconds
    */
@@ -65,87 +84,119 @@ public final class OperationLog {
     * Invoked when AppNameSharedStateContainer becomes empty
     */
    public void clearOperations() {
-      synchronized (mOperations) {
-         for ( int i = 0 ; i < mOperations.length ; ++i ) {
-            mOperations[i] = null;
-         }
+      for ( int i = 0 ; i < MAX_RECENT_OPERATIONS ; ++i ) {
+         mOperations.set(i, null);
       }
    }
 
    public int beginOperation(String sessionQualifier, String kind, String sql, Object[] bindArgs) {
-      synchronized (mOperations) {
-         final int index = (mIndex + 1) % MAX_RECENT_OPERATIONS;
-         OperationLogEntry operation = mOperations[index];
-         if (operation == null) {
-            operation = new OperationLogEntry();
-            mOperations[index] = operation;
-         } else {
-            operation.mFinished = false;
-            operation.mThrowable = null;
-            if (operation.mBindArgs != null) {
-               operation.mBindArgs.clear();
-            }
-         }
-         operation.mSessionQualifier = sessionQualifier;
-         operation.mStartTime = System.currentTimeMillis();
-         operation.mKind = kind;
-         operation.mThreadId = Thread.currentThread().getId();
-         operation.mSql = sql;
-         if (bindArgs != null) {
-            if (operation.mBindArgs == null) {
-               operation.mBindArgs = new ArrayList<Object>();
-            } else {
-               operation.mBindArgs.clear();
-            }
-            for (int i = 0; i < bindArgs.length; i++) {
-               final Object arg = bindArgs[i];
-               if (arg != null && arg instanceof byte[]) {
-                  // Don't hold onto the real byte array longer than necessary.
-                  operation.mBindArgs.add(EMPTY_BYTE_ARRAY);
-               } else {
-                  operation.mBindArgs.add(arg);
-               }
+      return publish(newOperation(sessionQualifier, kind, sql, bindArgs));
+   }
+
+   private static OperationLogEntry newOperation(String sessionQualifier, String kind, String sql,
+       Object[] bindArgs) {
+      OperationLogEntry operation = new OperationLogEntry();
+      operation.mSessionQualifier = sessionQualifier;
+      operation.mStartTime = System.currentTimeMillis();
+      operation.mKind = kind;
+      operation.mThreadId = Thread.currentThread().getId();
+      operation.mSql = sql;
+      if (bindArgs != null) {
+         Object[] args = bindArgs.clone();
+         for (int i = 0; i < args.length; i++) {
+            if (args[i] instanceof byte[]) {
+               // Don't hold onto the real byte array longer than necessary.
+               args[i] = EMPTY_BYTE_ARRAY;
             }
          }
-         operation.mCookie = newOperationCookieLocked(index);
-         mIndex = index;
-         return operation.mCookie;
+         operation.mBindArgs = args;
       }
+      return operation;
+   }
+
+   private int publish(OperationLogEntry operation) {
+      final int cookie = mSequence.incrementAndGet();
+      operation.mCookie = cookie;
+      // publishes the fully-constructed entry
+      mOperations.set(cookie & COOKIE_INDEX_MASK, operation);
+      return cookie;
+   }
+
+   /**
+    * Begin an operation whose description is captured by reference and only
+    * rendered if the operation is described (dumped, failed or logged as a
+    * long-running operation). Avoids building a description string on every call.
+    *
+    * @param sessionQualifier
+    * @param shape      the argument layout of the call
+    * @param callName   e.g., "rawQuery"; must be a constant
+    * @param target     the sql or table name
+    * @param clause     the where clause, selection or nullColumnHack, per the shape
+    * @param hasArgs    whether bind arguments were supplied
+    * @return the cookie of the operation
+    */
+   public int beginCall(String sessionQualifier, OperationLogEntry.CallShape shape,
+       String callName, String target, String clause, boolean hasArgs) {
+      OperationLogEntry operation = newOperation(sessionQualifier, callName, null, null);
+      operation.mCallShape = shape;
+      operation.mCallTarget = target;
+      operation.mCallClause = clause;
+      operation.mCallHasArgs = hasArgs;
+      return publish(operation);
+   }
+
+   /**
+    * As {@link #beginCall} for the query calls.
+    *
+    * @param sessionQualifier
+    * @param callName   e.g., "query"; must be a constant
+    * @param table
+    * @param hasColumns whether a column list was supplied
+    * @param selection
+    * @param hasArgs    whether selection arguments were supplied
+    * @param groupBy
+    * @param having
+    * @param orderBy
+    * @param hasLimit   whether the call takes a limit argument
+    * @param limit
+    * @return the cookie of the operation
+    */
+   public int beginQueryCall(String sessionQualifier, String callName, String table,
+       boolean hasColumns, String selection, boolean hasArgs, String groupBy, String having,
+       String orderBy, boolean hasLimit, String limit) {
+      OperationLogEntry operation = newOperation(sessionQualifier, callName, null, null);
+      operation.mCallShape = hasLimit ?
+          OperationLogEntry.CallShape.QUERY : OperationLogEntry.CallShape.QUERY_NO_LIMIT;
+      operation.mCallTarget = table;
+      operation.mCallClause = selection;
+      operation.mCallHasColumns = hasColumns;
+      operation.mCallHasArgs = hasArgs;
+      operation.mCallGroupBy = groupBy;
+      operation.mCallHaving = having;
+      operation.mCallOrderBy = orderBy;
+      operation.mCallLimit = limit;
+      return publish(operation);
    }
 
    public void failOperation(int cookie, Throwable t) {
-      String logString = null;
-      synchronized (mOperations) {
-         final OperationLogEntry operation = getOperationLocked(cookie);
-         if (operation != null) {
-            operation.mThrowable = t;
-            logString = logOperationLocked(cookie, null);
-         }
-      }
-      if (logString != null) {
+      final OperationLogEntry operation = getOperation(cookie);
+      if (operation != null) {
+         operation.mThrowable = t;
          WebLogger.getLogger(appName).i("operationLog",
-             "failOperation: " + logString);
+             "failOperation: " + describeOperation(operation, null));
       }
    }
 
    public void endOperation(int cookie) {
-      String logString = null;
-      synchronized (mOperations) {
-         if (endOperationDeferLogLocked(cookie)) {
-            logString = logOperationLocked(cookie, null);
-         }
-      }
-      if ( logString != null ) {
+      final OperationLogEntry operation = getOperation(cookie);
+      if (endOperationDeferLog(operation)) {
          WebLogger.getLogger(appName).i("operationLog",
-             "endOperation (long runtime): " + logString);
+             "endOperation (long runtime): " + describeOperation(operation, null));
       }
    }
 
    public void endOperationDeferLogAdditional(int cookie, String logString) {
-      boolean shouldLog = false;
-      synchronized (mOperations) {
-         shouldLog = endOperationDeferLogLocked(cookie);
-      }
+      boolean shouldLog = endOperationDeferLog(getOperation(cookie));
       if ( logString != null && shouldLog ) {
          WebLogger.getLogger(appName).i("operationLog",
              "endOperation (long runtime): " + logString);
@@ -156,7 +207,7 @@ public final class OperationLog {
    * Function to track the number of new connection opens within the last 65 seconds
    */
   public void tickOpen() {
-    synchronized (mOperations) {
+    synchronized (mTickMutex) {
       long now = System.currentTimeMillis();
       int idx = (int) ((now & 0xE000L) >> 13);
 
@@ -173,7 +224,7 @@ public final class OperationLog {
    * Function to track the number of connection closes within the last 65 seconds
    */
   public void tickClose() {
-    synchronized (mOperations) {
+    synchronized (mTickMutex) {
       long now = System.currentTimeMillis();
       int idx = (int) ((now & 0xE000L) >> 13);
 
@@ -187,29 +238,25 @@ public final class OperationLog {
   }
 
    public void logOperation(int cookie, String detail) {
-      String logString = null;
-      synchronized (mOperations) {
-         logString = logOperationLocked(cookie, detail);
-      }
-      if (logString != null) {
-         WebLogger.getLogger(appName).i("operationLog", logString);
+      final OperationLogEntry operation = getOperation(cookie);
+      if (operation != null) {
+         WebLogger.getLogger(appName).i("operationLog", describeOperation(operation, detail));
       }
    }
 
    public String describeCurrentOperation() {
-      synchronized (mOperations) {
-         final OperationLogEntry operation = mOperations[mIndex];
-         if (operation != null && !operation.mFinished) {
-            StringBuilder msg = new StringBuilder();
-            operation.describe(msg, false);
-            return msg.toString();
-         }
-         return null;
+      final OperationLogEntry operation =
+          mOperations.get(mSequence.get() & COOKIE_INDEX_MASK);
+      if (operation != null && !operation.mFinished) {
+         StringBuilder msg = new StringBuilder();
+         operation.describe(msg, false);
+         return msg.toString();
       }
+      return null;
    }
 
    public void dump(StringBuilder b, boolean verbose) {
-      synchronized (mOperations) {
+      synchronized (mTickMutex) {
         //////////////////////////////////////////////////////
         // Display a time histogram of the number of opens and closes
         // in the last 65 seconds.
@@ -240,38 +287,34 @@ public final class OperationLog {
 
         b.append("Total opens: ").append(totalOpens).append(" closes: ").append(totalCloses)
             .append(" currently active: ").append(totalOpens-totalCloses).append("\n\n");
+      }
 
-        b.append("  Most recently executed operations:\n");
-         int index = mIndex;
-         OperationLogEntry operation = mOperations[index];
-         if (operation != null) {
-            int n = 0;
-            do {
-               b.append(" ").append(n).append(": ");
-               operation.describe(b, verbose);
-               b.append("\n");
-               if (index > 0) {
-                  index -= 1;
-               } else {
-                  index = MAX_RECENT_OPERATIONS - 1;
-               }
-               n += 1;
-               operation = mOperations[index];
-            } while (operation != null && n < MAX_RECENT_OPERATIONS);
-         } else {
-            b.append("    <none>\n");
-         }
+      b.append("  Most recently executed operations:\n");
+      // a snapshot; operations begun while dumping may overwrite older slots.
+      int index = mSequence.get() & COOKIE_INDEX_MASK;
+      OperationLogEntry operation = mOperations.get(index);
+      if (operation != null) {
+         int n = 0;
+         do {
+            b.append(" ").append(n).append(": ");
+            operation.describe(b, verbose);
+            b.append("\n");
+            index = (index - 1) & COOKIE_INDEX_MASK;
+            n += 1;
+            operation = mOperations.get(index);
+         } while (operation != null && n < MAX_RECENT_OPERATIONS);
+      } else {
+         b.append("    <none>\n");
       }
    }
 
    /**
-    * This is ONLY called within a synchronized(mOperations){} block.
+    * Mark the operation as finished.
     *
-    * @param cookie
-    * @return
+    * @param operation
+    * @return true if the operation ran long enough that it should be logged.
     */
-   private boolean endOperationDeferLogLocked(int cookie) {
-      final OperationLogEntry operation = getOperationLocked(cookie);
+   private boolean endOperationDeferLog(OperationLogEntry operation) {
       if (operation != null) {
          if ( !operation.mFinished ) {
             operation.mEndTime = System.currentTimeMillis();
@@ -283,14 +326,7 @@ public final class OperationLog {
       return false;
    }
 
-   /**
-    * This is ONLY called within a synchronized(mOperations){} block.
-    *
-    * @param cookie
-    * @param detail
-    */
-   private String logOperationLocked(int cookie, String detail) {
-      final OperationLogEntry operation = getOperationLocked(cookie);
+   private static String describeOperation(OperationLogEntry operation, String detail) {
       StringBuilder msg = new StringBuilder();
       operation.describe(msg, false);
       if (detail != null) {
@@ -300,25 +336,11 @@ public final class OperationLog {
    }
 
    /**
-    * This is ONLY called within a synchronized(mOperations){} block.
-    *
-    * @param index
-    * @return
-    */
-   private int newOperationCookieLocked(int index) {
-      final int generation = mGeneration++;
-      return generation << COOKIE_GENERATION_SHIFT | index;
-   }
-
-   /**
-    * This is ONLY called within a synchronized(mOperations){} block.
-    *
     * @param cookie
-    * @return
+    * @return the entry for the cookie, or null if its slot has been reused.
     */
-   private OperationLogEntry getOperationLocked(int cookie) {
-      final int index = cookie & COOKIE_INDEX_MASK;
-      final OperationLogEntry operation = mOperations[index];
-      return operation.mCookie == cookie ? operation : null;
+   private OperationLogEntry getOperation(int cookie) {
+      final OperationLogEntry operation = mOperations.get(cookie & COOKIE_INDEX_MASK);
+      return (operation != null && operation.mCookie == cookie) ? operation : null;
    }
 }
@@ -18,7 +18,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.Locale;
 
@@ -40,26 +39,66 @@ final class OperationLogEntry {
      b.append(restrictedDateFormat.format(new Date(startTime)));
    }
 
+   /**
+    * The argument layouts of the AndroidOdkConnection calls whose description
+    * is rendered only when the entry is described (see OperationLog.beginCall).
+    */
+   enum CallShape {
+      /** name("sql",args) */
+      SQL_ARGS,
+      /** name("table","whereClause",whereArgs) */
+      TABLE_WHERE_ARGS,
+      /** name("table",values,"whereClause",whereArgs) */
+      TABLE_VALUES_WHERE_ARGS,
+      /** name("table","nullColumnHack",values) */
+      TABLE_HACK_VALUES,
+      /** name("table",columns,"selection",selectionArgs,"groupBy","having","orderBy") */
+      QUERY_NO_LIMIT,
+      /** name("table",columns,"selection",selectionArgs,"groupBy","having","orderBy","limit") */
+      QUERY
+   }
+
+   // set before the entry is published in the OperationLog
    public long mThreadId;
    public String mSessionQualifier;
    public long mStartTime;
-   public long mEndTime;
    public String mKind;
    public String mSql;
-   public ArrayList<Object> mBindArgs;
-   public boolean mFinished;
-   public Throwable mThrowable;
+   public Object[] mBindArgs;
    public int mCookie;
 
+   // the un-rendered call description; null mCallShape if mKind is the full description
+   public CallShape mCallShape;
+   public String mCallTarget;
+   public String mCallClause;
+   public boolean mCallHasColumns;
+   public boolean mCallHasArgs;
+   public String mCallGroupBy;
+   public String mCallHaving;
+   public String mCallOrderBy;
+   public String mCallLimit;
+
+   // set after publication; mEndTime is written before mFinished
+   public long mEndTime;
+   public volatile boolean mFinished;
+   public volatile Throwable mThrowable;
+
    public void describe(StringBuilder msg, boolean verbose) {
-      msg.append(mKind);
-      if (mFinished) {
+      // read mFinished once; it guards mEndTime
+      final boolean finished = mFinished;
+      final Throwable throwable = mThrowable;
+      if (mCallShape == null) {
+         msg.append(mKind);
+      } else {
+         describeCall(msg);
+      }
+      if (finished) {
          msg.append(" took ").append(mEndTime - mStartTime).append("ms");
       } else {
          msg.append(" started ").append(System.currentTimeMillis() - mStartTime)
              .append("ms ago");
       }
-      msg.append(" - ").append(getStatus());
+      msg.append(" - ").append(getStatus(finished, throwable));
       msg.append("\n      threadId:").append(mThreadId)
           .append(", sessionQualifier:").append(mSessionQualifier);
       msg.append(", startTime:");
@@ -68,11 +107,11 @@ final class OperationLogEntry {
          msg.append(", sql=\"")
              .append(AppNameSharedStateContainer.trimSqlForDisplay(mSql)).append("\"");
       }
-      if (verbose && mBindArgs != null && mBindArgs.size() != 0) {
+      if (verbose && mBindArgs != null && mBindArgs.length != 0) {
          msg.append(", bindArgs=[");
-         final int count = mBindArgs.size();
+         final int count = mBindArgs.length;
          for (int i = 0; i < count; i++) {
-            final Object arg = mBindArgs.get(i);
+            final Object arg = mBindArgs[i];
             if (i != 0) {
                msg.append(", ");
             }
@@ -88,15 +127,15 @@ final class OperationLogEntry {
          }
          msg.append("]");
       }
-      if (mThrowable != null) {
-         msg.append("\n      throwable=\"").append(mThrowable.getMessage()).append("\"");
+      if (throwable != null) {
+         msg.append("\n      throwable=\"").append(throwable.getMessage()).append("\"");
          msg.append("\n--------begin stacktrace----------\n");
          {
             ByteArrayOutputStream ba = new ByteArrayOutputStream();
             PrintStream w;
             try {
                w = new PrintStream(ba, false, "UTF-8");
-               mThrowable.printStackTrace(w);
+               throwable.printStackTrace(w);
                w.flush();
                w.close();
                msg.append(ba.toString("UTF-8")).append("\n--------end stacktrace----------");
@@ -108,10 +147,58 @@ final class OperationLogEntry {
       }
    }
 
-   private String getStatus() {
-      if (!mFinished) {
+   private void describeCall(StringBuilder msg) {
+      msg.append(mKind).append("(");
+      appendQuoted(msg, mCallTarget);
+      switch (mCallShape) {
+      case SQL_ARGS:
+         appendPresence(msg, mCallHasArgs);
+         break;
+      case TABLE_WHERE_ARGS:
+         appendQuoted(msg.append(","), mCallClause);
+         appendPresence(msg, mCallHasArgs);
+         break;
+      case TABLE_VALUES_WHERE_ARGS:
+         msg.append(",...");
+         appendQuoted(msg.append(","), mCallClause);
+         appendPresence(msg, mCallHasArgs);
+         break;
+      case TABLE_HACK_VALUES:
+         appendQuoted(msg.append(","), mCallClause);
+         msg.append(",...");
+         break;
+      case QUERY_NO_LIMIT:
+      case QUERY:
+         appendPresence(msg, mCallHasColumns);
+         appendQuoted(msg.append(","), mCallClause);
+         appendPresence(msg, mCallHasArgs);
+         appendQuoted(msg.append(","), mCallGroupBy);
+         appendQuoted(msg.append(","), mCallHaving);
+         appendQuoted(msg.append(","), mCallOrderBy);
+         if (mCallShape == CallShape.QUERY) {
+            appendQuoted(msg.append(","), mCallLimit);
+         }
+         break;
+      }
+      msg.append(")");
+   }
+
+   private static void appendQuoted(StringBuilder msg, String value) {
+      if (value == null) {
+         msg.append("null");
+      } else {
+         msg.append("\"").append(value).append("\"");
+      }
+   }
+
+   private static void appendPresence(StringBuilder msg, boolean present) {
+      msg.append(present ? ",..." : ",null");
+   }
+
+   private static String getStatus(boolean finished, Throwable throwable) {
+      if (!finished) {
          return "running";
       }
-      return mThrowable != null ? "failed" : "succeeded";
+      return throwable != null ? "failed" : "succeeded";
    }
 }
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-appName cache of the table definition revId and table security settings
+ * of each tableId. These are consulted before every query of a user table, but
+ * only change when the table's metadata or schema is changed.
+ * <p/>
+ * Changes are reported by the connection making them (see
+ * {@link OdkConnectionInterface#noteTableMetadataChanged(String)}). A change
+ * made within a transaction is not visible to other connections until that
+ * transaction ends, so the tableId is not re-cached until then: otherwise
+ * another connection could cache the pre-change values while the change is
+ * still pending. The ending of the transaction invalidates the tableId again.
+ * <p/>
+ * Also remembers, for each SQL statement passed to the raw query API, whether
+ * its result set has the columns needed to apply row-level filtering. A schema
+ * change to any table can change the columns of a statement, so these are
+ * dropped whenever any tableId is invalidated.
+ * <p/>
+ * Thread-safe.
+ */
+public final class TableMetadataCache {
+
+  /**
+   * The cached values of a tableId. Immutable.
+   */
+  public static final class Entry {
+    public final String revId;
+    public final boolean isLocked;
+    public final boolean canUnverifiedUserCreateRow;
+    public final String filterTypeOnCreation;
+
+    public Entry(String revId, boolean isLocked, boolean canUnverifiedUserCreateRow,
+        String filterTypeOnCreation) {
+      this.revId = revId;
+      this.isLocked = isLocked;
+      this.canUnverifiedUserCreateRow = canUnverifiedUserCreateRow;
+      this.filterTypeOnCreation = filterTypeOnCreation;
+    }
+  }
+
+  private final Object mutex = new Object();
+
+  /**
+   * Access only within mutex
+   */
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+  /**
+   * Access only within mutex
+   *
+   * Number of open transactions holding uncommitted changes to each tableId.
+   * The null key counts changes to all tableIds.
+   */
+  private final Map<String, Integer> pendingChanges = new HashMap<String, Integer>();
+
+  /**
+   * Access only within mutex
+   *
+   * Incremented on every invalidation. A value read before the invalidation
+   * of its tableId must not be cached.
+   */
+  private long generation = 0L;
+
+  /**
+   * Maximum number of SQL statements whose filter-column check is remembered.
+   */
+  private static final int MAX_FILTER_COLUMN_CHECKS = 256;
+
+  /**
+   * Access only within mutex
+   *
+   * sqlCommand to whether its result set has all of the columns needed to
+   * apply row-level filtering.
+   */
+  private final LinkedHashMap<String, Boolean> filterColumnChecks =
+      new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+          return size() > MAX_FILTER_COLUMN_CHECKS;
+        }
+      };
+
+  private long hitCount = 0L;
+  private long missCount = 0L;
+
+  /**
+   * @param tableId
+   * @return the cached values or null if they must be read from the database.
+   */
+  public Entry get(String tableId) {
+    synchronized (mutex) {
+      Entry e = entries.get(tableId);
+      if (e == null) {
+        ++missCount;
+      } else {
+        ++hitCount;
+      }
+      return e;
+    }
+  }
+
+  /**
+   * Call before reading the values to be cached.
+   *
+   * @return token to pass to {@link #put(String, Entry, long)}
+   */
+  public long getGeneration() {
+    synchronized (mutex) {
+      return generation;
+    }
+  }
+
+  /**
+   * Cache the values read from the database unless they may already be stale.
+   *
+   * @param tableId
+   * @param entry
+   * @param generationBeforeRead value of {@link #getGeneration()} before the values were read
+   */
+  public void put(String tableId, Entry entry, long generationBeforeRead) {
+    synchronized (mutex) {
+      if (generation != generationBeforeRead || pendingChanges.containsKey(tableId) ||
+          pendingChanges.containsKey(null)) {
+        return;
+      }
+      entries.put(tableId, entry);
+    }
+  }
+
+  /**
+   * @param sqlCommand
+   * @return whether the result set of the sqlCommand has the columns needed to
+   * apply row-level filtering, or null if that must be determined from the database.
+   */
+  public Boolean getFilterColumnCheck(String sqlCommand) {
+    synchronized (mutex) {
+      return filterColumnChecks.get(sqlCommand);
+    }
+  }
+
+  /**
+   * Remember whether the result set of the sqlCommand has the columns needed to
+   * apply row-level filtering, unless the schema may have changed since it was
+   * determined.
+   *
+   * @param sqlCommand
+   * @param hasFilterColumns
+   * @param generationBeforeRead value of {@link #getGeneration()} before the columns were read
+   */
+  public void putFilterColumnCheck(String sqlCommand, boolean hasFilterColumns,
+      long generationBeforeRead) {
+    synchronized (mutex) {
+      if (generation != generationBeforeRead || !pendingChanges.isEmpty()) {
+        return;
+      }
+      filterColumnChecks.put(sqlCommand, hasFilterColumns);
+    }
+  }
+
+  /**
+   * Drop the cached values of a tableId and all filter-column checks.
+   *
+   * @param tableId null to drop all tableIds
+   */
+  public void invalidate(String tableId) {
+    synchronized (mutex) {
+      ++generation;
+      if (tableId == null) {
+        entries.clear();
+      } else {
+        entries.remove(tableId);
+      }
+      filterColumnChecks.clear();
+    }
+  }
+
+  /**
+   * Drop the cached values of a tableId and do not cache them again until
+   * {@link #endPendingChange(String)} is called for it.
+   *
+   * @param tableId null for all tableIds
+   */
+  void beginPendingChange(String tableId) {
+    synchronized (mutex) {
+      Integer count = pendingChanges.get(tableId);
+      pendingChanges.put(tableId, (count == null) ? 1 : count + 1);
+      invalidate(tableId);
+    }
+  }
+
+  /**
+   * The transaction holding a change to the tableId has ended.
+   *
+   * @param tableId null for all tableIds
+   */
+  void endPendingChange(String tableId) {
+    synchronized (mutex) {
+      Integer count = pendingChanges.get(tableId);
+      if (count == null || count <= 1) {
+        pendingChanges.remove(tableId);
+      } else {
+        pendingChanges.put(tableId, count - 1);
+      }
+      invalidate(tableId);
+    }
+  }
+
+  public void dump(StringBuilder b) {
+    synchronized (mutex) {
+      b.append("tables ").append(entries.size())
+          .append(" hits ").append(hitCount)
+          .append(" misses ").append(missCount)
+          .append(" pendingChanges ").append(pendingChanges.size())
+          .append(" filterColumnChecks ").append(filterColumnChecks.size())
+          .append("\n");
+    }
+  }
+}
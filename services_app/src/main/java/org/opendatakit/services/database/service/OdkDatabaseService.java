@@ -31,8 +31,8 @@ public class OdkDatabaseService extends Service {
   private static final String LOGTAG = OdkDatabaseService.class.getSimpleName();
 
   // A place to store pieces of large tables or other return values that won't fit across the
-  // AIDL call
-  private Map<UUID, DbChunk> parceledChunks;
+  // AIDL call. Bounded in size and time so abandoned results do not accumulate.
+  private ParceledChunkStore parceledChunks;
 
   /**
    * change to true expression if you want to debug the database service
@@ -49,7 +49,7 @@ public class OdkDatabaseService extends Service {
   @Override
   public void onCreate() {
     super.onCreate();
-    parceledChunks = new HashMap<>();
+    parceledChunks = new ParceledChunkStore();
     servInterface = new OdkDatabaseServiceInterface(this);
     AndroidConnectFactory.configure();
   }
@@ -60,7 +60,7 @@ public class OdkDatabaseService extends Service {
     Log.i(LOGTAG, "onBind -- returning interface.");
 
     if (parceledChunks == null) {
-      parceledChunks = new HashMap<>();
+      parceledChunks = new ParceledChunkStore();
     }
 
     return servInterface; 
@@ -76,7 +76,7 @@ public class OdkDatabaseService extends Service {
     // this may be too aggressive, but ensures that WebLogger is released.
     WebLogger.closeAll();
 
-    parceledChunks = null;
+    logAndClearParceledChunks();
 
     return false;
   }
@@ -90,7 +90,18 @@ public class OdkDatabaseService extends Service {
     // this may be too aggressive, but ensures that WebLogger is released.
     WebLogger.closeAll();
 
+    logAndClearParceledChunks();
+  }
+
+  private void logAndClearParceledChunks() {
+    ParceledChunkStore store = parceledChunks;
     parceledChunks = null;
+    if (store != null) {
+      StringBuilder b = new StringBuilder();
+      store.dump(b);
+      Log.i(LOGTAG, b.toString());
+      store.clear();
+    }
   }
 
   /**
@@ -104,7 +115,7 @@ public class OdkDatabaseService extends Service {
       return;
     }
 
-    parceledChunks.put(parceledChunk.getThisID(), parceledChunk);
+    parceledChunks.put(parceledChunk);
   }
 
   /**
@@ -118,9 +129,8 @@ public class OdkDatabaseService extends Service {
       return;
     }
 
-    for(DbChunk chunk: chunkList) {
-      parceledChunks.put(chunk.getThisID(), chunk);
-    }
+    // stored together so that the chunks of this result do not evict one another
+    parceledChunks.putAll(chunkList);
   }
 
   /**
@@ -128,6 +138,7 @@ public class OdkDatabaseService extends Service {
    *
    * @param id The look up key
    * @return The chunk
+   * @throws ParceledChunkStore.ChunkEvictedException if the chunk was dropped before retrieval
    */
   public DbChunk getParceledChunk(UUID id) {
     return parceledChunks.get(id);
@@ -138,6 +149,7 @@ public class OdkDatabaseService extends Service {
    *
    * @param id The look up key
    * @return The chunk
+   * @throws ParceledChunkStore.ChunkEvictedException if the chunk was dropped before retrieval
    */
   public DbChunk removeParceledChunk(UUID id) {
     return parceledChunks.remove(id);
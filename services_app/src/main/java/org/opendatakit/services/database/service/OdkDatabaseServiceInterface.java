@@ -1963,7 +1963,14 @@ class OdkDatabaseServiceInterface extends AidlDbInterface.Stub {
 
 
   @Override public DbChunk getChunk(ParcelUuid chunkID) {
-    return odkDatabaseService.removeParceledChunk(chunkID.getUuid());
+    try {
+      return odkDatabaseService.removeParceledChunk(chunkID.getUuid());
+    } catch (ParceledChunkStore.ChunkEvictedException e) {
+      // distinguishable on the client side from a plain missing (null) chunk
+      Log.w(TAG, e.getMessage());
+      throw new IllegalStateException("org.opendatakit|" + e.getClass().getName() + ": " +
+          e.getMessage());
+    }
   }
 
   private DbChunk getAndCacheChunks(Parcelable data) {
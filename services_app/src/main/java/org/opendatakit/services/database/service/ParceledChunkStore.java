@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database.service;
+
+import android.os.SystemClock;
+
+import org.opendatakit.database.service.DbChunk;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Holds the DbChunks of large return values that have not yet been retrieved by the client.
+ * <p/>
+ * If a client dies or abandons a result mid-stream, its chunks would otherwise remain on the
+ * service heap until the service is unbound. To bound that:
+ * <ul>
+ *   <li>the total size of the held chunks is limited to a byte budget, evicting the
+ *   least-recently-stored chunks first when it is exceeded. The chunks of the result
+ *   being stored are never evicted to make room for themselves, so a single result
+ *   larger than the budget is held in full (and is the first to go on the next put),</li>
+ *   <li>chunks expire after a time-to-live.</li>
+ * </ul>
+ * The ids of recently evicted or expired chunks are remembered so that a client asking for one
+ * gets a {@link ChunkEvictedException} rather than an unexplained null.
+ * <p/>
+ * Thread-safe; binder calls arrive on multiple threads.
+ */
+public class ParceledChunkStore {
+
+  /**
+   * Thrown when a client requests a chunk that was dropped from the store
+   * because of the byte budget or its time-to-live.
+   */
+  public static class ChunkEvictedException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    public ChunkEvictedException(String message) {
+      super(message);
+    }
+  }
+
+  public static final long DEFAULT_MAX_BYTES = 16L * 1024L * 1024L;
+  public static final long DEFAULT_TTL_MILLISECONDS = 5L * 60L * 1000L;
+
+  /**
+   * Number of evicted chunk ids to remember.
+   */
+  private static final int MAX_EVICTED_IDS = 1024;
+
+  private static final class Entry {
+    final DbChunk chunk;
+    final long bytes;
+    final long expiresAt;
+
+    Entry(DbChunk chunk, long bytes, long expiresAt) {
+      this.chunk = chunk;
+      this.bytes = bytes;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private final long maxBytes;
+  private final long ttlMilliseconds;
+
+  // insertion-ordered, so the eldest entry is the least-recently-stored chunk
+  private final LinkedHashMap<UUID, Entry> chunks = new LinkedHashMap<>();
+
+  private final LinkedHashMap<UUID, Boolean> evictedIds =
+      new LinkedHashMap<UUID, Boolean>() {
+        @Override protected boolean removeEldestEntry(Map.Entry<UUID, Boolean> eldest) {
+          return size() > MAX_EVICTED_IDS;
+        }
+      };
+
+  private long totalBytes = 0L;
+
+  private long hitCount = 0L;
+  private long missCount = 0L;
+  private long evictedMissCount = 0L;
+  private long evictionCount = 0L;
+  private long expirationCount = 0L;
+
+  public ParceledChunkStore() {
+    this(DEFAULT_MAX_BYTES, DEFAULT_TTL_MILLISECONDS);
+  }
+
+  /**
+   * @param maxBytes        total size of the chunks that may be held
+   * @param ttlMilliseconds how long an un-fetched chunk is held
+   */
+  public ParceledChunkStore(long maxBytes, long ttlMilliseconds) {
+    if (maxBytes <= 0L || ttlMilliseconds <= 0L) {
+      throw new IllegalArgumentException("maxBytes and ttlMilliseconds must be positive");
+    }
+    this.maxBytes = maxBytes;
+    this.ttlMilliseconds = ttlMilliseconds;
+  }
+
+  private static long sizeOf(DbChunk chunk) {
+    byte[] data = chunk.getData();
+    return (data == null) ? 0L : data.length;
+  }
+
+  private void dropEntry(UUID id, Entry entry) {
+    totalBytes -= entry.bytes;
+    evictedIds.put(id, Boolean.TRUE);
+  }
+
+  /**
+   * @return the current time on the clock used for expiration (overridden by tests)
+   */
+  long elapsedRealtime() {
+    return SystemClock.elapsedRealtime();
+  }
+
+  private void purgeExpired(long now) {
+    Iterator<Map.Entry<UUID, Entry>> it = chunks.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<UUID, Entry> e = it.next();
+      if (e.getValue().expiresAt > now) {
+        // entries are in insertion order and share the same TTL
+        break;
+      }
+      it.remove();
+      dropEntry(e.getKey(), e.getValue());
+      ++expirationCount;
+    }
+  }
+
+  private void evictToBudget(Set<UUID> exempt) {
+    Iterator<Map.Entry<UUID, Entry>> it = chunks.entrySet().iterator();
+    while (totalBytes > maxBytes && it.hasNext()) {
+      Map.Entry<UUID, Entry> e = it.next();
+      if (exempt.contains(e.getKey())) {
+        continue;
+      }
+      it.remove();
+      dropEntry(e.getKey(), e.getValue());
+      ++evictionCount;
+    }
+  }
+
+  /**
+   * Store a chunk for later retrieval.
+   *
+   * @param chunk
+   */
+  public void put(DbChunk chunk) {
+    putAll(Collections.singletonList(chunk));
+  }
+
+  /**
+   * Store the chunks of one result for later retrieval. Older results are evicted
+   * to bring the store within its byte budget; these chunks are not.
+   *
+   * @param chunkList
+   */
+  public synchronized void putAll(List<DbChunk> chunkList) {
+    long now = elapsedRealtime();
+    purgeExpired(now);
+
+    Set<UUID> stored = new HashSet<UUID>();
+    for (DbChunk chunk : chunkList) {
+      UUID id = chunk.getThisID();
+      Entry old = chunks.remove(id);
+      if (old != null) {
+        totalBytes -= old.bytes;
+      }
+      evictedIds.remove(id);
+
+      Entry entry = new Entry(chunk, sizeOf(chunk), now + ttlMilliseconds);
+      chunks.put(id, entry);
+      totalBytes += entry.bytes;
+      stored.add(id);
+    }
+    evictToBudget(stored);
+  }
+
+  /**
+   * Retrieve a chunk without removing it.
+   *
+   * @param id
+   * @return the chunk or null if it was never stored (or was already retrieved)
+   * @throws ChunkEvictedException if the chunk was evicted or expired
+   */
+  public synchronized DbChunk get(UUID id) {
+    purgeExpired(elapsedRealtime());
+    Entry entry = chunks.get(id);
+    return recordLookup(id, entry);
+  }
+
+  /**
+   * Retrieve and remove a chunk.
+   *
+   * @param id
+   * @return the chunk or null if it was never stored (or was already retrieved)
+   * @throws ChunkEvictedException if the chunk was evicted or expired
+   */
+  public synchronized DbChunk remove(UUID id) {
+    purgeExpired(elapsedRealtime());
+    Entry entry = chunks.remove(id);
+    if (entry != null) {
+      totalBytes -= entry.bytes;
+    }
+    return recordLookup(id, entry);
+  }
+
+  private DbChunk recordLookup(UUID id, Entry entry) {
+    if (entry != null) {
+      ++hitCount;
+      return entry.chunk;
+    }
+    ++missCount;
+    if (evictedIds.remove(id) != null) {
+      ++evictedMissCount;
+      throw new ChunkEvictedException("chunk " + id.toString() +
+          " was evicted from the service before it was retrieved");
+    }
+    return null;
+  }
+
+  /**
+   * Drop everything.
+   */
+  public synchronized void clear() {
+    chunks.clear();
+    evictedIds.clear();
+    totalBytes = 0L;
+  }
+
+  public synchronized int getChunkCount() {
+    return chunks.size();
+  }
+
+  public synchronized long getTotalBytes() {
+    return totalBytes;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  public synchronized long getEvictedMissCount() {
+    return evictedMissCount;
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  public synchronized long getExpirationCount() {
+    return expirationCount;
+  }
+
+  public synchronized void dump(StringBuilder b) {
+    b.append("ParceledChunkStore: ").append(chunks.size()).append(" chunks, ")
+        .append(totalBytes).append(" of ").append(maxBytes).append(" bytes")
+        .append(", hits=").append(hitCount)
+        .append(", misses=").append(missCount)
+        .append(" (evicted=").append(evictedMissCount).append(")")
+        .append(", evictions=").append(evictionCount)
+        .append(", expirations=").append(expirationCount);
+  }
+}
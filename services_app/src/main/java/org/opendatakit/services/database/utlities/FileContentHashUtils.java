@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.database.utlities;
+
+import android.database.Cursor;
+
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.services.database.InternalUseConnectionSession;
+import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Persistent cache of the MD5 hashes of files under the app folder.
+ * <p>
+ * Computing the hash of a file reads every byte of it. Sync compares the hash of
+ * every config file and attachment against the server's manifest on every sync,
+ * so without a cache every byte of media is re-read from flash each time.
+ * <p>
+ * A cached hash is returned only while the file's length and last-modified time
+ * match those recorded when the hash was computed; otherwise the hash is
+ * recomputed and the entry replaced. Modification times have a coarse
+ * resolution, so a file that was modified just before it was hashed could be
+ * rewritten with the same length and the same last-modified time. Such a hash
+ * is not cached (see {@link #MODIFICATION_TIME_RESOLUTION_MILLISECONDS}).
+ * <p>
+ * The cache lives in the app database alongside the sync ETags table.
+ */
+public class FileContentHashUtils {
+  private static final String TAG = "FileContentHashUtils";
+
+  public static final String FILE_CONTENT_HASHES_TABLE_NAME = "_file_content_hashes";
+
+  /**
+   * Path of the file; relative to the app folder if the file is under it.
+   */
+  public static final String PATH = "_path";
+  public static final String FILE_LENGTH = "_file_length";
+  public static final String LAST_MODIFIED = "_last_modified";
+  public static final String MD5_HASH = "_md5_hash";
+
+  /**
+   * Resolution of file last-modified times on the storage holding the app folder
+   * (1 second on ext4 as reported by java.io.File, 2 seconds on FAT). A hash
+   * computed less than this long after the file was last modified is not cached.
+   */
+  public static final long MODIFICATION_TIME_RESOLUTION_MILLISECONDS = 2000L;
+
+  private static final String K_SELECT = "SELECT " + FILE_LENGTH + "," + LAST_MODIFIED + ","
+      + MD5_HASH + " FROM " + FILE_CONTENT_HASHES_TABLE_NAME + " WHERE " + PATH + "=?";
+
+  private static final String K_REPLACE = "INSERT OR REPLACE INTO "
+      + FILE_CONTENT_HASHES_TABLE_NAME + " (" + PATH + "," + FILE_LENGTH + "," + LAST_MODIFIED
+      + "," + MD5_HASH + ") VALUES (?,?,?,?)";
+
+  private static final String K_DELETE = "DELETE FROM " + FILE_CONTENT_HASHES_TABLE_NAME
+      + " WHERE " + PATH + "=?";
+
+  public static String getTableCreateSql() {
+    //@formatter:off
+    return "CREATE TABLE IF NOT EXISTS " + FILE_CONTENT_HASHES_TABLE_NAME + " ("
+        + PATH + " TEXT NOT NULL PRIMARY KEY, "
+        + FILE_LENGTH + " INTEGER NOT NULL, "
+        + LAST_MODIFIED + " INTEGER NOT NULL, "
+        + MD5_HASH + " TEXT NOT NULL)";
+    //@formatter:on
+  }
+
+  /**
+   * For ease of mocking...
+   */
+  public FileContentHashUtils() {
+  }
+
+  private static String pathKey(String appName, File file) {
+    if (ODKFileUtils.isPathUnderAppName(appName, file)) {
+      return ODKFileUtils.asRelativePath(appName, file);
+    }
+    return file.getAbsolutePath();
+  }
+
+  /**
+   * @param file
+   * @param length         length of the file before it was hashed
+   * @param lastModified   last-modified time of the file before it was hashed
+   * @param hashedAt       time at which the hashing started
+   * @return true if the hash can be cached: the file was not changed while it
+   * was read nor modified within the timestamp resolution before it was read.
+   */
+  private static boolean isCacheable(File file, long length, long lastModified, long hashedAt) {
+    return file.isFile() && file.length() == length && file.lastModified() == lastModified &&
+        hashedAt - lastModified >= MODIFICATION_TIME_RESOLUTION_MILLISECONDS;
+  }
+
+  /**
+   * Return the MD5 hash of the file, as computed by ODKFileUtils.getMd5Hash,
+   * using the cached value if the file is unchanged.
+   *
+   * @param db
+   * @param appName
+   * @param file
+   * @return the hash
+   */
+  public String getMd5Hash(OdkConnectionInterface db, String appName, File file) {
+    String path = pathKey(appName, file);
+    long length = file.length();
+    long lastModified = file.lastModified();
+
+    Cursor c = null;
+    try {
+      c = db.rawQuery(K_SELECT, new Object[] { path });
+      if (c.moveToFirst()) {
+        if (c.getLong(0) == length && c.getLong(1) == lastModified && !c.isNull(2)) {
+          return c.getString(2);
+        }
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+
+    long hashedAt = System.currentTimeMillis();
+    String md5Hash = ODKFileUtils.getMd5Hash(appName, file);
+    if (isCacheable(file, length, lastModified, hashedAt)) {
+      db.execSQL(K_REPLACE, new Object[] { path, length, lastModified, md5Hash });
+    }
+    return md5Hash;
+  }
+
+  /**
+   * Record the hash of a file the caller has just written and verified (e.g., a
+   * download checked against the md5 hash in the server's manifest). Unlike
+   * {@link #getMd5Hash(OdkConnectionInterface, String, File)}, the hash is cached
+   * even though the file was just modified; the caller is the only writer of the
+   * file.
+   *
+   * @param db
+   * @param appName
+   * @param file
+   * @param md5Hash the hash of the file content, as computed by ODKFileUtils.getMd5Hash
+   */
+  public void putMd5Hash(OdkConnectionInterface db, String appName, File file, String md5Hash) {
+    db.execSQL(K_REPLACE, new Object[] { pathKey(appName, file), file.length(),
+        file.lastModified(), md5Hash });
+  }
+
+  /**
+   * Forget the hash of a file.
+   *
+   * @param db
+   * @param appName
+   * @param file
+   */
+  public void invalidate(OdkConnectionInterface db, String appName, File file) {
+    db.execSQL(K_DELETE, new Object[] { pathKey(appName, file) });
+  }
+
+  /**
+   * Bulk warm-up pass. Hash every file under the given folder that is not already
+   * cached, and drop the entries of files under that folder that no longer exist.
+   * The files are read outside of any transaction; the cache is then updated in
+   * a single transaction.
+   *
+   * @param db
+   * @param appName
+   * @param folder
+   * @return the number of files whose hash had to be computed
+   */
+  public int warmUp(OdkConnectionInterface db, String appName, File folder) {
+    List<File> files = new ArrayList<File>();
+    LinkedList<File> toScan = new LinkedList<File>();
+    toScan.add(folder);
+    while (!toScan.isEmpty()) {
+      File dir = toScan.removeFirst();
+      File[] contents = dir.listFiles();
+      if (contents == null) {
+        continue;
+      }
+      for (File f : contents) {
+        if (f.isDirectory()) {
+          toScan.add(f);
+        } else if (f.isFile()) {
+          files.add(f);
+        }
+      }
+    }
+
+    // gather the existing entries under this folder
+    String prefix = pathKey(appName, folder);
+    String likePrefix = prefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    likePrefix = likePrefix + (likePrefix.length() == 0 || likePrefix.endsWith("/") ? "" : "/")
+        + "%";
+    HashSet<String> stale = new HashSet<String>();
+    HashSet<String> cached = new HashSet<String>();
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT " + PATH + "," + FILE_LENGTH + "," + LAST_MODIFIED + " FROM "
+          + FILE_CONTENT_HASHES_TABLE_NAME + " WHERE " + PATH + " LIKE ? ESCAPE ?",
+          new Object[] { likePrefix, "\\" });
+      while (c.moveToNext()) {
+        stale.add(c.getString(0));
+        File f = ODKFileUtils.isPathUnderAppName(appName, folder) ?
+            ODKFileUtils.asAppFile(appName, c.getString(0)) : new File(c.getString(0));
+        if (f.length() == c.getLong(1) && f.lastModified() == c.getLong(2)) {
+          cached.add(c.getString(0));
+        }
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+
+    // hash the new and changed files without holding a transaction open
+    int computed = 0;
+    List<Object[]> entries = new ArrayList<Object[]>();
+    for (File f : files) {
+      String path = pathKey(appName, f);
+      stale.remove(path);
+      if (!cached.contains(path)) {
+        long length = f.length();
+        long lastModified = f.lastModified();
+        long hashedAt = System.currentTimeMillis();
+        String md5Hash = ODKFileUtils.getMd5Hash(appName, f);
+        ++computed;
+        if (isCacheable(f, length, lastModified, hashedAt)) {
+          entries.add(new Object[] { path, length, lastModified, md5Hash });
+        }
+      }
+    }
+
+    if (entries.isEmpty() && stale.isEmpty()) {
+      return computed;
+    }
+
+    boolean inTransaction = db.inTransaction();
+    try {
+      if (!inTransaction) {
+        db.beginTransactionNonExclusive();
+      }
+
+      for (Object[] entry : entries) {
+        db.execSQL(K_REPLACE, entry);
+      }
+
+      for (String path : stale) {
+        db.execSQL(K_DELETE, new Object[] { path });
+      }
+
+      if (!inTransaction) {
+        db.setTransactionSuccessful();
+      }
+    } finally {
+      if (!inTransaction) {
+        db.endTransaction();
+      }
+    }
+    return computed;
+  }
+
+  /**
+   * The hash cache for code that does not otherwise hold a database connection
+   * (e.g., the sync process). All the lookups made while comparing local files
+   * against the server's manifests share the connection of one
+   * {@link InternalUseConnectionSession}, rather than opening a connection per
+   * file. Falls back to hashing the file directly if the database is not available.
+   * <p>
+   * Thread-safe.
+   */
+  public static class HashCacheSession {
+    private final InternalUseConnectionSession session;
+    private final String appName;
+    private final FileContentHashUtils hashUtils = new FileContentHashUtils();
+
+    public HashCacheSession(InternalUseConnectionSession session) {
+      this.session = session;
+      this.appName = session.getAppName();
+    }
+
+    private OdkConnectionInterface getConnection() {
+      return session.getConnection();
+    }
+
+    /**
+     * @param file
+     * @return the MD5 hash of the file
+     */
+    public String getMd5Hash(File file) {
+      OdkConnectionInterface connection = getConnection();
+      if (connection != null) {
+        try {
+          return hashUtils.getMd5Hash(connection, appName, file);
+        } catch (Exception e) {
+          WebLogger.getLogger(appName).w(TAG, "hash cache lookup failed: " + e.toString());
+        }
+      }
+      return ODKFileUtils.getMd5Hash(appName, file);
+    }
+
+    /**
+     * Record the hash of a file that was just written and verified.
+     * See {@link FileContentHashUtils#putMd5Hash(OdkConnectionInterface, String, File, String)}.
+     *
+     * @param file
+     * @param md5Hash
+     */
+    public void putMd5Hash(File file, String md5Hash) {
+      OdkConnectionInterface connection = getConnection();
+      if (connection != null) {
+        try {
+          hashUtils.putMd5Hash(connection, appName, file, md5Hash);
+        } catch (Exception e) {
+          WebLogger.getLogger(appName).w(TAG, "hash cache update failed: " + e.toString());
+        }
+      }
+    }
+
+    /**
+     * Forget the hash of a file that is being replaced.
+     *
+     * @param file
+     */
+    public void invalidate(File file) {
+      OdkConnectionInterface connection = getConnection();
+      if (connection != null) {
+        try {
+          hashUtils.invalidate(connection, appName, file);
+        } catch (Exception e) {
+          WebLogger.getLogger(appName).w(TAG, "hash cache update failed: " + e.toString());
+        }
+      }
+    }
+
+    /**
+     * Hash the new and changed files under a folder ahead of their lookups.
+     * See {@link FileContentHashUtils#warmUp(OdkConnectionInterface, String, File)}.
+     *
+     * @param folder
+     */
+    public void warmUp(File folder) {
+      OdkConnectionInterface connection = getConnection();
+      if (connection != null) {
+        try {
+          int computed = hashUtils.warmUp(connection, appName, folder);
+          WebLogger.getLogger(appName).i(TAG, "hash cache warm-up of " + folder.getName()
+              + " hashed " + computed + " files");
+        } catch (Exception e) {
+          WebLogger.getLogger(appName).w(TAG, "hash cache warm-up failed: " + e.toString());
+        }
+      }
+    }
+  }
+}
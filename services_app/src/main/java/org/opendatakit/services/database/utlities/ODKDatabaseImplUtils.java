@@ -44,6 +44,7 @@ import org.opendatakit.exception.ActionNotAuthorizedException;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.services.database.AndroidConnectFactory;
 import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.TableMetadataCache;
 import org.opendatakit.utilities.DataHelper;
 import org.opendatakit.utilities.LocalizationUtils;
 import org.opendatakit.utilities.ODKFileUtils;
@@ -421,21 +422,8 @@ public class ODKDatabaseImplUtils {
       throw new IllegalArgumentException("tableId can be null but cannot be blank");
     }
 
-    Boolean isLocked = false;
-    {
-      ArrayList<KeyValueStoreEntry> lockedList = this
-          .getTableMetadata(db, tableId, KeyValueStoreConstants.PARTITION_TABLE,
-              LocalKeyValueStoreConstants.TableSecurity.ASPECT,
-              LocalKeyValueStoreConstants.TableSecurity.KEY_LOCKED).getEntries();
-
-      if (lockedList.size() != 0) {
-        if (lockedList.size() != 1) {
-          throw new IllegalStateException("should be impossible");
-        }
-
-        isLocked = KeyValueStoreUtils.getBoolean(db.getAppName(), lockedList.get(0));
-      }
-    }
+    TableMetadataCache.Entry tableMetadata = getCachedTableMetadata(db, tableId);
+    boolean isLocked = tableMetadata.isLocked;
 
     AccessColumnType accessColumnType = (isLocked ?
         AccessColumnType.LOCKED_EFFECTIVE_ACCESS_COLUMN :
@@ -448,19 +436,7 @@ public class ODKDatabaseImplUtils {
     } else if ( rolesList == null ) {
       // this is the unverified user case. By default, they can create rows.
       // Administrator can use table properties to manage that capability.
-      canCreateRow = true;
-      ArrayList<KeyValueStoreEntry> canUnverifiedCreateList = this.getTableMetadata(db, tableId,
-          KeyValueStoreConstants.PARTITION_TABLE,
-          LocalKeyValueStoreConstants.TableSecurity.ASPECT,
-          LocalKeyValueStoreConstants.TableSecurity.KEY_UNVERIFIED_USER_CAN_CREATE).getEntries();
-
-      if ( canUnverifiedCreateList.size() != 0 ) {
-        if ( canUnverifiedCreateList.size() != 1 ) {
-          throw new IllegalStateException("should be impossible");
-        }
-
-        canCreateRow = KeyValueStoreUtils.getBoolean(db.getAppName(), canUnverifiedCreateList.get(0));
-      }
+      canCreateRow = tableMetadata.canUnverifiedUserCreateRow;
     } else {
       canCreateRow = true;
     }
@@ -542,56 +518,61 @@ public class ODKDatabaseImplUtils {
   public Cursor rawQuery(OdkConnectionInterface db, String sqlCommand, Object[] selectionArgs,
       QueryBounds sqlQueryBounds, AccessContext accessContext) {
 
-    Cursor c = db.rawQuery(sqlCommand + " LIMIT 1", selectionArgs);
-    if (c.moveToFirst() ) {
-      // see if we have the columns needed to apply row-level filtering
-      boolean hasFilterType = c.getColumnIndex(DataTableColumns.FILTER_TYPE) != -1;
-      boolean hasFilterValue = c.getColumnIndex(DataTableColumns.FILTER_VALUE) != -1;
-      boolean hasSyncState = c.getColumnIndex(DataTableColumns.SYNC_STATE) != -1;
-      c.close();
-
-      if ( !(hasFilterType && hasFilterValue && hasSyncState) ) {
-        // nope. we require all 3 to apply row-level filtering
+    TableMetadataCache cache = db.getTableMetadataCache();
+    Boolean hasFilterColumns = cache.getFilterColumnCheck(sqlCommand);
 
-        // no need to filter this resultset
-        String sql = applyQueryBounds(sqlCommand, sqlQueryBounds);
-        c = db.rawQuery(sql, selectionArgs);
-        return c;
+    if ( hasFilterColumns == null ) {
+      // the column names are reported even when no rows are returned,
+      // so learn them without executing the query itself.
+      long generation = cache.getGeneration();
+      Cursor c = db.rawQuery("SELECT * FROM (" + sqlCommand + ") LIMIT 0", selectionArgs);
+      try {
+        // see if we have the columns needed to apply row-level filtering
+        boolean hasFilterType = c.getColumnIndex(DataTableColumns.FILTER_TYPE) != -1;
+        boolean hasFilterValue = c.getColumnIndex(DataTableColumns.FILTER_VALUE) != -1;
+        boolean hasSyncState = c.getColumnIndex(DataTableColumns.SYNC_STATE) != -1;
+        // we require all 3 to apply row-level filtering
+        hasFilterColumns = hasFilterType && hasFilterValue && hasSyncState;
+      } finally {
+        c.close();
       }
+      cache.putFilterColumnCheck(sqlCommand, hasFilterColumns, generation);
+    }
 
-      // augment query result list with the effective access controls for the row ("r", "rw", or "rwd")
-      StringBuilder b = new StringBuilder();
-      ArrayList<Object> wrappedSqlArgs = new ArrayList<Object>();
-
-      b.append("SELECT *");
-      buildAccessRights(b, wrappedSqlArgs, accessContext);
-      b.append(" FROM (").append(sqlCommand).append(") AS T");
-      if ( selectionArgs != null ) {
-        Collections.addAll(wrappedSqlArgs, selectionArgs);
-      }
-      // apply row-level visibility filter only if we are not privileged
-      // privileged users see everything.
-      if ( !accessContext.isPrivilegedUser ) {
-        b.append(" WHERE T.")
-            .append(DataTableColumns.FILTER_TYPE)
-            .append(" != \"").append(RowFilterScope.Type.HIDDEN.name()).append("\" OR T.")
-            .append(DataTableColumns.SYNC_STATE)
-            .append(" = \"").append(SyncState.new_row.name()).append("\"");
-        if (!accessContext.isUnverifiedUser && accessContext.activeUser != null &&
-            accessContext.hasRole(RoleConsts.ROLE_USER)) {
-          // visible if activeUser matches the filter value
-          b.append(" OR T.").append(DataTableColumns.FILTER_VALUE).append(" = ?");
-          wrappedSqlArgs.add(accessContext.activeUser);
-        }
+    if ( !hasFilterColumns ) {
+      // no need to filter this resultset
+      String sql = applyQueryBounds(sqlCommand, sqlQueryBounds);
+      return db.rawQuery(sql, selectionArgs);
+    }
+
+    // augment query result list with the effective access controls for the row ("r", "rw", or "rwd")
+    StringBuilder b = new StringBuilder();
+    ArrayList<Object> wrappedSqlArgs = new ArrayList<Object>();
+
+    b.append("SELECT *");
+    buildAccessRights(b, wrappedSqlArgs, accessContext);
+    b.append(" FROM (").append(sqlCommand).append(") AS T");
+    if ( selectionArgs != null ) {
+      Collections.addAll(wrappedSqlArgs, selectionArgs);
+    }
+    // apply row-level visibility filter only if we are not privileged
+    // privileged users see everything.
+    if ( !accessContext.isPrivilegedUser ) {
+      b.append(" WHERE T.")
+          .append(DataTableColumns.FILTER_TYPE)
+          .append(" != \"").append(RowFilterScope.Type.HIDDEN.name()).append("\" OR T.")
+          .append(DataTableColumns.SYNC_STATE)
+          .append(" = \"").append(SyncState.new_row.name()).append("\"");
+      if (!accessContext.isUnverifiedUser && accessContext.activeUser != null &&
+          accessContext.hasRole(RoleConsts.ROLE_USER)) {
+        // visible if activeUser matches the filter value
+        b.append(" OR T.").append(DataTableColumns.FILTER_VALUE).append(" = ?");
+        wrappedSqlArgs.add(accessContext.activeUser);
       }
-      String wrappedSql = b.toString();
-      String limitAppliedSql = applyQueryBounds(wrappedSql, sqlQueryBounds);
-      c = db.rawQuery(limitAppliedSql, wrappedSqlArgs.toArray());
-      return c;
-    } else {
-      // cursor is empty!
-      return c;
     }
+    String wrappedSql = b.toString();
+    String limitAppliedSql = applyQueryBounds(wrappedSql, sqlQueryBounds);
+    return db.rawQuery(limitAppliedSql, wrappedSqlArgs.toArray());
   }
 
   /**
@@ -788,7 +769,7 @@ public class ODKDatabaseImplUtils {
     table.setEffectiveAccessCreateRow(canCreateRow);
 
     if (tableId != null) {
-      table.setMetaDataRev(getTableDefinitionRevId(db, tableId));
+      table.setMetaDataRev(getCachedTableMetadata(db, tableId).revId);
     }
     return table;
   }
@@ -1360,6 +1341,7 @@ public class ODKDatabaseImplUtils {
 
         db.delete(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME, whereClause, whereArgs);
       }
+      db.noteTableMetadataChanged(tableId);
 
       if (!dbWithinTransaction) {
         db.setTransactionSuccessful();
@@ -1774,6 +1756,7 @@ public class ODKDatabaseImplUtils {
       // of this table's metadata that they are dirty.
       db.update(DatabaseConstants.TABLE_DEFS_TABLE_NAME, metadataRev,
           K_TABLE_DEFS_TABLE_ID_EQUALS_PARAM, new Object[] {e.tableId});
+      db.noteTableMetadataChanged(e.tableId);
 
       if (!dbWithinTransaction) {
         db.setTransactionSuccessful();
@@ -1808,6 +1791,7 @@ public class ODKDatabaseImplUtils {
       if (clear) {
         db.delete(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME,
             K_KVS_TABLE_ID_EQUALS_PARAM, new Object[] { tableId });
+        db.noteTableMetadataChanged(tableId);
       }
 
       for (KeyValueStoreEntry e : metadata) {
@@ -1853,6 +1837,7 @@ public class ODKDatabaseImplUtils {
       }
 
       db.delete(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME, whereClause, whereArgs);
+      db.noteTableMetadataChanged(tableId);
 
       for (KeyValueStoreEntry e : metadata) {
         replaceTableMetadata(db, e);
@@ -1917,6 +1902,7 @@ public class ODKDatabaseImplUtils {
 
       db.delete(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME, b.toString(),
           selArgs.toArray(new String[selArgs.size()]));
+      db.noteTableMetadataChanged(tableId);
 
       if (!dbWithinTransaction) {
         db.setTransactionSuccessful();
@@ -2033,6 +2019,7 @@ public class ODKDatabaseImplUtils {
       for (Object[] fields : knownKVSValueTypeRestrictions) {
         db.execSQL(sql, fields);
       }
+      db.noteTableMetadataChanged(null);
 
       if (!dbWithinTransaction) {
         db.setTransactionSuccessful();
@@ -2062,6 +2049,7 @@ public class ODKDatabaseImplUtils {
     cvTableDef.put(TableDefinitionsColumns.LAST_SYNC_TIME, -1);
 
     db.replaceOrThrow(DatabaseConstants.TABLE_DEFS_TABLE_NAME, null, cvTableDef);
+    db.noteTableMetadataChanged(tableId);
   }
 
   /*
@@ -2136,7 +2124,141 @@ public class ODKDatabaseImplUtils {
       for (ColumnDefinition column : orderedDefs.getColumnDefinitions()) {
         createNewColumnMetadata(db, tableId, column);
       }
+
+      createUploadsTriggers(db, tableId);
+    }
+  }
+
+  private static String getUploadsInsertTriggerName(String tableId) {
+    return "_uploads_" + tableId + "_insert";
+  }
+
+  private static String getUploadsDeleteTriggerName(String tableId) {
+    return "_uploads_" + tableId + "_delete";
+  }
+
+  /*
+   * Create the triggers that keep the uploads table holding exactly one record
+   * for each distinct instance (row id) in the data table, and the indexes that
+   * keep each trigger firing from scanning either table.
+   */
+  private void createUploadsTriggers(OdkConnectionInterface db, String tableId) {
+    StringBuilder b = new StringBuilder();
+    //@formatter:off
+    b.append("CREATE INDEX IF NOT EXISTS ").append(DatabaseConstants.UPLOADS_TABLE_NAME)
+        .append("_instance_index ON ").append(DatabaseConstants.UPLOADS_TABLE_NAME).append(" (")
+        .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(",")
+        .append(InstanceColumns.DATA_INSTANCE_ID).append(")");
+    //@formatter:on
+    db.execSQL(b.toString(), null);
+
+    b.setLength(0);
+    b.append("CREATE INDEX IF NOT EXISTS _").append(tableId).append("_id_index ON ")
+        .append(tableId).append(" (").append(DataTableColumns.ID).append(")");
+    db.execSQL(b.toString(), null);
+
+    b.setLength(0);
+    //@formatter:off
+    b.append("CREATE TRIGGER IF NOT EXISTS ").append(getUploadsInsertTriggerName(tableId))
+        .append(" AFTER INSERT ON ").append(tableId)
+        .append(" WHEN NOT EXISTS (SELECT 1 FROM ").append(DatabaseConstants.UPLOADS_TABLE_NAME)
+          .append(K_WHERE).append(InstanceColumns.DATA_INSTANCE_ID).append("=NEW.")
+            .append(DataTableColumns.ID)
+          .append(S_AND).append(InstanceColumns.DATA_TABLE_TABLE_ID).append("='")
+            .append(tableId).append("')")
+        .append(" BEGIN INSERT INTO ").append(DatabaseConstants.UPLOADS_TABLE_NAME).append(" (")
+          .append(InstanceColumns.DATA_INSTANCE_ID).append(",")
+          .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(") VALUES (NEW.")
+          .append(DataTableColumns.ID).append(",'").append(tableId).append("'); END");
+    //@formatter:on
+    db.execSQL(b.toString(), null);
+
+    b.setLength(0);
+    //@formatter:off
+    b.append("CREATE TRIGGER IF NOT EXISTS ").append(getUploadsDeleteTriggerName(tableId))
+        .append(" AFTER DELETE ON ").append(tableId)
+        .append(" WHEN NOT EXISTS (SELECT 1 FROM ").append(tableId)
+          .append(K_WHERE).append(DataTableColumns.ID).append("=OLD.").append(DataTableColumns.ID)
+          .append(")")
+        .append(" BEGIN DELETE FROM ").append(DatabaseConstants.UPLOADS_TABLE_NAME)
+          .append(K_WHERE).append(InstanceColumns.DATA_INSTANCE_ID).append("=OLD.")
+            .append(DataTableColumns.ID)
+          .append(S_AND).append(InstanceColumns.DATA_TABLE_TABLE_ID).append("='")
+            .append(tableId).append("'; END");
+    //@formatter:on
+    db.execSQL(b.toString(), null);
+  }
+
+  /**
+   * Ensure that the uploads table is maintained incrementally for this tableId.
+   * <p/>
+   * Tables created before the uploads triggers were introduced do not have them.
+   * For those, the triggers are created and the uploads table is brought up to
+   * date with the data table in one pass. Tables that have the triggers are left
+   * untouched.
+   *
+   * @param db
+   * @param tableId
+   * @return true if the triggers had to be created
+   */
+  public boolean ensureUploadsTriggers(OdkConnectionInterface db, String tableId) {
+    Cursor c = null;
+    int count = 0;
+    try {
+      c = db.rawQuery("SELECT COUNT(*) FROM sqlite_master WHERE type='trigger' AND name IN (?,?)",
+          new Object[] { getUploadsInsertTriggerName(tableId),
+              getUploadsDeleteTriggerName(tableId) });
+      if (c.moveToFirst()) {
+        count = c.getInt(0);
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
     }
+    if (count == 2) {
+      return false;
+    }
+
+    boolean dbWithinTransaction = db.inTransaction();
+    try {
+      if (!dbWithinTransaction) {
+        db.beginTransactionNonExclusive();
+      }
+
+      createUploadsTriggers(db, tableId);
+
+      StringBuilder b = new StringBuilder();
+      //@formatter:off
+      b.append("INSERT INTO ").append(DatabaseConstants.UPLOADS_TABLE_NAME).append(" (")
+          .append(InstanceColumns.DATA_INSTANCE_ID).append(",")
+          .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(") SELECT DISTINCT ")
+          .append(DataTableColumns.ID).append(", ? FROM ").append(tableId)
+          .append(K_WHERE).append(DataTableColumns.ID).append(" NOT IN (SELECT ")
+            .append(InstanceColumns.DATA_INSTANCE_ID).append(" FROM ")
+            .append(DatabaseConstants.UPLOADS_TABLE_NAME).append(K_WHERE)
+            .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(S_EQUALS_PARAM).append(")");
+      //@formatter:on
+      db.execSQL(b.toString(), new Object[] { tableId, tableId });
+
+      b.setLength(0);
+      //@formatter:off
+      b.append("DELETE FROM ").append(DatabaseConstants.UPLOADS_TABLE_NAME).append(K_WHERE)
+          .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(S_EQUALS_PARAM).append(S_AND)
+          .append(InstanceColumns.DATA_INSTANCE_ID).append(" NOT IN (SELECT ")
+            .append(DataTableColumns.ID).append(" FROM ").append(tableId).append(")");
+      //@formatter:on
+      db.execSQL(b.toString(), new Object[] { tableId });
+
+      if (!dbWithinTransaction) {
+        db.setTransactionSuccessful();
+      }
+    } finally {
+      if (!dbWithinTransaction) {
+        db.endTransaction();
+      }
+    }
+    return true;
   }
 
   /*
@@ -5002,6 +5124,36 @@ public class ODKDatabaseImplUtils {
    */
   private TableSecuritySettings getTableSecuritySettings(OdkConnectionInterface db,
       String tableId) {
+    TableMetadataCache.Entry tableMetadata = getCachedTableMetadata(db, tableId);
+    return new TableSecuritySettings(tableId, tableMetadata.isLocked,
+        tableMetadata.canUnverifiedUserCreateRow, tableMetadata.filterTypeOnCreation);
+  }
+
+  /**
+   * Get the table's revId and security settings, reading them from the database
+   * only if they are not already cached for this appName.
+   *
+   * @param db
+   * @param tableId
+   * @return
+   */
+  private TableMetadataCache.Entry getCachedTableMetadata(OdkConnectionInterface db,
+      String tableId) {
+    TableMetadataCache cache = db.getTableMetadataCache();
+    TableMetadataCache.Entry tableMetadata = cache.get(tableId);
+    if (tableMetadata != null) {
+      return tableMetadata;
+    }
+    long generation = cache.getGeneration();
+    tableMetadata = readTableMetadata(db, tableId);
+    cache.put(tableId, tableMetadata, generation);
+    return tableMetadata;
+  }
+
+  private TableMetadataCache.Entry readTableMetadata(OdkConnectionInterface db,
+      String tableId) {
+
+    String revId = getTableDefinitionRevId(db, tableId);
 
     // get the security settings
     List<KeyValueStoreEntry> entries = getTableMetadata(db, tableId,
@@ -5041,7 +5193,7 @@ public class ODKDatabaseImplUtils {
       filterType = DataTableColumns.DEFAULT_FILTER_TYPE;
     }
 
-    return new TableSecuritySettings(tableId, isLocked, canUnverifiedUserCreateRow, filterType);
+    return new TableMetadataCache.Entry(revId, isLocked, canUnverifiedUserCreateRow, filterType);
   }
 
   /*
@@ -5499,6 +5651,12 @@ public class ODKDatabaseImplUtils {
     WebLogger.getLogger(db.getAppName())
         .i("commonTableDefn", DatabaseConstants.SYNC_ETAGS_TABLE_NAME);
     db.execSQL(SyncETagColumns.getTableCreateSql(DatabaseConstants.SYNC_ETAGS_TABLE_NAME), null);
+    WebLogger.getLogger(db.getAppName())
+        .i("commonTableDefn", SyncBatchSizesUtils.SYNC_BATCH_SIZES_TABLE_NAME);
+    db.execSQL(SyncBatchSizesUtils.getTableCreateSql(), null);
+    WebLogger.getLogger(db.getAppName())
+        .i("commonTableDefn", FileContentHashUtils.FILE_CONTENT_HASHES_TABLE_NAME);
+    db.execSQL(FileContentHashUtils.getTableCreateSql(), null);
     WebLogger.getLogger(db.getAppName())
         .i("commonTableDefn", DatabaseConstants.CHOICE_LIST_TABLE_NAME);
     db.execSQL(ChoiceListColumns.getTableCreateSql(DatabaseConstants.CHOICE_LIST_TABLE_NAME), null);
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.database.utlities;
+
+import android.database.Cursor;
+
+import org.opendatakit.provider.SyncETagColumns;
+import org.opendatakit.services.database.OdkConnectionInterface;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The per-table request sizes learned by the sync (the number of rows pulled in
+ * each page and pushed in each request), for each server.
+ * <p>
+ * This is sync state of the same kind as the sync ETags, and is kept alongside
+ * them: its tableId and url columns have the same names as those of the sync
+ * ETags table, and {@link SyncETagsUtils} deletes the sizes together with the
+ * ETags of a table or of a server.
+ */
+public class SyncBatchSizesUtils {
+  private static final String TAG = "SyncBatchSizesUtils";
+
+  public static final String SYNC_BATCH_SIZES_TABLE_NAME = "_sync_batch_sizes";
+
+  /**
+   * The kind of request (e.g., fetchLimit or pushBatchSize)
+   */
+  public static final String KIND = "_kind";
+  public static final String SIZE = "_size";
+
+  private static final String K_SELECT = "SELECT " + SyncETagColumns.TABLE_ID + "," + KIND + ","
+      + SIZE + " FROM " + SYNC_BATCH_SIZES_TABLE_NAME + " WHERE " + SyncETagColumns.URL + "=?";
+
+  private static final String K_REPLACE = "INSERT OR REPLACE INTO " + SYNC_BATCH_SIZES_TABLE_NAME
+      + " (" + SyncETagColumns.TABLE_ID + "," + SyncETagColumns.URL + "," + KIND + "," + SIZE
+      + ") VALUES (?,?,?,?)";
+
+  public static String getTableCreateSql() {
+    //@formatter:off
+    return "CREATE TABLE IF NOT EXISTS " + SYNC_BATCH_SIZES_TABLE_NAME + " ("
+        + SyncETagColumns.TABLE_ID + " TEXT NOT NULL, "
+        + SyncETagColumns.URL + " TEXT NOT NULL, "
+        + KIND + " TEXT NOT NULL, "
+        + SIZE + " INTEGER NOT NULL, "
+        + "PRIMARY KEY (" + SyncETagColumns.TABLE_ID + "," + SyncETagColumns.URL + ","
+        + KIND + "))";
+    //@formatter:on
+  }
+
+  /**
+   * For ease of mocking...
+   */
+  public SyncBatchSizesUtils() {
+  }
+
+  /**
+   * @param db
+   * @param serverUri the sync server
+   * @return tableId -to- kind -to- size of everything learned against this server
+   */
+  public Map<String, Map<String, Integer>> getSyncBatchSizes(OdkConnectionInterface db,
+      String serverUri) {
+    Map<String, Map<String, Integer>> sizes = new HashMap<String, Map<String, Integer>>();
+    Cursor c = null;
+    try {
+      c = db.rawQuery(K_SELECT, new Object[] { serverUri });
+      while (c.moveToNext()) {
+        Map<String, Integer> tableSizes = sizes.get(c.getString(0));
+        if (tableSizes == null) {
+          tableSizes = new HashMap<String, Integer>();
+          sizes.put(c.getString(0), tableSizes);
+        }
+        tableSizes.put(c.getString(1), c.getInt(2));
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    return sizes;
+  }
+
+  /**
+   * Save the given sizes, replacing any previously saved values for the same
+   * tableId and kind.
+   *
+   * @param db
+   * @param serverUri the sync server
+   * @param sizes     tableId -to- kind -to- size
+   */
+  public void replaceSyncBatchSizes(OdkConnectionInterface db, String serverUri,
+      Map<String, Map<String, Integer>> sizes) {
+    boolean inTransaction = db.inTransaction();
+    try {
+      if (!inTransaction) {
+        db.beginTransactionNonExclusive();
+      }
+
+      for (Map.Entry<String, Map<String, Integer>> table : sizes.entrySet()) {
+        for (Map.Entry<String, Integer> size : table.getValue().entrySet()) {
+          db.execSQL(K_REPLACE,
+              new Object[] { table.getKey(), serverUri, size.getKey(), size.getValue() });
+        }
+      }
+
+      if (!inTransaction) {
+        db.setTransactionSuccessful();
+      }
+    } finally {
+      if (!inTransaction) {
+        db.endTransaction();
+      }
+    }
+  }
+}
@@ -36,7 +36,26 @@ public class SyncETagsUtils {
   }
 
   /**
-   * Remove all ETags for the given table. Invoked when we delete a table...
+   * Delete the matching rows of the sync ETags table and of the sync batch sizes
+   * table (see {@link SyncBatchSizesUtils}), whose tableId and url columns have
+   * the same names.
+   *
+   * @param db
+   * @param whereClause
+   * @param bindArgs
+   */
+  private void deleteSyncETagsAndBatchSizes(OdkConnectionInterface db, String whereClause,
+      ArrayList<String> bindArgs) {
+    String[] args = bindArgs.toArray(new String[bindArgs.size()]);
+    db.execSQL("DELETE FROM " + DatabaseConstants.SYNC_ETAGS_TABLE_NAME + " WHERE "
+        + whereClause, args);
+    db.execSQL("DELETE FROM " + SyncBatchSizesUtils.SYNC_BATCH_SIZES_TABLE_NAME + " WHERE "
+        + whereClause, args);
+  }
+
+  /**
+   * Remove all ETags (and learned sync batch sizes) for the given table.
+   * Invoked when we delete a table...
    * 
    * @param db
    * @param tableId
@@ -45,11 +64,7 @@ public class SyncETagsUtils {
 
     ArrayList<String> bindArgs = new ArrayList<String>();
     StringBuilder b = new StringBuilder();
-    //@formatter:off
-    b.append("DELETE FROM ")
-     .append(DatabaseConstants.SYNC_ETAGS_TABLE_NAME).append(" WHERE ")
-     .append(SyncETagColumns.TABLE_ID);
-    //@formatter:on
+    b.append(SyncETagColumns.TABLE_ID);
     if ( tableId == null ) {
       b.append(" IS NULL");
     } else {
@@ -57,7 +72,7 @@ public class SyncETagsUtils {
       bindArgs.add(tableId);
     }
 
-    db.execSQL(b.toString(), bindArgs.toArray(new String[bindArgs.size()]));
+    deleteSyncETagsAndBatchSizes(db, b.toString(), bindArgs);
   }
 
   /**
@@ -85,8 +100,8 @@ public class SyncETagsUtils {
   }
 
   /**
-   * Remove all ETags for anything other than the given server. 
-   * Invoked when we change the target sync server...
+   * Remove all ETags (and learned sync batch sizes) for anything other than the
+   * given server. Invoked when we change the target sync server...
    *
    * Because the server may return urls that include the port specification, the uri
    * needs to be truncated to the scheme and hostname (e.g., https://hostname or http://hostname
@@ -104,11 +119,7 @@ public class SyncETagsUtils {
 
     ArrayList<String> bindArgs = new ArrayList<String>();
     StringBuilder b = new StringBuilder();
-    //@formatter:off
-    b.append("DELETE FROM ")
-     .append(DatabaseConstants.SYNC_ETAGS_TABLE_NAME).append(" WHERE ")
-     .append(SyncETagColumns.URL);
-    //@formatter:on
+    b.append(SyncETagColumns.URL);
     if ( uriPrefix == null ) {
       // i.e., delete everything
       b.append(" IS NOT NULL");
@@ -137,7 +148,7 @@ public class SyncETagsUtils {
            db.beginTransactionNonExclusive();
         }
 
-        db.execSQL(b.toString(), bindArgs.toArray(new String[bindArgs.size()]));
+        deleteSyncETagsAndBatchSizes(db, b.toString(), bindArgs);
 
         if ( !inTransaction ) {
            db.setTransactionSuccessful();
@@ -150,7 +161,7 @@ public class SyncETagsUtils {
   }
 
   /**
-   * Remove all ETags for the given server.
+   * Remove all ETags (and learned sync batch sizes) for the given server.
    * Invoked when we are resetting the app server (to ensure
    * everything we have locally is pushed to the server).
    *
@@ -171,9 +182,7 @@ public class SyncETagsUtils {
     ArrayList<String> bindArgs = new ArrayList<String>();
     StringBuilder b = new StringBuilder();
     //@formatter:off
-    b.append("DELETE FROM ")
-     .append(DatabaseConstants.SYNC_ETAGS_TABLE_NAME).append(" WHERE ")
-     .append(SyncETagColumns.URL).append(" IS NOT NULL");
+    b.append(SyncETagColumns.URL).append(" IS NOT NULL");
     // delete anything not beginning with this prefix...
     // ...long enough
     b.append(" AND length(").append(SyncETagColumns.URL).append(") >= abs(?)");
@@ -199,7 +208,7 @@ public class SyncETagsUtils {
         db.beginTransactionNonExclusive();
       }
 
-      db.execSQL(b.toString(), bindArgs.toArray(new String[bindArgs.size()]));
+      deleteSyncETagsAndBatchSizes(db, b.toString(), bindArgs);
 
       if ( !inTransaction ) {
         db.setTransactionSuccessful();
@@ -33,6 +33,7 @@ import org.opendatakit.services.database.AndroidConnectFactory;
 import org.opendatakit.database.DatabaseConstants;
 import org.opendatakit.services.database.OdkConnectionFactorySingleton;
 import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.utlities.FileContentHashUtils;
 import org.opendatakit.database.utilities.CursorUtils;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.logging.WebLoggerIf;
@@ -128,7 +129,11 @@ public class FormsProvider extends ContentProvider {
     return true;
   }
 
-  private FormSpec patchUpValues(String appName, HashMap<String,Object> values) {
+  /**
+   * @param db connection to use for the cached formDef hash
+   */
+  private FormSpec patchUpValues(OdkConnectionInterface db, String appName,
+      HashMap<String,Object> values) {
 
     // require a tableId and formId...
     if ( !values.containsKey(FormsColumns.TABLE_ID)) {
@@ -189,7 +194,7 @@ public class FormsProvider extends ContentProvider {
     values.put(FormsColumns.DEFAULT_FORM_LOCALE, fiFound.defaultLocale);
     values.put(FormsColumns.INSTANCE_NAME, fiFound.instanceName);
 
-    String md5 = ODKFileUtils.getMd5Hash(appName, formDefFile);
+    String md5 = new FileContentHashUtils().getMd5Hash(db, appName, formDefFile);
     values.put(FormsColumns.JSON_MD5_HASH, md5);
     values.put(FormsColumns.DATE, fiFound.lastModificationDate);
     values.put(FormsColumns.FILE_LENGTH, fiFound.fileLength);
@@ -222,12 +227,6 @@ public class FormsProvider extends ContentProvider {
     // force a scan from disk
     values.remove(FormsColumns.DATE);
     values.remove(FormsColumns.JSON_MD5_HASH);
-    FormSpec formSpec = patchUpValues(appName, values);
-
-    // first try to see if a record with this filename already exists...
-    String[] projection = { FormsColumns.TABLE_ID, FormsColumns.FORM_ID };
-    String selection = FormsColumns.TABLE_ID + "=? AND " + FormsColumns.FORM_ID + "=?";
-    String[] selectionArgs = { formSpec.tableId, formSpec.formId };
     Cursor c = null;
 
     DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
@@ -235,6 +234,14 @@ public class FormsProvider extends ContentProvider {
     try {
       // +1 referenceCount if db is returned (non-null)
       db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().getConnection(appName, dbHandleName);
+      // hash the formDef through the hash cache on this connection
+      FormSpec formSpec = patchUpValues(db, appName, values);
+
+      // first try to see if a record with this filename already exists...
+      String[] projection = { FormsColumns.TABLE_ID, FormsColumns.FORM_ID };
+      String selection = FormsColumns.TABLE_ID + "=? AND " + FormsColumns.FORM_ID + "=?";
+      String[] selectionArgs = { formSpec.tableId, formSpec.formId };
+
       db.beginTransactionNonExclusive();
       try {
         c = db.query(DatabaseConstants.FORMS_TABLE_NAME, projection, selection, selectionArgs,
@@ -290,6 +297,9 @@ public class FormsProvider extends ContentProvider {
       }
     } catch (SQLException e) {
       throw e;
+    } catch (IllegalArgumentException e) {
+      // missing tableId or formId
+      throw e;
     } catch (Exception e) {
       throw new SQLException("FAILED Insert into " + uri + " -- insert of row failed: "
           + e.toString());
@@ -703,7 +713,7 @@ public class FormsProvider extends ContentProvider {
               }
             }
 
-            FormSpec formSpec = patchUpValues(pf.appName, cv);
+            FormSpec formSpec = patchUpValues(db, pf.appName, cv);
             formSpec._id = idValue.toString();
             formSpec.success = false;
             matchedValues.put(formSpec, cv);
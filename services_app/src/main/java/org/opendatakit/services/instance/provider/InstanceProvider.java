@@ -52,9 +52,11 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 public class InstanceProvider extends ContentProvider {
 
@@ -76,6 +78,13 @@ public class InstanceProvider extends ContentProvider {
 
   private static final HashMap<String, String> sInstancesProjectionMap;
 
+  /**
+   * Access only within synchronized uploadsTriggersVerified
+   *
+   * appName/tableId values whose uploads triggers are known to exist.
+   */
+  private final Set<String> uploadsTriggersVerified = new HashSet<String>();
+
   private class InvalidateMonitor extends DataSetObserver {
     String appName;
     DbHandle dbHandleName;
@@ -193,7 +202,12 @@ public class InstanceProvider extends ContentProvider {
   }
 
   /**
-   * Update the status columns for the instance upload table
+   * Ensure the instance upload table is maintained for this tableId.
+   * <p/>
+   * The upload table is kept consistent with the data table by triggers
+   * (see ODKDatabaseImplUtils.ensureUploadsTriggers). Tables created before
+   * those triggers existed are upgraded on first access. After that, this
+   * does no database work.
    *
    * @param db
    * @param uri
@@ -204,10 +218,12 @@ public class InstanceProvider extends ContentProvider {
       Uri uri,
       String appName, String tableId ) {
 
-    String instanceName = null;
-    Cursor c = null;
-
-    StringBuilder b = new StringBuilder();
+    String key = appName + "/" + tableId;
+    synchronized (uploadsTriggersVerified) {
+      if (uploadsTriggersVerified.contains(key)) {
+        return;
+      }
+    }
 
     try {
       db.beginTransactionNonExclusive();
@@ -223,72 +239,48 @@ public class InstanceProvider extends ContentProvider {
         throw new SQLException("Unknown URI (missing data table for tableId) " + uri);
       }
 
-      try {
-        c = db.query(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME,
-            new String[] { KeyValueStoreColumns.VALUE }, KeyValueStoreColumns.TABLE_ID + "=? AND "
-                + KeyValueStoreColumns.PARTITION + "=? AND " + KeyValueStoreColumns.ASPECT
-                + "=? AND " + KeyValueStoreColumns.KEY + "=?", new String[] { tableId,
-                KeyValueStoreConstants.PARTITION_TABLE, KeyValueStoreConstants.ASPECT_DEFAULT,
-                KeyValueStoreConstants.XML_INSTANCE_NAME }, null, null, null, null);
-        if ( c != null ) {
-          c.moveToFirst();
-          if (c.getCount() == 1) {
-            int idxInstanceName = c.getColumnIndex(KeyValueStoreColumns.VALUE);
-            instanceName = c.getString(idxInstanceName);
-          }
-        }
-      } finally {
-        if ( c != null ) {
-          c.close();
-        }
+      if (ODKDatabaseImplUtils.get().ensureUploadsTriggers(db, tableId)) {
+        WebLogger.getLogger(appName).i(t, "internalUpdate: created uploads triggers for " + tableId);
       }
-
-      // ARGH! we must ensure that we have records in our UPLOADS_TABLE_NAME
-      // for every distinct instance in the data table.
-      b.setLength(0);
-      //@formatter:off
-      b.append("INSERT INTO ").append(DatabaseConstants.UPLOADS_TABLE_NAME).append("(")
-          .append(InstanceColumns.DATA_INSTANCE_ID).append(",")
-          .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(",").append("SELECT ")
-          .append(InstanceColumns.DATA_INSTANCE_ID).append(",")
-          .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(",").append(" FROM (")
-            .append("SELECT DISTINCT ").append(DATA_TABLE_ID_COLUMN).append(" as ")
-            .append(InstanceColumns.DATA_INSTANCE_ID).append(",").append("? as ")
-            .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(" FROM ")
-            .append(tableId).append(" EXCEPT SELECT DISTINCT ")
-            .append(InstanceColumns.DATA_INSTANCE_ID).append(",")
-            .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(" FROM ")
-            .append(DatabaseConstants.UPLOADS_TABLE_NAME).append(")");
-      //@formatter:on
-
-      String[] args = { tableId };
-      db.execSQL(b.toString(), args);
-
-      //@formatter:off
-      b.append("WITH idname AS (SELECT t.")
-              .append(DATA_TABLE_ID_COLUMN).append(" as ").append(InstanceColumns.DATA_INSTANCE_ID).append(", t.");
-      if ( instanceName == null ) {
-        b.append(DataTableColumns.SAVEPOINT_TIMESTAMP);
-      } else {
-        b.append(instanceName);
-      }
-      b.append(" as ").append(InstanceColumns.DATA_INSTANCE_NAME).append(" FROM ")
-              .append(tableId).append(" t WHERE t.").append(DataTableColumns.SAVEPOINT_TIMESTAMP).append("=")
-              .append("(select max(v.").append(DataTableColumns.SAVEPOINT_TIMESTAMP)
-                  .append(") from ").append(tableId).append(" as v where v._id=t._id)")
-              .append(") UPDATE ").append(DatabaseConstants.UPLOADS_TABLE_NAME).append(" SET ")
-                .append(InstanceColumns.DATA_INSTANCE_NAME).append("=idname.").append(InstanceColumns.DATA_INSTANCE_NAME)
-              .append(" WHERE ")
-          .append(InstanceColumns.DATA_TABLE_TABLE_ID).append("=? AND ")
-          .append(InstanceColumns.DATA_INSTANCE_ID).append("=idname.").append(InstanceColumns.DATA_INSTANCE_ID);
-      //@formatter:on
-      db.execSQL(b.toString(), args);
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
     }
+
+    synchronized (uploadsTriggersVerified) {
+      uploadsTriggersVerified.add(key);
+    }
   }
 
+  /**
+   * @param db
+   * @param tableId
+   * @return the elementKey of the column holding the instance name, or null if none is specified.
+   */
+  private String getInstanceNameColumn(OdkConnectionInterface db, String tableId) {
+    String instanceName = null;
+    Cursor c = null;
+    try {
+      c = db.query(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME,
+          new String[] { KeyValueStoreColumns.VALUE }, KeyValueStoreColumns.TABLE_ID + "=? AND "
+              + KeyValueStoreColumns.PARTITION + "=? AND " + KeyValueStoreColumns.ASPECT
+              + "=? AND " + KeyValueStoreColumns.KEY + "=?", new String[] { tableId,
+              KeyValueStoreConstants.PARTITION_TABLE, KeyValueStoreConstants.ASPECT_DEFAULT,
+              KeyValueStoreConstants.XML_INSTANCE_NAME }, null, null, null, null);
+      if ( c != null ) {
+        c.moveToFirst();
+        if (c.getCount() == 1) {
+          int idxInstanceName = c.getColumnIndex(KeyValueStoreColumns.VALUE);
+          instanceName = c.getString(idxInstanceName);
+        }
+      }
+    } finally {
+      if ( c != null ) {
+        c.close();
+      }
+    }
+    return instanceName;
+  }
 
   Cursor internalQuery(OdkConnectionInterface db,
       Uri uri,
@@ -391,7 +383,10 @@ public class InstanceProvider extends ContentProvider {
         .append(" > ").append(InstanceColumns.XML_PUBLISH_TIMESTAMP).append(" THEN null")
         .append(" ELSE ").append(InstanceColumns.DISPLAY_SUBTEXT).append(" END as ")
             .append(InstanceColumns.DISPLAY_SUBTEXT).append(",");
-    b.append(InstanceColumns.DATA_INSTANCE_NAME);
+    // the display name is taken from the most recent savepoint of the instance
+    String instanceName = getInstanceNameColumn(db, tableId);
+    b.append(tableId).append(".")
+        .append((instanceName == null) ? DataTableColumns.SAVEPOINT_TIMESTAMP : instanceName);
     b.append(" as ").append(InstanceColumns.DISPLAY_NAME);
     b.append(" FROM ");
     b.append("( SELECT * FROM ").append(tableId).append(" AS T WHERE T.")
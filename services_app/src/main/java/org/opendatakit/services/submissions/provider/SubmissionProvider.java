@@ -22,7 +22,10 @@ import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import android.support.annotation.NonNull;
 import android.util.Log;
+import android.util.Xml;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 
@@ -52,35 +55,21 @@ import org.opendatakit.utilities.ODKFileUtils;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.logging.WebLoggerIf;
 import org.opendatakit.database.service.DbHandle;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Text;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Properties;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 /**
  * The WebKit does better if there is a content provider vending files to it.
@@ -101,6 +90,8 @@ public class SubmissionProvider extends ContentProvider {
   // namespace
   private static final String NEW_LINE = "\n";
 
+  private static final int BUFFER_SIZE = 8192;
+
   /**
    * change to true expression if you want to debug this content provider
    */
@@ -155,64 +146,6 @@ public class SubmissionProvider extends ContentProvider {
     elem.put(defn.getElementName(), value);
   }
 
-  @SuppressWarnings("unchecked")
-  private static int generateXmlHelper(Document d, Element data, int idx, String key,
-      Map<String, Object> values, WebLoggerIf logger) {
-    Object o = values.get(key);
-
-    Element e = d.createElement(key);
-
-    if (o == null) {
-      logger.e(t, "Unexpected null value");
-    } else if (o instanceof Integer) {
-      Text txtNode = d.createTextNode(((Integer) o).toString());
-      e.appendChild(txtNode);
-    } else if (o instanceof Double) {
-      Text txtNode = d.createTextNode(((Double) o).toString());
-      e.appendChild(txtNode);
-    } else if (o instanceof Boolean) {
-      Text txtNode = d.createTextNode(((Boolean) o).toString());
-      e.appendChild(txtNode);
-    } else if (o instanceof String) {
-      Text txtNode = d.createTextNode(((String) o));
-      e.appendChild(txtNode);
-    } else if (o instanceof List) {
-      StringBuilder b = new StringBuilder();
-      List<Object> al = (List<Object>) o;
-      for (Object ob : al) {
-        if (ob instanceof Integer) {
-          b.append(((Integer) ob).toString());
-        } else if (ob instanceof Double) {
-          b.append(((Double) ob).toString());
-        } else if (ob instanceof Boolean) {
-          b.append(((Boolean) ob).toString());
-        } else if (ob instanceof String) {
-          b.append(((String) ob));
-        } else {
-          throw new IllegalArgumentException("Unexpected type in XML submission serializer");
-        }
-        b.append(" ");
-      }
-      Text txtNode = d.createTextNode(b.toString().trim());
-      e.appendChild(txtNode);
-    } else if (o instanceof Map) {
-      // it is an object...
-      Map<String, Object> m = (Map<String, Object>) o;
-      int nidx = 0;
-
-      ArrayList<String> entryNames = new ArrayList<String>();
-      entryNames.addAll(m.keySet());
-      Collections.sort(entryNames);
-      for (String name : entryNames) {
-        nidx = generateXmlHelper(d, e, nidx, name, m, logger);
-      }
-    } else {
-      throw new IllegalArgumentException("Unexpected object type in XML submission serializer");
-    }
-    data.appendChild(e);
-    return idx;
-  }
-
   /**
    * The incoming URI is of the form:
    * ..../appName/tableId/instanceId?formId=&formVersion=
@@ -244,7 +177,7 @@ public class SubmissionProvider extends ContentProvider {
     final String appName = segments.get(0);
     ODKFileUtils.verifyExternalStorageAvailability();
     ODKFileUtils.assertDirectoryStructure(appName);
-    WebLoggerIf logger = WebLogger.getLogger(appName);
+    final WebLoggerIf logger = WebLogger.getLogger(appName);
 
     final String tableId = segments.get(1);
     final String instanceId = segments.get(2);
@@ -327,7 +260,7 @@ public class SubmissionProvider extends ContentProvider {
 
         // Retrieve the values of the record to be emitted...
 
-        HashMap<String, Object> values = new HashMap<String, Object>();
+        final HashMap<String, Object> values = new HashMap<String, Object>();
 
         // issue query to retrieve the most recent non-checkpoint data record
         // for the instanceId
@@ -518,164 +451,53 @@ public class SubmissionProvider extends ContentProvider {
               datestamp = (new SimpleDateFormat(ISO8601_DATE_FORMAT, Locale.US))
                   .format(new Date(TableConstants.milliSecondsFromNanos(savepointTimestamp)));
 
-              // For XML, we traverse the map to serialize it
-              DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-              DocumentBuilder docBuilder = dbf.newDocumentBuilder();
-              
-              Document d = docBuilder.newDocument();
-
-              d.setXmlStandalone(true);
-              
-              Element e = d.createElement(
-                  (xmlRootElementName == null) ? "data" : xmlRootElementName);
-              d.appendChild(e);
-              e.setAttribute("id", tableId);
+              // Gather the meta block. The XML itself is written straight to
+              // the file (or through the cipher) by an XmlSerializer; no DOM or
+              // String copy of the submission is ever built.
               DynamicPropertiesCallback cb = new DynamicPropertiesCallback(appName,
                   tableId, instanceId, activeUser, currentLocale, username, userEmail);
 
-              int idx = 0;
-              Element meta = d.createElementNS(XML_OPENROSA_NAMESPACE, "meta");
-              meta.setPrefix("jr");
-
-              Element v = d.createElementNS(XML_OPENROSA_NAMESPACE, "instanceID");
-              Text txtNode = d.createTextNode(submissionInstanceId);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
+              // { namespace, element name, value } in document order
+              final List<String[]> metaElements = new ArrayList<String[]>();
+              metaElements.add(new String[] { XML_OPENROSA_NAMESPACE, "instanceID",
+                  submissionInstanceId });
               if (xmlDeviceIdPropertyName != null) {
                 String deviceId = propertyManager.getSingularProperty(xmlDeviceIdPropertyName, cb);
                 if (deviceId != null) {
-                  v = d.createElementNS(XML_OPENROSA_NAMESPACE, "deviceID");
-                  txtNode = d.createTextNode(deviceId);
-                  v.appendChild(txtNode);
-                  meta.appendChild(v);
+                  metaElements.add(new String[] { XML_OPENROSA_NAMESPACE, "deviceID", deviceId });
                 }
               }
               if (xmlUserIdPropertyName != null) {
                 String userId = propertyManager.getSingularProperty(xmlUserIdPropertyName, cb);
                 if (userId != null) {
-                  v = d.createElementNS(XML_OPENROSA_NAMESPACE, "userID");
-                  txtNode = d.createTextNode(userId);
-                  v.appendChild(txtNode);
-                  meta.appendChild(v);
+                  metaElements.add(new String[] { XML_OPENROSA_NAMESPACE, "userID", userId });
                 }
               }
-              v = d.createElementNS(XML_OPENROSA_NAMESPACE, "timeEnd");
-              txtNode = d.createTextNode(datestamp);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // these are extra metadata tags...
-              if (instanceName != null) {
-                v = d.createElement("instanceName");
-                txtNode = d.createTextNode(instanceName);
-                v.appendChild(txtNode);
-                meta.appendChild(v);
-              } else {
-                v = d.createElement("instanceName");
-                txtNode = d.createTextNode(savepointTimestamp);
-                v.appendChild(txtNode);
-                meta.appendChild(v);
-              }
+              metaElements.add(new String[] { XML_OPENROSA_NAMESPACE, "timeEnd", datestamp });
 
               // these are extra metadata tags...
-              // rowID
-              v = d.createElement("rowID");
-              txtNode = d.createTextNode(instanceId);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // rowETag
-              v = d.createElement("rowETag");
-              if (rowETag != null) {
-                txtNode = d.createTextNode(rowETag);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // filterType
-              v = d.createElement("filterType");
-              if (filterType != null) {
-                txtNode = d.createTextNode(filterType);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // filterValue
-              v = d.createElement("filterValue");
-              if (filterValue != null) {
-                txtNode = d.createTextNode(filterValue);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // formID
-              v = d.createElement("formID");
-              txtNode = d.createTextNode(formId);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // locale
-              v = d.createElement("locale");
-              txtNode = d.createTextNode(locale);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // savepointType
-              v = d.createElement("savepointType");
-              txtNode = d.createTextNode(savepointType);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // savepointCreator
-              v = d.createElement("savepointCreator");
-              if (savepointCreator != null) {
-                txtNode = d.createTextNode(savepointCreator);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // savepointTimestamp
-              v = d.createElement("savepointTimestamp");
-              txtNode = d.createTextNode(savepointTimestamp);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // and insert the meta block into the XML
-
-              e.appendChild(meta);
-
-              idx = 3;
-              ArrayList<String> entryNames = new ArrayList<String>();
-              entryNames.addAll(values.keySet());
-              Collections.sort(entryNames);
-              for (String name : entryNames) {
-                idx = generateXmlHelper(d, e, idx, name, values, logger);
-              }
-
-              TransformerFactory factory = TransformerFactory.newInstance();
-              Transformer transformer = factory.newTransformer();
-              Properties outFormat = new Properties();
-              outFormat.setProperty( OutputKeys.INDENT, "no" );
-              outFormat.setProperty( OutputKeys.METHOD, "xml" );
-              outFormat.setProperty( OutputKeys.OMIT_XML_DECLARATION, "yes" );
-              outFormat.setProperty( OutputKeys.VERSION, "1.0" );
-              outFormat.setProperty( OutputKeys.ENCODING, "UTF-8" );
-              transformer.setOutputProperties( outFormat );
-
-              ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-              DOMSource domSource = new DOMSource( d.getDocumentElement() );
-              StreamResult result = new StreamResult( out );
-              transformer.transform( domSource, result );
-
-              out.flush();
-              out.close();
-
-              b.append(out.toString(CharEncoding.UTF_8));
-
-              // OK we have the document in the builder (b).
-              String doc = b.toString();
+              metaElements.add(new String[] { null, "instanceName",
+                  (instanceName != null) ? instanceName : savepointTimestamp });
+              metaElements.add(new String[] { null, "rowID", instanceId });
+              metaElements.add(new String[] { null, "rowETag", rowETag });
+              metaElements.add(new String[] { null, "filterType", filterType });
+              metaElements.add(new String[] { null, "filterValue", filterValue });
+              metaElements.add(new String[] { null, "formID", formId });
+              metaElements.add(new String[] { null, "locale", locale });
+              metaElements.add(new String[] { null, "savepointType", savepointType });
+              metaElements.add(new String[] { null, "savepointCreator", savepointCreator });
+              metaElements.add(new String[] { null, "savepointTimestamp", savepointTimestamp });
+
+              final String rootElementName =
+                  (xmlRootElementName == null) ? "data" : xmlRootElementName;
+
+              EncryptionUtils.SubmissionWriter xmlWriter = new EncryptionUtils.SubmissionWriter() {
+                @Override
+                public void writeSubmission(OutputStream out) throws IOException {
+                  SubmissionXmlGenerator.generateXml(Xml.newSerializer(), out, rootElementName,
+                      tableId, metaElements, values, logger);
+                }
+              };
 
               freturn.instanceFile = submissionXml;
 
@@ -691,7 +513,7 @@ public class SubmissionProvider extends ContentProvider {
                 // reopened afterward
                 // and encrypt the submission (this is a
                 // one-way operation)...
-                if (!EncryptionUtils.generateEncryptedSubmission(freturn, doc, submissionXml,
+                if (!EncryptionUtils.generateEncryptedSubmission(freturn, xmlWriter, submissionXml,
                     submissionXmlEnc, formInfo)) {
                   return null;
                 }
@@ -699,7 +521,7 @@ public class SubmissionProvider extends ContentProvider {
                 // been re-written with the encrypted media
                 // and xml files.
               } else {
-                exportFile(doc, submissionXml, logger);
+                exportFile(xmlWriter, submissionXml, logger);
               }
 
             } else {
@@ -749,7 +571,7 @@ public class SubmissionProvider extends ContentProvider {
 
               // For JSON, we construct the model, then emit model +
               // meta + data
-              HashMap<String, Object> wrapper = new HashMap<String, Object>();
+              final HashMap<String, Object> wrapper = new HashMap<String, Object>();
               wrapper.put("tableId", tableId);
               wrapper.put("instanceId", instanceId);
               HashMap<String, Object> formDef = new HashMap<String, Object>();
@@ -765,11 +587,16 @@ public class SubmissionProvider extends ContentProvider {
               elem.put("saved", "COMPLETE");
               elem.put("timestamp", datestamp);
 
-              b.append(ODKFileUtils.mapper.writeValueAsString(wrapper));
-
-              // OK we have the document in the builder (b).
-              String doc = b.toString();
-              exportFile(doc, submissionXml, logger);
+              exportFile(new EncryptionUtils.SubmissionWriter() {
+                @Override
+                public void writeSubmission(OutputStream out) throws IOException {
+                  // the generator is not closed; that would close the stream
+                  JsonGenerator generator = ODKFileUtils.mapper.getFactory()
+                      .createGenerator(out, JsonEncoding.UTF8);
+                  ODKFileUtils.mapper.writeValue(generator, wrapper);
+                  generator.flush();
+                }
+              }, submissionXml, logger);
             }
             exportFile(freturn.serializeUriFragmentList(getContext()), manifest, logger);
             return ParcelFileDescriptor.open(manifest, ParcelFileDescriptor.MODE_READ_ONLY);
@@ -782,10 +609,6 @@ public class SubmissionProvider extends ContentProvider {
           }
         }
 
-      } catch (ParserConfigurationException e) {
-        logger.printStackTrace(e);
-      } catch (TransformerException e) {
-        logger.printStackTrace(e);
       } catch (JsonParseException e) {
         logger.printStackTrace(e);
       } catch (JsonMappingException e) {
@@ -844,6 +667,39 @@ public class SubmissionProvider extends ContentProvider {
     }
   }
 
+  /**
+   * This method streams the submission to disk.
+   *
+   * @param writer
+   * @param outputFilePath
+   * @param  logger
+   * @return
+   */
+  private static boolean exportFile(EncryptionUtils.SubmissionWriter writer, File outputFilePath,
+      WebLoggerIf logger) {
+    OutputStream os = null;
+    try {
+      os = new BufferedOutputStream(new FileOutputStream(outputFilePath, false), BUFFER_SIZE);
+      writer.writeSubmission(os);
+      os.close();
+      os = null;
+      return true;
+
+    } catch (IOException e) {
+      logger.e(t, "Error writing file");
+      logger.printStackTrace(e);
+      return false;
+    } finally {
+      if (os != null) {
+        try {
+          os.close();
+        } catch (IOException ex) {
+          logger.printStackTrace(ex);
+        }
+      }
+    }
+  }
+
   @Override
   public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
     return 0;
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.submissions.provider;
+
+import org.apache.commons.lang3.CharEncoding;
+import org.opendatakit.logging.WebLoggerIf;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the XML form of a submission onto a stream as it is generated.
+ * Separate from the SubmissionProvider so that it can be exercised without
+ * a content provider (the serializer is supplied by the caller).
+ */
+final class SubmissionXmlGenerator {
+
+  private static final String t = "SubmissionXmlGenerator";
+
+  static final String XML_OPENROSA_NAMESPACE = "http://openrosa.org/xforms";
+
+  private SubmissionXmlGenerator() {
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void generateXmlHelper(XmlSerializer s, String key, Map<String, Object> values,
+      WebLoggerIf logger) throws IOException {
+    Object o = values.get(key);
+
+    s.startTag(null, key);
+
+    if (o == null) {
+      logger.e(t, "Unexpected null value");
+    } else if (o instanceof Integer) {
+      s.text(((Integer) o).toString());
+    } else if (o instanceof Double) {
+      s.text(((Double) o).toString());
+    } else if (o instanceof Boolean) {
+      s.text(((Boolean) o).toString());
+    } else if (o instanceof String) {
+      s.text((String) o);
+    } else if (o instanceof List) {
+      StringBuilder b = new StringBuilder();
+      List<Object> al = (List<Object>) o;
+      for (Object ob : al) {
+        if (ob instanceof Integer) {
+          b.append(((Integer) ob).toString());
+        } else if (ob instanceof Double) {
+          b.append(((Double) ob).toString());
+        } else if (ob instanceof Boolean) {
+          b.append(((Boolean) ob).toString());
+        } else if (ob instanceof String) {
+          b.append(((String) ob));
+        } else {
+          throw new IllegalArgumentException("Unexpected type in XML submission serializer");
+        }
+        b.append(" ");
+      }
+      s.text(b.toString().trim());
+    } else if (o instanceof Map) {
+      // it is an object...
+      Map<String, Object> m = (Map<String, Object>) o;
+
+      ArrayList<String> entryNames = new ArrayList<String>();
+      entryNames.addAll(m.keySet());
+      Collections.sort(entryNames);
+      for (String name : entryNames) {
+        generateXmlHelper(s, name, m, logger);
+      }
+    } else {
+      throw new IllegalArgumentException("Unexpected object type in XML submission serializer");
+    }
+    s.endTag(null, key);
+  }
+
+  /**
+   * Serialize the XML submission onto the stream as it is generated.
+   * The stream is flushed but not closed.
+   *
+   * @param s the serializer to use (e.g., Xml.newSerializer())
+   * @param out
+   * @param rootElementName
+   * @param tableId
+   * @param metaElements { namespace, element name, value } of the meta block, in order
+   * @param values the user-defined column values
+   * @param logger
+   * @throws IOException
+   */
+  static void generateXml(XmlSerializer s, OutputStream out, String rootElementName,
+      String tableId, List<String[]> metaElements, Map<String, Object> values,
+      WebLoggerIf logger) throws IOException {
+    // no startDocument() -- the XML declaration is omitted
+    s.setOutput(out, CharEncoding.UTF_8);
+    s.startTag(null, rootElementName);
+    s.attribute(null, "id", tableId);
+
+    s.setPrefix("jr", XML_OPENROSA_NAMESPACE);
+    s.startTag(XML_OPENROSA_NAMESPACE, "meta");
+    for (String[] meta : metaElements) {
+      s.startTag(meta[0], meta[1]);
+      if (meta[2] != null) {
+        s.text(meta[2]);
+      }
+      s.endTag(meta[0], meta[1]);
+    }
+    s.endTag(XML_OPENROSA_NAMESPACE, "meta");
+
+    ArrayList<String> entryNames = new ArrayList<String>();
+    entryNames.addAll(values.keySet());
+    Collections.sort(entryNames);
+    for (String name : entryNames) {
+      generateXmlHelper(s, name, values, logger);
+    }
+
+    s.endTag(null, rootElementName);
+    s.flush();
+  }
+}
@@ -38,6 +38,7 @@ import org.opendatakit.services.sync.service.logic.AggregateSynchronizer;
 import org.opendatakit.services.sync.service.logic.ProcessAppAndTableLevelChanges;
 import org.opendatakit.services.sync.service.logic.Synchronizer;
 
+import java.io.File;
 import java.util.List;
 
 public class AppSynchronizer {
@@ -279,38 +280,49 @@ public class AppSynchronizer {
 
         ProcessRowDataOrchestrateChanges rowDataProcessor = new ProcessRowDataOrchestrateChanges(sharedContext);
 
-        List<TableResource> workingListOfTables = null;
         try {
-          // sync the app-level files, table schemas and table-level files
-          workingListOfTables = appAndTableLevelProcessor.synchronizeConfigurationAndContent(push);
-        } catch (ServicesAvailabilityException e) {
-          WebLogger.getLogger(appName).printStackTrace(e);
-          if (syncResult.getAppLevelSyncOutcome() == SyncOutcome.WORKING) {
-            syncResult.setAppLevelSyncOutcome(SyncOutcome.LOCAL_DATABASE_EXCEPTION);
-          }
-        }
-
-        if (syncResult.getAppLevelSyncOutcome() != SyncOutcome.SUCCESS) {
-          WebLogger.getLogger(appName)
-                  .e(TAG, "Abandoning data row update -- app-level sync was not successful!");
-        } else if (workingListOfTables != null) {
-          // and now sync the data rows. This does not proceed if there
-          // was an app-level sync failure or if the particular tableId
-          // experienced a table-level sync failure in the preceeding step.
-
+          List<TableResource> workingListOfTables = null;
+          // hash the new and changed config files in one pass (and drop the
+          // entries of deleted ones) before they are compared to the manifests
+          sharedContext.getFileHashCache().warmUp(
+              new File(ODKFileUtils.getConfigFolder(appName)));
           try {
-            rowDataProcessor.synchronizeDataRowsAndAttachments(workingListOfTables, attachmentState);
+            // sync the app-level files, table schemas and table-level files
+            workingListOfTables = appAndTableLevelProcessor.synchronizeConfigurationAndContent(push);
           } catch (ServicesAvailabilityException e) {
             WebLogger.getLogger(appName).printStackTrace(e);
-          } finally {
-            for (TableLevelResult tlr : syncResult.getTableLevelResults()) {
-              if (tlr.getSyncOutcome() == SyncOutcome.WORKING) {
-                WebLogger.getLogger(appName).e(TAG, "Abandoning data row update " + tlr.getTableId()
-                        + " -- exception aborts processing!");
-                tlr.setSyncOutcome(SyncOutcome.FAILURE);
+            if (syncResult.getAppLevelSyncOutcome() == SyncOutcome.WORKING) {
+              syncResult.setAppLevelSyncOutcome(SyncOutcome.LOCAL_DATABASE_EXCEPTION);
+            }
+          }
+
+          if (syncResult.getAppLevelSyncOutcome() != SyncOutcome.SUCCESS) {
+            WebLogger.getLogger(appName)
+                    .e(TAG, "Abandoning data row update -- app-level sync was not successful!");
+          } else if (workingListOfTables != null) {
+            // and now sync the data rows. This does not proceed if there
+            // was an app-level sync failure or if the particular tableId
+            // experienced a table-level sync failure in the preceeding step.
+
+            try {
+              rowDataProcessor.synchronizeDataRowsAndAttachments(workingListOfTables, attachmentState);
+            } catch (ServicesAvailabilityException e) {
+              WebLogger.getLogger(appName).printStackTrace(e);
+            } finally {
+              for (TableLevelResult tlr : syncResult.getTableLevelResults()) {
+                if (tlr.getSyncOutcome() == SyncOutcome.WORKING) {
+                  WebLogger.getLogger(appName).e(TAG, "Abandoning data row update " + tlr.getTableId()
+                          + " -- exception aborts processing!");
+                  tlr.setSyncOutcome(SyncOutcome.FAILURE);
+                }
               }
             }
           }
+        } finally {
+          // stop the attachment workers (closing their database handles) and
+          // close the connection shared by the hash cache and the batch sizes
+          sharedContext.shutdownAttachmentTransferPipeline();
+          sharedContext.closeInternalUseConnection();
         }
       } catch (InvalidAuthTokenException e) {
         syncResult.setAppLevelSyncOutcome(SyncOutcome.ACCESS_DENIED_REAUTH_EXCEPTION);
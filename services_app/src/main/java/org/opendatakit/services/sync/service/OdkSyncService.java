@@ -25,6 +25,8 @@ import android.app.Service;
 import android.content.Intent;
 import android.os.IBinder;
 import org.opendatakit.consts.IntentConsts;
+import org.opendatakit.services.database.AndroidConnectFactory;
+import org.opendatakit.services.database.OdkConnectionFactorySingleton;
 import org.opendatakit.sync.service.SyncAttachmentState;
 import org.opendatakit.sync.service.SyncOverallResult;
 import org.opendatakit.sync.service.SyncProgressEvent;
@@ -139,6 +141,13 @@ public class OdkSyncService extends Service {
 
   @Override
   public void onCreate() {
+    // the sync holds a few long-lived internal-use connections (e.g., the file
+    // hash cache) and makes no content provider calls; do not pre-open and
+    // keep idle a pool of connections in this process.
+    AndroidConnectFactory.configure();
+    OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+        .setConnectionPoolLimits(0, 0, 0L);
+
     serviceInterface = new OdkSyncServiceInterfaceImpl(this);
     notificationManager = new GlobalSyncNotificationManager(this);
     shutdownTester = Executors.newSingleThreadScheduledExecutor();
@@ -43,12 +43,23 @@ import org.opendatakit.database.service.UserDbInterface;
 import org.opendatakit.database.data.KeyValueStoreEntry;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.database.service.AidlDbInterface;
+import org.opendatakit.services.database.InternalUseConnectionSession;
+import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.utlities.FileContentHashUtils;
+import org.opendatakit.services.database.utlities.SyncBatchSizesUtils;
+import org.opendatakit.services.sync.service.logic.AggregateSynchronizer;
+import org.opendatakit.services.sync.service.logic.AttachmentTransferPipeline;
+import org.opendatakit.services.sync.service.logic.HttpRestProtocolWrapper;
+import org.opendatakit.services.sync.service.logic.ProcessRowDataOrchestrateChanges;
+import org.opendatakit.services.sync.service.logic.SyncBatchSizer;
 import org.opendatakit.services.sync.service.logic.Synchronizer;
 import org.opendatakit.services.sync.service.logic.Synchronizer.SynchronizerStatus;
 import org.sqlite.database.sqlite.SQLiteException;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class SyncExecutionContext implements SynchronizerStatus {
 
@@ -57,6 +68,20 @@ public class SyncExecutionContext implements SynchronizerStatus {
 
   private static final int OVERALL_PROGRESS_BAR_LENGTH = 6350400;
 
+  /**
+   * Optional app properties that tune the retrying of interrupted file downloads
+   * (see {@link AggregateSynchronizer#setDownloadRetryPolicy(int, long, long)}).
+   * Absent or invalid values leave the defaults in effect.
+   */
+  public static final String KEY_SYNC_DOWNLOAD_MAX_ATTEMPTS = "sync.download_max_attempts";
+  public static final String KEY_SYNC_DOWNLOAD_MAX_BACKOFF = "sync.download_max_backoff_ms";
+
+  /**
+   * Optional app property: the number of tables whose data rows and attachments
+   * are synchronized concurrently (1 synchronizes them one after another).
+   */
+  public static final String KEY_SYNC_MAX_CONCURRENT_TABLES = "sync.max_concurrent_tables";
+
   /**
    * The results of the synchronization that we will pass back to the user.
    */
@@ -77,14 +102,42 @@ public class SyncExecutionContext implements SynchronizerStatus {
   private final String googleAccount;
   private final String username;
   private final String password;
+  private final int downloadMaxAttempts;
+  private final long downloadMaxBackoffMilliseconds;
+  private final int maxConcurrentTables;
 
   private final SyncNotification syncProgress;
 
   // set this later
   private Synchronizer synchronizer;
 
+  // one direct database connection for the whole sync, for the sync-private
+  // state that is not reachable through the database service interface
+  private final InternalUseConnectionSession internalUseConnection;
+
+  // per-table pull and push batch sizes, learned across syncs
+  private final SyncBatchSizer batchSizer;
+
+  // cached MD5 hashes of local files
+  private final FileContentHashUtils.HashCacheSession fileHashCache;
+
+  // row-level attachment transfers of all tables; created when first needed
+  private AttachmentTransferPipeline attachmentTransferPipeline = null;
+
   private DbHandle odkDbHandle = null;
 
+  /**
+   * When tables are synchronized concurrently, each worker thread has its own
+   * database handle. Transactions on a handle are not isolated between threads.
+   */
+  private final ThreadLocal<DbHandle> workerDbHandle = new ThreadLocal<DbHandle>();
+
+  /**
+   * The progress percentage within its major sync step of each active worker thread.
+   * Guarded by this.
+   */
+  private final HashMap<Thread, Double> workerProgress = new HashMap<Thread, Double>();
+
   public SyncExecutionContext(Context context, String versionCode, String appName,
       SyncNotification syncProgress,
       SyncOverallResult syncResult) {
@@ -95,6 +148,26 @@ public class SyncExecutionContext implements SynchronizerStatus {
     this.userAgent = "Sync " + versionCode + " (gzip)";
     this.syncProgress = syncProgress;
     this.synchronizer = null;
+    this.internalUseConnection = new InternalUseConnectionSession(appName);
+    this.batchSizer = new SyncBatchSizer(appName, new SyncBatchSizer.Store() {
+      @Override
+      public Map<String, Map<String, Integer>> load() {
+        OdkConnectionInterface db = internalUseConnection.getConnection();
+        if (db == null) {
+          return null;
+        }
+        return new SyncBatchSizesUtils().getSyncBatchSizes(db, getAggregateUri());
+      }
+
+      @Override
+      public void save(Map<String, Map<String, Integer>> sizes) {
+        OdkConnectionInterface db = internalUseConnection.getConnection();
+        if (db != null) {
+          new SyncBatchSizesUtils().replaceSyncBatchSizes(db, getAggregateUri(), sizes);
+        }
+      }
+    });
+    this.fileHashCache = new FileContentHashUtils.HashCacheSession(internalUseConnection);
     this.mUserResult = syncResult;
 
     PropertiesSingleton props = CommonToolProperties.get(context, appName);
@@ -104,12 +177,38 @@ public class SyncExecutionContext implements SynchronizerStatus {
     this.googleAccount = props.getProperty(CommonToolProperties.KEY_ACCOUNT);
     this.username = props.getProperty(CommonToolProperties.KEY_USERNAME);
     this.password = props.getProperty(CommonToolProperties.KEY_PASSWORD);
+    this.downloadMaxAttempts = (int) getLongProperty(props, KEY_SYNC_DOWNLOAD_MAX_ATTEMPTS,
+        AggregateSynchronizer.DEFAULT_DOWNLOAD_MAX_ATTEMPTS, 1, 100);
+    this.downloadMaxBackoffMilliseconds = getLongProperty(props, KEY_SYNC_DOWNLOAD_MAX_BACKOFF,
+        AggregateSynchronizer.DEFAULT_DOWNLOAD_MAX_BACKOFF_MILLISECONDS,
+        AggregateSynchronizer.DEFAULT_DOWNLOAD_INITIAL_BACKOFF_MILLISECONDS, 3600000L);
+    this.maxConcurrentTables = (int) getLongProperty(props, KEY_SYNC_MAX_CONCURRENT_TABLES,
+        ProcessRowDataOrchestrateChanges.DEFAULT_MAX_CONCURRENT_TABLES, 1,
+        HttpRestProtocolWrapper.MAX_CONNECTIONS_PER_ROUTE);
 
     this.nMajorSyncSteps = 1;
     this.GRAINS_PER_MAJOR_SYNC_STEP = (OVERALL_PROGRESS_BAR_LENGTH / nMajorSyncSteps);
     this.iMajorSyncStep = 0;
   }
 
+  private long getLongProperty(PropertiesSingleton props, String key, long defaultValue,
+      long minValue, long maxValue) {
+    if (!props.containsKey(key)) {
+      return defaultValue;
+    }
+    String value = props.getProperty(key);
+    try {
+      long v = Long.parseLong(value.trim());
+      if (v >= minValue && v <= maxValue) {
+        return v;
+      }
+    } catch (Exception e) {
+      // fall through
+    }
+    WebLogger.getLogger(appName).w(TAG, "ignoring invalid value " + value + " of " + key);
+    return defaultValue;
+  }
+
   public void setSynchronizer(Synchronizer synchronizer) {
     this.synchronizer = synchronizer;
   }
@@ -175,7 +274,9 @@ public class SyncExecutionContext implements SynchronizerStatus {
   }
 
   public TableLevelResult getTableLevelResult(String tableId) {
-    return mUserResult.fetchTableLevelResult(tableId);
+    synchronized (mUserResult) {
+      return mUserResult.fetchTableLevelResult(tableId);
+    }
   }
   
   public String getAppName() {
@@ -198,6 +299,70 @@ public class SyncExecutionContext implements SynchronizerStatus {
     return synchronizer;
   }
 
+  /**
+   * @return total number of attempts at downloading a file
+   */
+  public int getDownloadMaxAttempts() {
+    return downloadMaxAttempts;
+  }
+
+  /**
+   * @return upper bound on the delay between download attempts
+   */
+  public long getDownloadMaxBackoffMilliseconds() {
+    return downloadMaxBackoffMilliseconds;
+  }
+
+  /**
+   * @return maximum number of tables to synchronize at once
+   */
+  public int getMaxConcurrentTables() {
+    return maxConcurrentTables;
+  }
+
+  public SyncBatchSizer getBatchSizer() {
+    return batchSizer;
+  }
+
+  /**
+   * @return the hash cache used to compare local files against the server's manifests
+   */
+  public FileContentHashUtils.HashCacheSession getFileHashCache() {
+    return fileHashCache;
+  }
+
+  /**
+   * Release the database connection used by the hash cache and the batch sizes.
+   * Called when the sync ends.
+   */
+  public void closeInternalUseConnection() {
+    internalUseConnection.close();
+  }
+
+  /**
+   * @return the pipeline shared by all tables for transferring row-level attachments
+   */
+  public synchronized AttachmentTransferPipeline getAttachmentTransferPipeline() {
+    if ( attachmentTransferPipeline == null ) {
+      attachmentTransferPipeline = new AttachmentTransferPipeline(this);
+    }
+    return attachmentTransferPipeline;
+  }
+
+  /**
+   * Stop the attachment pipeline's workers, if it was started. Called when the sync ends.
+   */
+  public void shutdownAttachmentTransferPipeline() {
+    AttachmentTransferPipeline pipeline;
+    synchronized (this) {
+      pipeline = attachmentTransferPipeline;
+      attachmentTransferPipeline = null;
+    }
+    if ( pipeline != null ) {
+      pipeline.shutdown();
+    }
+  }
+
   public AccountManager getAccountManager() {
     AccountManager accountManager = AccountManager.get(application);
     return accountManager;
@@ -247,6 +412,10 @@ public class SyncExecutionContext implements SynchronizerStatus {
   private int refCount = 1;
 
   public synchronized DbHandle getDatabase() throws ServicesAvailabilityException {
+    DbHandle workerHandle = workerDbHandle.get();
+    if ( workerHandle != null ) {
+      return workerHandle;
+    }
     if ( odkDbHandle == null ) {
       odkDbHandle = getDatabaseService().openDatabase(appName);
     }
@@ -259,6 +428,10 @@ public class SyncExecutionContext implements SynchronizerStatus {
 
   public synchronized void releaseDatabase(DbHandle odkDbHandle) throws ServicesAvailabilityException {
     if ( odkDbHandle != null ) {
+      if ( odkDbHandle == workerDbHandle.get() ) {
+        // released in closeWorkerDatabase()
+        return;
+      }
       if ( odkDbHandle != this.odkDbHandle ) {
         throw new IllegalArgumentException("Expected the internal odkDbHandle!");
       }
@@ -275,6 +448,67 @@ public class SyncExecutionContext implements SynchronizerStatus {
     }
   }
 
+  /**
+   * Called on a worker thread before it begins synchronizing a major sync step
+   * concurrently with other workers. Until {@link #endWorker()} is called,
+   * {@link #getDatabase()} returns a database handle private to this thread and
+   * progress notifications from this thread are aggregated with those of the
+   * other active workers.
+   *
+   * @throws ServicesAvailabilityException
+   */
+  public void beginWorker() throws ServicesAvailabilityException {
+    openWorkerDatabase();
+    synchronized (this) {
+      workerProgress.put(Thread.currentThread(), 0.0);
+    }
+  }
+
+  /**
+   * Called on a worker thread when it has finished its major sync step.
+   * Closes the database handle private to this thread.
+   *
+   * @throws ServicesAvailabilityException
+   */
+  public void endWorker() throws ServicesAvailabilityException {
+    synchronized (this) {
+      workerProgress.remove(Thread.currentThread());
+    }
+    closeWorkerDatabase();
+  }
+
+  /**
+   * Open a database handle private to the calling thread. Until
+   * {@link #closeWorkerDatabase()} is called, {@link #getDatabase()} returns
+   * this handle on this thread. Does nothing if the calling thread already
+   * has one.
+   *
+   * @throws ServicesAvailabilityException
+   */
+  public void openWorkerDatabase() throws ServicesAvailabilityException {
+    if ( workerDbHandle.get() != null ) {
+      return;
+    }
+    DbHandle workerHandle = getDatabaseService().openDatabase(appName);
+    if ( workerHandle == null ) {
+      throw new IllegalStateException("Unable to obtain database handle from Services Services!");
+    }
+    workerDbHandle.set(workerHandle);
+  }
+
+  /**
+   * Close the database handle private to the calling thread.
+   *
+   * @throws ServicesAvailabilityException
+   */
+  public void closeWorkerDatabase() throws ServicesAvailabilityException {
+    DbHandle workerHandle = workerDbHandle.get();
+    workerDbHandle.remove();
+    if ( workerHandle != null ) {
+      getDatabaseService().closeDatabase(appName, workerHandle);
+    }
+  }
+
   public String getTableDisplayName(String tableId) throws ServicesAvailabilityException {
     DbHandle db = null;
     try {
@@ -391,13 +625,23 @@ public class SyncExecutionContext implements SynchronizerStatus {
     }
   }
 
-  public void resetMajorSyncSteps(int nMajorSyncSteps) {
+  public synchronized void resetMajorSyncSteps(int nMajorSyncSteps) {
     this.nMajorSyncSteps = nMajorSyncSteps;
     this.GRAINS_PER_MAJOR_SYNC_STEP = (OVERALL_PROGRESS_BAR_LENGTH / nMajorSyncSteps);
     this.iMajorSyncStep = 0;
   }
   
-  public void incMajorSyncStep() {
+  /**
+   * Called on a worker thread when its major sync step has completed. Counts
+   * the step as done and drops the worker's partial progress in one update,
+   * so that the reported progress does not move backwards.
+   */
+  public synchronized void completeWorkerStep() {
+    incMajorSyncStep();
+    workerProgress.remove(Thread.currentThread());
+  }
+
+  public synchronized void incMajorSyncStep() {
     ++iMajorSyncStep;
     if ( iMajorSyncStep > nMajorSyncSteps ) {
       iMajorSyncStep = nMajorSyncSteps - 1;
@@ -405,8 +649,8 @@ public class SyncExecutionContext implements SynchronizerStatus {
   }
   
   @Override
-  public void updateNotification(SyncProgressState state, int textResource, Object[] formatArgVals,
-                                 Double progressPercentage, boolean indeterminateProgress) {
+  public synchronized void updateNotification(SyncProgressState state, int textResource,
+      Object[] formatArgVals, Double progressPercentage, boolean indeterminateProgress) {
     String text = "Bad text resource id: " + textResource + "!";
     String fmt = application.getString(textResource);
     if (fmt != null) {
@@ -416,9 +660,22 @@ public class SyncExecutionContext implements SynchronizerStatus {
         text = String.format(fmt, formatArgVals);
       }
     }
-    syncProgress.updateNotification(state, text, OVERALL_PROGRESS_BAR_LENGTH, (int) (iMajorSyncStep
-        * GRAINS_PER_MAJOR_SYNC_STEP + ((progressPercentage != null) ? (progressPercentage
-        * GRAINS_PER_MAJOR_SYNC_STEP / 100.0) : 0.0)), indeterminateProgress);
+    double stepPercentage = (progressPercentage != null) ? progressPercentage : 0.0;
+    if ( !workerProgress.isEmpty() ) {
+      // concurrent workers: completed steps are counted in iMajorSyncStep;
+      // add the partial progress of every step still in flight.
+      Thread current = Thread.currentThread();
+      if ( progressPercentage != null && workerProgress.containsKey(current) ) {
+        workerProgress.put(current, progressPercentage);
+      }
+      stepPercentage = 0.0;
+      for ( Double workerPercentage : workerProgress.values() ) {
+        stepPercentage += workerPercentage;
+      }
+    }
+    syncProgress.updateNotification(state, text, OVERALL_PROGRESS_BAR_LENGTH,
+        (int) (iMajorSyncStep * GRAINS_PER_MAJOR_SYNC_STEP
+            + (stepPercentage * GRAINS_PER_MAJOR_SYNC_STEP / 100.0)), indeterminateProgress);
   }
 
 }
@@ -18,23 +18,20 @@ package org.opendatakit.services.sync.service.logic;
 import com.fasterxml.jackson.core.type.TypeReference;
 
 import org.apache.commons.fileupload.MultipartStream;
-import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.CharEncoding;
+import org.opendatakit.aggregate.odktables.rest.ApiConstants;
 import org.opendatakit.aggregate.odktables.rest.entity.AppNameList;
 import org.opendatakit.aggregate.odktables.rest.entity.ChangeSetList;
 import org.opendatakit.aggregate.odktables.rest.entity.Column;
-import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
 import org.opendatakit.aggregate.odktables.rest.entity.OdkTablesFileManifest;
 import org.opendatakit.aggregate.odktables.rest.entity.OdkTablesFileManifestEntry;
-import org.opendatakit.aggregate.odktables.rest.entity.Row;
-import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
-import org.opendatakit.aggregate.odktables.rest.entity.RowList;
 import org.opendatakit.aggregate.odktables.rest.entity.RowOutcomeList;
 import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
 import org.opendatakit.aggregate.odktables.rest.entity.TableDefinition;
 import org.opendatakit.aggregate.odktables.rest.entity.TableDefinitionResource;
 import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
 import org.opendatakit.aggregate.odktables.rest.entity.TableResourceList;
-import org.opendatakit.database.data.ColumnDefinition;
 import org.opendatakit.database.data.OrderedColumns;
 import org.opendatakit.httpclientandroidlib.Header;
 import org.opendatakit.httpclientandroidlib.HeaderElement;
@@ -58,13 +55,13 @@ import org.opendatakit.httpclientandroidlib.message.BasicNameValuePair;
 import org.opendatakit.httpclientandroidlib.util.EntityUtils;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.logging.WebLoggerIf;
-import org.opendatakit.provider.DataTableColumns;
 import org.opendatakit.services.sync.service.SyncExecutionContext;
 import org.opendatakit.services.sync.service.exceptions.AccessDeniedException;
 import org.opendatakit.services.sync.service.exceptions.BadClientConfigException;
 import org.opendatakit.services.sync.service.exceptions.ClientDetectedMissingConfigForClientVersionException;
 import org.opendatakit.services.sync.service.exceptions.ClientDetectedVersionMismatchedServerResponseException;
 import org.opendatakit.services.sync.service.exceptions.HttpClientWebException;
+import org.opendatakit.services.sync.service.exceptions.InternalServerFailureException;
 import org.opendatakit.services.sync.service.exceptions.InvalidAuthTokenException;
 import org.opendatakit.services.sync.service.exceptions.NetworkTransmissionException;
 import org.opendatakit.services.sync.service.exceptions.ServerDoesNotRecognizeAppNameException;
@@ -107,15 +104,41 @@ public class AggregateSynchronizer implements Synchronizer {
    */
   public static final long MAX_BATCH_SIZE = 10485760;
 
+  /**
+   * Default retry policy for file downloads.
+   */
+  public static final int DEFAULT_DOWNLOAD_MAX_ATTEMPTS = 6;
+  public static final long DEFAULT_DOWNLOAD_INITIAL_BACKOFF_MILLISECONDS = 1000L;
+  public static final long DEFAULT_DOWNLOAD_MAX_BACKOFF_MILLISECONDS = 60000L;
+
+  /**
+   * Suffixes of the partial content of an interrupted download and of the
+   * server ETag that content was retrieved under.
+   */
+  private static final String PARTIAL_DOWNLOAD_SUFFIX = ".tmp";
+  private static final String ETAG_SUFFIX = ".etag";
+  private static final String PARTIAL_DOWNLOAD_ETAG_SUFFIX = PARTIAL_DOWNLOAD_SUFFIX + ETAG_SUFFIX;
+
+  /**
+   * A partial download that has not been resumed for this long is discarded
+   * by the local file scans (see {@link #deleteIfStalePartialDownload(File)}).
+   */
+  public static final long PARTIAL_DOWNLOAD_MAX_AGE_MILLISECONDS = 7L * 24L * 3600L * 1000L;
 
   private SyncExecutionContext sc;
   private HttpRestProtocolWrapper wrapper;
   private final WebLoggerIf log;
 
+  private int downloadMaxAttempts = DEFAULT_DOWNLOAD_MAX_ATTEMPTS;
+  private long downloadInitialBackoffMilliseconds = DEFAULT_DOWNLOAD_INITIAL_BACKOFF_MILLISECONDS;
+  private long downloadMaxBackoffMilliseconds = DEFAULT_DOWNLOAD_MAX_BACKOFF_MILLISECONDS;
+
   public AggregateSynchronizer(SyncExecutionContext sc) throws InvalidAuthTokenException {
     this.sc = sc;
     this.wrapper = new HttpRestProtocolWrapper(sc);
     this.log = WebLogger.getLogger(sc.getAppName());
+    setDownloadRetryPolicy(sc.getDownloadMaxAttempts(),
+        DEFAULT_DOWNLOAD_INITIAL_BACKOFF_MILLISECONDS, sc.getDownloadMaxBackoffMilliseconds());
   }
 
   @Override
@@ -157,9 +180,7 @@ public class AggregateSynchronizer implements Synchronizer {
                 request, response);
       }
 
-      String res = wrapper.convertResponseToString(response);
-
-      appNameList = ODKFileUtils.mapper.readValue(res, AppNameList.class);
+      appNameList = wrapper.readJsonResponse(response, AppNameList.class);
 
       if (!appNameList.contains(sc.getAppName())) {
         throw new ServerDoesNotRecognizeAppNameException("server does not recognize this appName",
@@ -198,10 +219,9 @@ public class AggregateSynchronizer implements Synchronizer {
         return new ArrayList<String>();
       }
 
-      String res = wrapper.convertResponseToString(response);
-      TypeReference ref = new TypeReference<ArrayList<String>>() { };
+      TypeReference<ArrayList<String>> ref = new TypeReference<ArrayList<String>>() { };
 
-      ArrayList<String> rolesList = ODKFileUtils.mapper.readValue(res, ref);
+      ArrayList<String> rolesList = wrapper.readJsonResponse(response, ref);
 
       return rolesList;
 
@@ -241,10 +261,9 @@ public class AggregateSynchronizer implements Synchronizer {
         return new ArrayList<Map<String,Object>>();
       }
 
-      String res = wrapper.convertResponseToString(response);
-      TypeReference ref = new TypeReference<ArrayList<Map<String,Object>>>() { };
+      TypeReference<ArrayList<Map<String,Object>>> ref = new TypeReference<ArrayList<Map<String,Object>>>() { };
 
-      ArrayList<Map<String,Object>> rolesList = ODKFileUtils.mapper.readValue(res, ref);
+      ArrayList<Map<String,Object>> rolesList = wrapper.readJsonResponse(response, ref);
 
       return rolesList;
 
@@ -281,9 +300,7 @@ public class AggregateSynchronizer implements Synchronizer {
     try {
       response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_ONLY);
 
-      String res = wrapper.convertResponseToString(response);
-
-      tableResources = ODKFileUtils.mapper.readValue(res, TableResourceList.class);
+      tableResources = wrapper.readJsonResponse(response, TableResourceList.class);
 
       return tableResources;
     } finally {
@@ -309,9 +326,7 @@ public class AggregateSynchronizer implements Synchronizer {
     try {
       response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_ONLY);
 
-      String res = wrapper.convertResponseToString(response);
-
-      tableResource = ODKFileUtils.mapper.readValue(res, TableResource.class);
+      tableResource = wrapper.readJsonResponse(response, TableResource.class);
 
       return tableResource;
     } finally {
@@ -337,9 +352,7 @@ public class AggregateSynchronizer implements Synchronizer {
     try {
       response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_ONLY);
 
-      String res = wrapper.convertResponseToString(response);
-
-      definitionRes = ODKFileUtils.mapper.readValue(res, TableDefinitionResource.class);
+      definitionRes = wrapper.readJsonResponse(response, TableDefinitionResource.class);
 
       return definitionRes;
     } finally {
@@ -373,9 +386,7 @@ public class AggregateSynchronizer implements Synchronizer {
       // TODO: we also need to put up the key value store/properties.
       response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_ONLY);
 
-      String res = wrapper.convertResponseToString(response);
-
-      resource = ODKFileUtils.mapper.readValue(res, TableResource.class);
+      resource = wrapper.readJsonResponse(response, TableResource.class);
       return resource;
     } finally {
       if ( response != null ) {
@@ -422,9 +433,7 @@ public class AggregateSynchronizer implements Synchronizer {
 
     try {
       response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_ONLY);
-      String res = wrapper.convertResponseToString(response);
-
-      ChangeSetList changeSets = ODKFileUtils.mapper.readValue(res, ChangeSetList.class);
+      ChangeSetList changeSets = wrapper.readJsonResponse(response, ChangeSetList.class);
 
       return changeSets;
     } finally {
@@ -455,9 +464,7 @@ public class AggregateSynchronizer implements Synchronizer {
     try {
       response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_ONLY);
 
-      String res = wrapper.convertResponseToString(response);
-
-      RowResourceList rows = ODKFileUtils.mapper.readValue(res, RowResourceList.class);
+      RowResourceList rows = wrapper.readJsonResponse(response, RowResourceList.class);
 
       return rows;
     } finally {
@@ -490,9 +497,7 @@ public class AggregateSynchronizer implements Synchronizer {
     try {
       response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_ONLY);
 
-      String res = wrapper.convertResponseToString(response);
-
-      RowResourceList rows = ODKFileUtils.mapper.readValue(res, RowResourceList.class);
+      RowResourceList rows = wrapper.readJsonResponse(response, RowResourceList.class);
 
       return rows;
     } finally {
@@ -507,41 +512,12 @@ public class AggregateSynchronizer implements Synchronizer {
   public RowOutcomeList pushLocalRows(TableResource resource, OrderedColumns orderedColumns,
       List<org.opendatakit.database.data.Row> rowsToInsertUpdateOrDelete) throws IOException, HttpClientWebException {
 
-    ArrayList<Row> rows = new ArrayList<Row>();
-    for (org.opendatakit.database.data.Row rowToAlter : rowsToInsertUpdateOrDelete) {
-
-      ArrayList<DataKeyValue> values = new ArrayList<DataKeyValue>();
-      for (ColumnDefinition column : orderedColumns.getColumnDefinitions()) {
-        if (column.isUnitOfRetention()) {
-          String elementKey = column.getElementKey();
-          values.add(new DataKeyValue(elementKey, rowToAlter.getDataByKey(elementKey)));
-        }
-      }
-
-      Row row = Row.forUpdate(rowToAlter.getDataByKey(DataTableColumns.ID),
-          rowToAlter.getDataByKey(DataTableColumns.ROW_ETAG),
-          rowToAlter.getDataByKey(DataTableColumns.FORM_ID),
-          rowToAlter.getDataByKey(DataTableColumns.LOCALE),
-          rowToAlter.getDataByKey(DataTableColumns.SAVEPOINT_TYPE),
-          rowToAlter.getDataByKey(DataTableColumns.SAVEPOINT_TIMESTAMP),
-          rowToAlter.getDataByKey(DataTableColumns.SAVEPOINT_CREATOR),
-          RowFilterScope.asRowFilter(rowToAlter.getDataByKey(DataTableColumns.FILTER_TYPE),
-              rowToAlter.getDataByKey(DataTableColumns.FILTER_VALUE)),
-          values);
-
-      boolean isDeleted = SyncState.deleted.name().equals(
-          rowToAlter.getDataByKey(DataTableColumns.SYNC_STATE));
-      row.setDeleted(isDeleted);
-      rows.add(row);
-    }
-    RowList rlist = new RowList(rows, resource.getDataETag());
-
     HttpPut request = new HttpPut();
     CloseableHttpResponse response = null;
 
-    String rowListJSON = ODKFileUtils.mapper.writeValueAsString(rlist);
-    HttpEntity entity = new GzipCompressingEntity(new StringEntity(rowListJSON,
-        Charset.forName("UTF-8")));
+    // the RowList JSON is generated and gzipped as it is sent
+    HttpEntity entity = new RowListJsonEntity(orderedColumns, rowsToInsertUpdateOrDelete,
+        resource.getDataETag());
 
     URI uri = URI.create(resource.getDataUri());
     wrapper.buildJsonContentJsonResponseRequest(uri, request);
@@ -554,8 +530,7 @@ public class AggregateSynchronizer implements Synchronizer {
       if ( response.getStatusLine().getStatusCode() == HttpStatus.SC_CONFLICT ) {
         return null;
       }
-      String res = wrapper.convertResponseToString(response);
-      outcomes = ODKFileUtils.mapper.readValue(res, RowOutcomeList.class);
+      outcomes = wrapper.readJsonResponse(response, RowOutcomeList.class);
       return outcomes;
     } finally {
       if ( response != null ) {
@@ -602,12 +577,10 @@ public class AggregateSynchronizer implements Synchronizer {
       // update the manifest ETag record...
       String eTag = response.getFirstHeader(HttpHeaders.ETAG).getValue();
 
-      String res = wrapper.convertResponseToString(response);
-
       // retrieve the manifest...
       OdkTablesFileManifest manifest;
 
-      manifest = ODKFileUtils.mapper.readValue(res, OdkTablesFileManifest.class);
+      manifest = wrapper.readJsonResponse(response, OdkTablesFileManifest.class);
 
       if (manifest != null) {
         theList = manifest.getFiles();
@@ -676,8 +649,7 @@ public class AggregateSynchronizer implements Synchronizer {
       Header eTagHdr = response.getFirstHeader(HttpHeaders.ETAG);
       String eTag = eTagHdr.getValue();
 
-      String res = wrapper.convertResponseToString(response);
-      OdkTablesFileManifest manifest = ODKFileUtils.mapper.readValue(res, OdkTablesFileManifest.class);
+      OdkTablesFileManifest manifest = wrapper.readJsonResponse(response, OdkTablesFileManifest.class);
 
       if (manifest != null) {
         theList = manifest.getFiles();
@@ -736,8 +708,7 @@ public class AggregateSynchronizer implements Synchronizer {
       String eTag = eTagHdr.getValue();
 
       // retrieve the manifest...
-      String res = wrapper.convertResponseToString(response);
-      OdkTablesFileManifest manifest = ODKFileUtils.mapper.readValue(res, OdkTablesFileManifest.class);
+      OdkTablesFileManifest manifest = wrapper.readJsonResponse(response, OdkTablesFileManifest.class);
 
       if (manifest != null) {
         theList = manifest.getFiles();
@@ -769,115 +740,346 @@ public class AggregateSynchronizer implements Synchronizer {
   @Override
   public void downloadFile(File destFile, URI downloadUrl) throws HttpClientWebException,
       IOException {
+    downloadFile(destFile, downloadUrl, null);
+  }
 
-    // WiFi network connections can be renegotiated during a large form download
-    // sequence.
-    // This will cause intermittent download failures. Silently retry once after
-    // each
-    // failure. Only if there are two consecutive failures, do we abort.
-    boolean success = false;
+  /**
+   * Download the file at the given URI to the specified local file.
+   * <p>
+   * The content is accumulated in a .tmp file next to destFile. If a transfer is
+   * interrupted, that partial file is kept along with the server's ETag for it
+   * (in a .tmp.etag file) and the next attempt -- within this call or a later
+   * sync -- asks for just the remaining bytes with a Range request. The If-Range
+   * header makes the server send the full content instead if the file changed
+   * in the meantime.
+   * <p>
+   * Transient failures are retried with exponential backoff (see
+   * {@link #setDownloadRetryPolicy(int, long, long)}).
+   *
+   * @param destFile
+   * @param downloadUrl
+   * @param expectedMd5Hash md5 hash from the manifest, or null if not known.
+   *                        If supplied, the downloaded file must match it.
+   * @throws HttpClientWebException
+   * @throws IOException
+   */
+  @Override
+  public void downloadFile(File destFile, URI downloadUrl, String expectedMd5Hash)
+      throws HttpClientWebException, IOException {
+
+    File tmp = new File(destFile.getParentFile(), destFile.getName() + PARTIAL_DOWNLOAD_SUFFIX);
+    File tmpETag = new File(destFile.getParentFile(),
+        destFile.getName() + PARTIAL_DOWNLOAD_ETAG_SUFFIX);
+
+    // WiFi network connections can be renegotiated during a large download
+    // sequence and rural links drop frequently. Keep whatever was received,
+    // back off, and resume from where the previous attempt stopped.
     int attemptCount = 0;
-    while (!success && attemptCount++ <= 2) {
-
-      HttpGet request = new HttpGet();
-      // no body content-type and no response content-type requested
-      wrapper.buildBasicRequest(downloadUrl, request);
-      if ( destFile.exists() ) {
-        String md5Hash = ODKFileUtils.getMd5Hash(sc.getAppName(), destFile);
-        request.addHeader(HttpHeaders.IF_NONE_MATCH, md5Hash);
+    long backoffMilliseconds = downloadInitialBackoffMilliseconds;
+    for (;;) {
+      ++attemptCount;
+      try {
+        if (downloadFileAttempt(destFile, downloadUrl, expectedMd5Hash, tmp, tmpETag)) {
+          return;
+        }
+        // the resumed content did not verify; the partial file has been discarded.
+        log.w(LOGTAG, "downloading " + downloadUrl.toString()
+            + " produced a corrupt file -- restarting from the beginning");
+      } catch (IOException e) {
+        log.printStackTrace(e);
+        if (attemptCount >= downloadMaxAttempts) {
+          throw e;
+        }
+      } catch (HttpClientWebException e) {
+        log.printStackTrace(e);
+        if (!isTransientDownloadFailure(e) || attemptCount >= downloadMaxAttempts) {
+          throw e;
+        }
+      }
+      if (attemptCount >= downloadMaxAttempts) {
+        throw new ClientDetectedVersionMismatchedServerResponseException(
+            "downloading " + downloadUrl.toString() + " did not match the expected md5 hash");
       }
 
-      CloseableHttpResponse response = null;
+      log.i(LOGTAG, "downloading " + downloadUrl.toString() + " retry " + attemptCount
+          + " after " + backoffMilliseconds + "ms; " + (tmp.exists() ? tmp.length() : 0L)
+          + " bytes already received");
       try {
-        response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_SC_NOT_MODIFIED);
-        int statusCode = response.getStatusLine().getStatusCode();
+        Thread.sleep(backoffMilliseconds);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted while waiting to retry download of "
+            + downloadUrl.toString());
+      }
+      backoffMilliseconds = Math.min(downloadMaxBackoffMilliseconds, backoffMilliseconds * 2L);
+    }
+  }
 
-        if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
-          log.i(LOGTAG, "downloading " + downloadUrl.toString() + " returns non-modified -- No-Op");
-          return;
+  /**
+   * Set the retry policy of {@link #downloadFile(File, URI, String)}.
+   *
+   * @param maxAttempts                total number of attempts (at least 1)
+   * @param initialBackoffMilliseconds delay before the first retry; doubled for each retry
+   * @param maxBackoffMilliseconds     upper bound on the delay between retries
+   */
+  public void setDownloadRetryPolicy(int maxAttempts, long initialBackoffMilliseconds,
+      long maxBackoffMilliseconds) {
+    if (maxAttempts < 1 || initialBackoffMilliseconds < 0L
+        || maxBackoffMilliseconds < initialBackoffMilliseconds) {
+      throw new IllegalArgumentException("invalid download retry policy");
+    }
+    this.downloadMaxAttempts = maxAttempts;
+    this.downloadInitialBackoffMilliseconds = initialBackoffMilliseconds;
+    this.downloadMaxBackoffMilliseconds = maxBackoffMilliseconds;
+  }
+
+  /**
+   * @param f
+   * @return the other file of the partial download pair that f would belong to,
+   * or null if f does not have the name of a partial download or of its ETag.
+   */
+  private static File partialDownloadSibling(File f) {
+    String name = f.getName();
+    if (name.endsWith(PARTIAL_DOWNLOAD_ETAG_SUFFIX)) {
+      return new File(f.getParentFile(), name.substring(0, name.length() - ETAG_SUFFIX.length()));
+    } else if (name.endsWith(PARTIAL_DOWNLOAD_SUFFIX)) {
+      return new File(f.getParentFile(), name + ETAG_SUFFIX);
+    }
+    return null;
+  }
+
+  /**
+   * @param f
+   * @return true if f is a partial download (or its ETag) kept by
+   * {@link #downloadFile(File, URI, String)} so that it can be resumed.
+   * Both the .tmp file and its .tmp.etag file must be present; any other
+   * file with one of these suffixes is an ordinary file.
+   */
+  public static boolean isPartialDownloadFile(File f) {
+    File sibling = partialDownloadSibling(f);
+    return sibling != null && f.exists() && sibling.exists();
+  }
+
+  /**
+   * Delete a partial download kept by {@link #downloadFile(File, URI, String)}
+   * if it has not been resumed within {@link #PARTIAL_DOWNLOAD_MAX_AGE_MILLISECONDS}
+   * (the file was likely removed from the server or has changed since). Both
+   * files of the pair are deleted.
+   *
+   * @param f a file for which {@link #isPartialDownloadFile(File)} is true
+   * @return true if the partial download was stale and has been deleted
+   */
+  public static boolean deleteIfStalePartialDownload(File f) {
+    if (!isPartialDownloadFile(f)) {
+      return false;
+    }
+    File sibling = partialDownloadSibling(f);
+    long lastResumed = Math.max(f.lastModified(), sibling.lastModified());
+    if (System.currentTimeMillis() - lastResumed <= PARTIAL_DOWNLOAD_MAX_AGE_MILLISECONDS) {
+      return false;
+    }
+    boolean deleted = f.delete();
+    deleted = sibling.delete() && deleted;
+    return deleted;
+  }
+
+  private static boolean isTransientDownloadFailure(HttpClientWebException e) {
+    return (e instanceof NetworkTransmissionException) ||
+        (e instanceof InternalServerFailureException);
+  }
+
+  /**
+   * One attempt at downloading the file, resuming from the partial tmp file if
+   * there is one.
+   *
+   * @return false if the resumed content failed verification and must be
+   * fetched again from the beginning; true if destFile is up-to-date.
+   */
+  private boolean downloadFileAttempt(File destFile, URI downloadUrl, String expectedMd5Hash,
+      File tmp, File tmpETag) throws HttpClientWebException, IOException {
+
+    String partialETag = null;
+    long offset = 0L;
+    if (tmp.exists() && tmp.length() > 0L && tmpETag.exists()) {
+      partialETag = readDownloadETag(tmpETag);
+      if (partialETag != null) {
+        offset = tmp.length();
+      }
+    }
+    if (offset == 0L) {
+      discardPartialDownload(tmp, tmpETag);
+    }
+
+    HttpGet request = new HttpGet();
+    // no body content-type and no response content-type requested
+    wrapper.buildBasicRequest(downloadUrl, request);
+    if (destFile.exists()) {
+      String md5Hash = sc.getFileHashCache().getMd5Hash(destFile);
+      request.addHeader(HttpHeaders.IF_NONE_MATCH, md5Hash);
+    }
+    if (offset != 0L) {
+      // byte ranges refer to the unencoded entity; do not ask for gzip
+      request.removeHeaders(ApiConstants.ACCEPT_CONTENT_ENCODING_HEADER);
+      request.addHeader(HttpHeaders.RANGE, "bytes=" + Long.toString(offset) + "-");
+      request.addHeader(HttpHeaders.IF_RANGE, partialETag);
+    }
+
+    CloseableHttpResponse response = null;
+    try {
+      response = wrapper.httpClientExecute(request,
+          HttpRestProtocolWrapper.SC_OK_SC_PARTIAL_CONTENT_SC_NOT_MODIFIED);
+      int statusCode = response.getStatusLine().getStatusCode();
+
+      if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+        log.i(LOGTAG, "downloading " + downloadUrl.toString() + " returns non-modified -- No-Op");
+        discardPartialDownload(tmp, tmpETag);
+        return true;
+      }
+
+      if (statusCode == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+        // the partial file is no longer consistent with the server's content
+        log.w(LOGTAG, "downloading " + downloadUrl.toString() + " range not satisfiable");
+        discardPartialDownload(tmp, tmpETag);
+        throw new IOException("requested range not satisfiable -- restarting download");
+      }
+
+      boolean append = false;
+      if (statusCode == HttpStatus.SC_PARTIAL_CONTENT) {
+        Header contentRange = response.getFirstHeader(HttpHeaders.CONTENT_RANGE);
+        if (contentRange == null ||
+            !contentRange.getValue().trim().startsWith("bytes " + Long.toString(offset) + "-")) {
+          discardPartialDownload(tmp, tmpETag);
+          throw new IOException("unexpected Content-Range in response -- restarting download");
         }
+        append = true;
+        log.i(LOGTAG, "downloading " + downloadUrl.toString() + " resuming at " + offset);
+      } else {
+        // full content (the server ignored the Range or the file changed)
+        offset = 0L;
+        discardPartialDownload(tmp, tmpETag);
+        Header eTag = response.getFirstHeader(HttpHeaders.ETAG);
+        if (eTag != null && eTag.getValue() != null && eTag.getValue().length() != 0) {
+          writeDownloadETag(tmpETag, eTag.getValue());
+        }
+      }
 
-        File tmp = new File(destFile.getParentFile(), destFile.getName() + ".tmp");
-        int totalLen = 0;
-        InputStream is = null;
-        BufferedOutputStream os = null;
-        try {
-          // open the InputStream of the (uncompressed) entity body...
-          is = response.getEntity().getContent();
-
-          os = new BufferedOutputStream(new FileOutputStream(tmp));
-
-          // write connection to temporary file
-          byte buf[] = new byte[8192];
-          int len;
-          while ((len = is.read(buf, 0, buf.length)) >= 0) {
-            if (len != 0) {
-              totalLen += len;
-              os.write(buf, 0, len);
-            }
-          }
-          is.close();
-          is = null;
+      long totalLen = 0L;
+      InputStream is = null;
+      BufferedOutputStream os = null;
+      try {
+        // open the InputStream of the (uncompressed) entity body...
+        is = response.getEntity().getContent();
 
-          os.flush();
-          os.close();
-          os = null;
+        os = new BufferedOutputStream(new FileOutputStream(tmp, append));
 
-          success = tmp.renameTo(destFile);
-        } catch (Exception e) {
-          // most likely a socket timeout
-          e.printStackTrace();
-          log.e(LOGTAG,  "downloading " + downloadUrl.toString() + " failed after " + totalLen + " bytes: " + e.toString());
-          try {
-            // signal to the framework that this socket is hosed.
-            // with the various nested streams, this may not work...
-            is.reset();
-          } catch ( Exception ex ) {
-            // ignore
-          }
-          throw e;
-        } finally {
-          if (os != null) {
-            try {
-              os.close();
-            } catch (Exception e) {
-              // no-op
-            }
-          }
-          if (is != null) {
-            try {
-              // ensure stream is consumed...
-              byte buf[] = new byte[8192];
-              while (is.read(buf) >= 0)
-                ;
-            } catch (Exception e) {
-              // no-op
-            }
-            try {
-              is.close();
-            } catch (Exception e) {
-              // no-op
-            }
-          }
-          if (tmp.exists()) {
-            tmp.delete();
+        // write connection to temporary file
+        byte buf[] = new byte[8192];
+        int len;
+        while ((len = is.read(buf, 0, buf.length)) >= 0) {
+          if (len != 0) {
+            totalLen += len;
+            os.write(buf, 0, len);
           }
+        }
+        is.close();
+        is = null;
 
-          if (response != null) {
-            response.close();
-          }
+        os.flush();
+        os.close();
+        os = null;
+      } catch (IOException e) {
+        // most likely a socket timeout; keep what we have for the next attempt
+        log.e(LOGTAG, "downloading " + downloadUrl.toString() + " failed after "
+            + (offset + totalLen) + " bytes: " + e.toString());
+        try {
+          // signal to the framework that this socket is hosed.
+          // with the various nested streams, this may not work...
+          is.reset();
+        } catch (Exception ex) {
+          // ignore
         }
-      } catch (Exception e) {
-        log.printStackTrace(e);
-        if (attemptCount != 1) {
-          throw e;
+        if (!tmpETag.exists()) {
+          // without a validator we cannot safely resume
+          discardPartialDownload(tmp, tmpETag);
         }
+        throw e;
       } finally {
-        if ( response != null ) {
-          EntityUtils.consumeQuietly(response.getEntity());
-          response.close();
+        if (os != null) {
+          try {
+            os.close();
+          } catch (Exception e) {
+            // no-op
+          }
+        }
+        if (is != null) {
+          try {
+            is.close();
+          } catch (Exception e) {
+            // no-op
+          }
         }
       }
+
+      if (expectedMd5Hash != null) {
+        String md5Hash = ODKFileUtils.getMd5Hash(sc.getAppName(), tmp);
+        if (!expectedMd5Hash.equals(md5Hash)) {
+          log.e(LOGTAG, "downloading " + downloadUrl.toString() + " md5 hash " + md5Hash
+              + " does not match manifest md5 hash " + expectedMd5Hash);
+          discardPartialDownload(tmp, tmpETag);
+          if (!append) {
+            // a complete, fresh copy is wrong; retrying will not help
+            throw new ClientDetectedVersionMismatchedServerResponseException("downloading "
+                + downloadUrl.toString() + " did not match the expected md5 hash");
+          }
+          return false;
+        }
+      }
+
+      if (!tmp.renameTo(destFile)) {
+        discardPartialDownload(tmp, tmpETag);
+        throw new IOException("unable to rename downloaded file to " + destFile.getAbsolutePath());
+      }
+      tmpETag.delete();
+      // replace the cached hash of the file we just overwrote
+      if (expectedMd5Hash != null) {
+        sc.getFileHashCache().putMd5Hash(destFile, expectedMd5Hash);
+      } else {
+        sc.getFileHashCache().invalidate(destFile);
+      }
+      return true;
+    } finally {
+      if (response != null) {
+        EntityUtils.consumeQuietly(response.getEntity());
+        response.close();
+      }
+    }
+  }
+
+  private static void discardPartialDownload(File tmp, File tmpETag) {
+    if (tmp.exists()) {
+      tmp.delete();
+    }
+    if (tmpETag.exists()) {
+      tmpETag.delete();
+    }
+  }
+
+  private String readDownloadETag(File tmpETag) {
+    try {
+      String eTag = FileUtils.readFileToString(tmpETag, CharEncoding.UTF_8);
+      return (eTag == null || eTag.length() == 0) ? null : eTag;
+    } catch (IOException e) {
+      log.w(LOGTAG, "unable to read " + tmpETag.getAbsolutePath() + ": " + e.toString());
+      return null;
+    }
+  }
+
+  private void writeDownloadETag(File tmpETag, String eTag) {
+    try {
+      FileUtils.writeStringToFile(tmpETag, eTag, CharEncoding.UTF_8);
+    } catch (IOException e) {
+      log.w(LOGTAG, "unable to write " + tmpETag.getAbsolutePath() + ": " + e.toString());
+      tmpETag.delete();
     }
   }
 
@@ -1127,6 +1329,8 @@ public class AggregateSynchronizer implements Synchronizer {
         File instFile = ODKFileUtils
             .getRowpathFile(sc.getAppName(), tableId, instanceId, partialPath);
 
+        // the content is being replaced; forget its cached hash
+        sc.getFileHashCache().invalidate(instFile);
         os = new BufferedOutputStream(new FileOutputStream(instFile));
 
         multipartStream.readBodyData(os);
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.sync.service.logic;
+
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.WebLoggerIf;
+import org.opendatakit.services.sync.service.SyncExecutionContext;
+import org.opendatakit.services.sync.service.exceptions.HttpClientWebException;
+import org.opendatakit.services.sync.service.exceptions.InternalServerFailureException;
+import org.opendatakit.services.sync.service.exceptions.NetworkTransmissionException;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transfers row-level file attachments for several rows at once.
+ * <p>
+ * Rows are processed on a bounded pool of worker threads, each with its own
+ * database handle, so that the upload and download batches of different rows
+ * are in flight at the same time rather than one after another. Each worker
+ * opens its handle when it runs its first row and closes it when the pool is
+ * shut down.
+ * <p>
+ * The total size of the batches in flight is bounded by a byte budget so that
+ * photo-heavy rows do not exhaust memory or the network. If a batch fails with a
+ * transient error, each of its files is retried individually.
+ * <p>
+ * One pipeline is shared by all the tables of a sync (see
+ * {@link SyncExecutionContext#getAttachmentTransferPipeline()}) so that the
+ * worker count and byte budget bound the sync as a whole even when tables are
+ * synchronized concurrently.
+ */
+public class AttachmentTransferPipeline {
+
+  private static final String TAG = AttachmentTransferPipeline.class.getSimpleName();
+
+  /**
+   * Default number of rows whose attachments are transferred concurrently.
+   */
+  static final int DEFAULT_MAX_CONCURRENT_ROWS = 4;
+
+  /**
+   * Default limit on the total size of the batches in flight.
+   */
+  static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 4L * 10485760L;
+
+  /**
+   * Number of times a file is attempted on its own after its batch failed.
+   */
+  static final int MAX_FILE_ATTEMPTS = 3;
+
+  private static final int BUDGET_UNIT = 1024;
+
+  /**
+   * How long {@link #shutdown()} waits for the workers to close their database handles.
+   */
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 30L;
+
+  /**
+   * Bytes transferred and files retried for one table.
+   */
+  private static final class TableCounts {
+    final AtomicLong bytesTransferred = new AtomicLong(0L);
+    final AtomicInteger fileRetries = new AtomicInteger(0);
+  }
+
+  private final SyncExecutionContext sc;
+  private final WebLoggerIf log;
+  private final ExecutorService executor;
+
+  // byte budget, in units of BUDGET_UNIT bytes
+  private final int budgetPermits;
+  private final Semaphore budget;
+
+  private final ConcurrentHashMap<String, TableCounts> tableCounts =
+      new ConcurrentHashMap<String, TableCounts>();
+
+  public AttachmentTransferPipeline(SyncExecutionContext sc) {
+    this(sc, DEFAULT_MAX_CONCURRENT_ROWS, DEFAULT_MAX_IN_FLIGHT_BYTES);
+  }
+
+  AttachmentTransferPipeline(SyncExecutionContext sc, int maxConcurrentRows,
+      long maxInFlightBytes) {
+    if (maxConcurrentRows < 1 || maxInFlightBytes < BUDGET_UNIT) {
+      throw new IllegalArgumentException("invalid attachment pipeline bounds");
+    }
+    this.sc = sc;
+    this.log = WebLogger.getLogger(sc.getAppName());
+    this.budgetPermits = (int) Math.min(Integer.MAX_VALUE, maxInFlightBytes / BUDGET_UNIT);
+    this.budget = new Semaphore(budgetPermits, true);
+    this.executor = Executors.newFixedThreadPool(
+        Math.min(maxConcurrentRows, HttpRestProtocolWrapper.MAX_CONNECTIONS_PER_ROUTE),
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger(0);
+
+          @Override public Thread newThread(final Runnable r) {
+            Thread t = new Thread(new Runnable() {
+              @Override public void run() {
+                try {
+                  r.run();
+                } finally {
+                  closeWorkerDatabase();
+                }
+              }
+            }, TAG + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+
+  /**
+   * Process a row on a worker thread. The task runs with the database handle
+   * private to that thread (see {@link SyncExecutionContext#openWorkerDatabase()}).
+   *
+   * @param rowTask
+   * @return the future of the task's outcome
+   */
+  <T> Future<T> submitRow(final Callable<T> rowTask) {
+    return executor.submit(new Callable<T>() {
+      @Override public T call() throws Exception {
+        // no-op if this worker already opened its handle for an earlier row
+        sc.openWorkerDatabase();
+        return rowTask.call();
+      }
+    });
+  }
+
+  private void closeWorkerDatabase() {
+    try {
+      sc.closeWorkerDatabase();
+    } catch (ServicesAvailabilityException e) {
+      log.w(TAG, "closeWorkerDatabase failed: " + e.toString());
+    }
+  }
+
+  /**
+   * Upload a batch of files, waiting for room in the byte budget first.
+   *
+   * @param batch
+   * @param batchSize total size of the files in the batch
+   * @param serverInstanceFileUri
+   * @param instanceId
+   * @param tableId
+   * @throws HttpClientWebException
+   * @throws IOException
+   */
+  void uploadBatch(List<CommonFileAttachmentTerms> batch, long batchSize,
+      String serverInstanceFileUri, String instanceId, String tableId)
+      throws HttpClientWebException, IOException {
+    transferBatch(true, batch, batchSize, serverInstanceFileUri, instanceId, tableId);
+  }
+
+  /**
+   * Download a batch of files, waiting for room in the byte budget first.
+   *
+   * @param batch
+   * @param batchSize total size of the files in the batch
+   * @param serverInstanceFileUri
+   * @param instanceId
+   * @param tableId
+   * @throws HttpClientWebException
+   * @throws IOException
+   */
+  void downloadBatch(List<CommonFileAttachmentTerms> batch, long batchSize,
+      String serverInstanceFileUri, String instanceId, String tableId)
+      throws HttpClientWebException, IOException {
+    transferBatch(false, batch, batchSize, serverInstanceFileUri, instanceId, tableId);
+  }
+
+  private TableCounts getTableCounts(String tableId) {
+    TableCounts counts = tableCounts.get(tableId);
+    if (counts == null) {
+      TableCounts newCounts = new TableCounts();
+      counts = tableCounts.putIfAbsent(tableId, newCounts);
+      if (counts == null) {
+        counts = newCounts;
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * @param tableId
+   * @return the total size of the batches of this table's attachments transferred so far
+   */
+  long getBytesTransferred(String tableId) {
+    return getTableCounts(tableId).bytesTransferred.get();
+  }
+
+  /**
+   * @param tableId
+   * @return the number of times one of this table's files was retried on its own
+   */
+  int getFileRetries(String tableId) {
+    return getTableCounts(tableId).fileRetries.get();
+  }
+
+  /**
+   * Stop the worker threads once the rows already submitted have been processed,
+   * and wait for the workers to close their database handles.
+   * Called when the sync ends.
+   */
+  public void shutdown() {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        log.w(TAG, "shutdown timed out waiting for the attachment workers");
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void transferBatch(boolean upload, List<CommonFileAttachmentTerms> batch,
+      long batchSize, String serverInstanceFileUri, String instanceId, String tableId)
+      throws HttpClientWebException, IOException {
+
+    // a single file larger than the whole budget takes the whole budget
+    int permits = (int) Math.max(1L,
+        Math.min(budgetPermits, (batchSize + BUDGET_UNIT - 1) / BUDGET_UNIT));
+    try {
+      budget.acquire(permits);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while waiting to transfer attachments");
+    }
+
+    try {
+      Exception failure = null;
+      try {
+        invoke(upload, batch, serverInstanceFileUri, instanceId, tableId);
+      } catch (IOException e) {
+        failure = e;
+      } catch (HttpClientWebException e) {
+        if (!isTransient(e)) {
+          throw e;
+        }
+        failure = e;
+      }
+
+      if (failure != null) {
+        if (batch.size() == 1) {
+          retryFile(upload, batch.get(0), serverInstanceFileUri, instanceId, tableId, true);
+        } else {
+          log.w(TAG, "transferBatch batch failed for " + instanceId
+              + " -- retrying files individually: " + failure.toString());
+          for (CommonFileAttachmentTerms cat : batch) {
+            retryFile(upload, cat, serverInstanceFileUri, instanceId, tableId, false);
+          }
+        }
+      }
+      getTableCounts(tableId).bytesTransferred.addAndGet(batchSize);
+    } finally {
+      budget.release(permits);
+    }
+  }
+
+  /**
+   * Transfer a single file, retrying transient failures.
+   *
+   * @param alreadyFailedAlone true if the file already failed once as a batch of its own
+   */
+  private void retryFile(boolean upload, CommonFileAttachmentTerms cat,
+      String serverInstanceFileUri, String instanceId, String tableId,
+      boolean alreadyFailedAlone) throws HttpClientWebException, IOException {
+    List<CommonFileAttachmentTerms> single = Collections.singletonList(cat);
+    TableCounts counts = getTableCounts(tableId);
+    int attempt = alreadyFailedAlone ? 1 : 0;
+    for (;;) {
+      ++attempt;
+      counts.fileRetries.incrementAndGet();
+      try {
+        invoke(upload, single, serverInstanceFileUri, instanceId, tableId);
+        return;
+      } catch (IOException e) {
+        log.w(TAG, "retryFile attempt " + attempt + " failed for " + cat.rowPathUri + " of "
+            + instanceId + ": " + e.toString());
+        if (attempt >= MAX_FILE_ATTEMPTS) {
+          throw e;
+        }
+      } catch (HttpClientWebException e) {
+        log.w(TAG, "retryFile attempt " + attempt + " failed for " + cat.rowPathUri + " of "
+            + instanceId + ": " + e.toString());
+        if (!isTransient(e) || attempt >= MAX_FILE_ATTEMPTS) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  private static boolean isTransient(HttpClientWebException e) {
+    return (e instanceof NetworkTransmissionException) ||
+        (e instanceof InternalServerFailureException);
+  }
+
+  private void invoke(boolean upload, List<CommonFileAttachmentTerms> batch,
+      String serverInstanceFileUri, String instanceId, String tableId)
+      throws HttpClientWebException, IOException {
+    if (upload) {
+      sc.getSynchronizer().uploadInstanceFileBatch(batch, serverInstanceFileUri, instanceId,
+          tableId);
+    } else {
+      sc.getSynchronizer().downloadInstanceFileBatch(batch, serverInstanceFileUri, instanceId,
+          tableId);
+    }
+  }
+}
@@ -17,6 +17,7 @@ package org.opendatakit.services.sync.service.logic;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
+import com.fasterxml.jackson.core.type.TypeReference;
 import org.apache.commons.lang3.CharEncoding;
 import org.opendatakit.aggregate.odktables.rest.ApiConstants;
 import org.opendatakit.logging.WebLogger;
@@ -49,10 +50,10 @@ import org.opendatakit.httpclientandroidlib.util.EntityUtils;
 import org.opendatakit.services.R;
 import org.opendatakit.services.sync.service.SyncExecutionContext;
 import org.opendatakit.services.sync.service.exceptions.*;
+import org.opendatakit.utilities.ODKFileUtils;
 
 import java.io.*;
 import java.net.*;
-import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
@@ -67,6 +68,11 @@ public class HttpRestProtocolWrapper {
   private static final String TOKEN_INFO = "https://www.googleapis.com/oauth2/v1/tokeninfo?access_token=";
   public static final int CONNECTION_TIMEOUT = 60000;
 
+  /**
+   * Maximum number of simultaneous connections to the server.
+   */
+  public static final int MAX_CONNECTIONS_PER_ROUTE = 8;
+
   // parameters for queries that could return a lot of data...
   public static final String CURSOR_PARAMETER = "cursor";
   public static final String FETCH_LIMIT = "fetchLimit";
@@ -90,7 +96,12 @@ public class HttpRestProtocolWrapper {
   private CloseableHttpClient httpClient = null;
   private CloseableHttpClient httpAuthClient = null;
 
-  private HttpContext localContext = null;
+  /**
+   * The context holds the authentication state machine, so it cannot be shared
+   * across threads. Each thread gets its own context sharing the same cookie store
+   * and credentials.
+   */
+  private ThreadLocal<HttpContext> localContext = null;
   private HttpContext localAuthContext = null;
 
   private CookieStore cookieStore = null;
@@ -101,6 +112,7 @@ public class HttpRestProtocolWrapper {
 
   static List<Integer> SC_OK_ONLY;
   static List<Integer> SC_OK_SC_NOT_MODIFIED;
+  static List<Integer> SC_OK_SC_PARTIAL_CONTENT_SC_NOT_MODIFIED;
   static List<Integer> SC_OK_SC_CONFLICT;
   static List<Integer> SC_OK_SC_NOT_FOUND;
   static List<Integer> SC_CREATED;
@@ -159,6 +171,13 @@ public class HttpRestProtocolWrapper {
     al.add(HttpStatus.SC_NOT_MODIFIED);
     SC_OK_SC_NOT_MODIFIED = al;
 
+    al = new ArrayList<Integer>();
+    al.add(HttpStatus.SC_OK);
+    al.add(HttpStatus.SC_PARTIAL_CONTENT);
+    al.add(HttpStatus.SC_NOT_MODIFIED);
+    al.add(HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+    SC_OK_SC_PARTIAL_CONTENT_SC_NOT_MODIFIED = al;
+
     al = new ArrayList<Integer>();
     al.add(HttpStatus.SC_OK);
     al.add(HttpStatus.SC_CONFLICT);
@@ -180,7 +199,7 @@ public class HttpRestProtocolWrapper {
   }
 
   private SyncExecutionContext sc;
-  private String accessToken;
+  private volatile String accessToken;
   /** normalized aggregateUri */
   private final URI baseUri;
   private final WebLoggerIf log;
@@ -649,14 +668,21 @@ public class HttpRestProtocolWrapper {
             .setDefaultSocketConfig(socketAuthConfig)
             .setDefaultRequestConfig(requestAuthConfig).build();
 
-    // Context
-    // context holds authentication state machine, so it cannot be
-    // shared across independent activities.
-    localContext = new BasicHttpContext();
-
     cookieStore = new BasicCookieStore();
     credsProvider = new BasicCredentialsProvider();
 
+    // Context
+    // context holds authentication state machine, so it cannot be
+    // shared across independent activities (or threads).
+    localContext = new ThreadLocal<HttpContext>() {
+      @Override protected HttpContext initialValue() {
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute(HttpClientContext.COOKIE_STORE, cookieStore);
+        context.setAttribute(HttpClientContext.CREDS_PROVIDER, credsProvider);
+        return context;
+      }
+    };
+
     String host = this.baseUri.getHost();
     String authenticationType = sc.getAuthenticationType();
 
@@ -697,9 +723,6 @@ public class HttpRestProtocolWrapper {
       }
     }
 
-    localContext.setAttribute(HttpClientContext.COOKIE_STORE, cookieStore);
-    localContext.setAttribute(HttpClientContext.CREDS_PROVIDER, credsProvider);
-
     SocketConfig socketConfig = SocketConfig.copy(SocketConfig.DEFAULT).setSoTimeout(2 * CONNECTION_TIMEOUT).build();
 
     // if possible, bias toward digest auth (may not be in 4.0 beta 2)
@@ -720,7 +743,10 @@ public class HttpRestProtocolWrapper {
             .setCookieSpec(CookieSpecs.DEFAULT)
             .build();
 
+    // tables may be synchronized concurrently; allow a connection per worker.
     httpClient = HttpClientBuilder.create()
+            .setMaxConnPerRoute(MAX_CONNECTIONS_PER_ROUTE)
+            .setMaxConnTotal(MAX_CONNECTIONS_PER_ROUTE)
             .setDefaultSocketConfig(socketConfig)
             .setDefaultRequestConfig(requestConfig).build();
 
@@ -728,7 +754,7 @@ public class HttpRestProtocolWrapper {
 
   private final static String authString = "oauth2:https://www.googleapis.com/auth/userinfo.email";
 
-  private String updateAccessToken() throws InvalidAuthTokenException {
+  private synchronized String updateAccessToken() throws InvalidAuthTokenException {
     try {
       AccountManager accountManager = sc.getAccountManager();
       Account account = sc.getAccount();
@@ -770,24 +796,49 @@ public class HttpRestProtocolWrapper {
     }
   }
 
-  public String convertResponseToString(CloseableHttpResponse response) throws IOException {
+  /**
+   * Decode the JSON body of the response directly from the entity's content
+   * stream (already un-gzipped by the client). The body is never held as a
+   * String; only the resulting object graph is retained.
+   * <p/>
+   * The response is closed on return.
+   *
+   * @param response
+   * @param valueType
+   * @return the decoded body
+   * @throws IOException
+   */
+  public <T> T readJsonResponse(CloseableHttpResponse response, Class<T> valueType)
+      throws IOException {
 
     if (response == null) {
-      throw new IllegalArgumentException("Can't convert null response to string!!");
+      throw new IllegalArgumentException("Can't decode null response!!");
     }
 
     try {
-      BufferedReader rd = new BufferedReader(
-          new InputStreamReader(response.getEntity().getContent(), Charset.forName("UTF-8")));
+      return ODKFileUtils.mapper.readValue(response.getEntity().getContent(), valueType);
+    } finally {
+      response.close();
+    }
+  }
 
-      StringBuilder strLine = new StringBuilder();
-      String resLine;
-      while ((resLine = rd.readLine()) != null) {
-        strLine.append(resLine);
-      }
-      String res = strLine.toString();
+  /**
+   * As above, but for generic types (lists and maps).
+   *
+   * @param response
+   * @param valueTypeRef
+   * @return the decoded body
+   * @throws IOException
+   */
+  public <T> T readJsonResponse(CloseableHttpResponse response, TypeReference<T> valueTypeRef)
+      throws IOException {
 
-      return res;
+    if (response == null) {
+      throw new IllegalArgumentException("Can't decode null response!!");
+    }
+
+    try {
+      return ODKFileUtils.mapper.readValue(response.getEntity().getContent(), valueTypeRef);
     } finally {
       response.close();
     }
@@ -814,7 +865,7 @@ public class HttpRestProtocolWrapper {
     try {
       try {
         if (localContext != null) {
-          response = httpClient.execute(request, localContext);
+          response = httpClient.execute(request, localContext.get());
         } else {
           response = httpClient.execute(request);
         }
@@ -826,7 +877,7 @@ public class HttpRestProtocolWrapper {
 
           // re-issue the request with new access token
           if (localContext != null) {
-            response = httpClient.execute(request, localContext);
+            response = httpClient.execute(request, localContext.get());
           } else {
             response = httpClient.execute(request);
           }
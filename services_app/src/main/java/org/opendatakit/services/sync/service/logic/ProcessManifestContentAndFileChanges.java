@@ -141,6 +141,11 @@ class ProcessManifestContentAndFileChanges {
             }
           }
 
+          // ignore the remnants of an interrupted download
+          if ( skipPartialDownload(f) ) {
+            continue;
+          }
+
           // we'll add it to our list of files.
           relativePaths.add(ODKFileUtils.asRelativePath(sc.getAppName(), f));
         }
@@ -174,6 +179,28 @@ class ProcessManifestContentAndFileChanges {
     return newList;
   }
 
+  /**
+   * Partial downloads are kept so that a later sync can resume them.
+   * Delete those that can no longer be resumed so they do not accumulate.
+   *
+   * @param f a file found by a scan of the local files
+   * @return true if f is part of a partial download (or was, and has just been
+   * deleted along with the other file of the pair) and should be ignored
+   */
+  private boolean skipPartialDownload(File f) {
+    if ( !f.exists() ) {
+      // e.g., the other file of a stale partial download discarded by this scan
+      return true;
+    }
+    if ( !AggregateSynchronizer.isPartialDownloadFile(f) ) {
+      return false;
+    }
+    if ( AggregateSynchronizer.deleteIfStalePartialDownload(f) ) {
+      log.i(LOGTAG, "discarded stale partial download " + f.getAbsolutePath());
+    }
+    return true;
+  }
+
   /**
    * Get all the files under the given folder, excluding those directories that
    * are the concatenation of folder and a member of excluding. If the member of
@@ -245,6 +272,10 @@ class ProcessManifestContentAndFileChanges {
     List<String> relativePaths = new ArrayList<String>();
     // we want the relative path, so drop the necessary bets.
     for (File f : nondirFiles) {
+      // ignore the remnants of an interrupted download
+      if ( skipPartialDownload(f) ) {
+        continue;
+      }
       // +1 to exclude the separator.
       relativePaths.add(ODKFileUtils.asRelativePath(sc.getAppName(), f));
     }
@@ -305,7 +336,7 @@ class ProcessManifestContentAndFileChanges {
         if (!localFile.exists() || !localFile.isFile()) {
           // we need to delete this file from the server.
           serverFilesToDelete.add(localFile);
-        } else if (ODKFileUtils.getMd5Hash(sc.getAppName(), localFile).equals(entry.md5hash)) {
+        } else if (sc.getFileHashCache().getMd5Hash(localFile).equals(entry.md5hash)) {
           // we are ok -- no need to upload or delete
           relativePathsOnDevice.remove(ODKFileUtils.asRelativePath(sc.getAppName(), localFile));
         }
@@ -473,7 +504,7 @@ class ProcessManifestContentAndFileChanges {
         if (!localFile.exists() || !localFile.isFile()) {
           // we need to delete this file from the server.
           serverFilesToDelete.add(localFile);
-        } else if (ODKFileUtils.getMd5Hash(sc.getAppName(), localFile).equals(entry.md5hash)) {
+        } else if (sc.getFileHashCache().getMd5Hash(localFile).equals(entry.md5hash)) {
           // we are ok -- no need to upload or delete
           relativePathsOnDevice.remove(ODKFileUtils.asRelativePath(sc.getAppName(), localFile));
         }
@@ -627,7 +658,7 @@ class ProcessManifestContentAndFileChanges {
         // filesToDL.add(localFile);
         boolean success = false;
         try {
-          sc.getSynchronizer().downloadFile(localFile, uri);
+          sc.getSynchronizer().downloadFile(localFile, uri, entry.md5hash);
           updateFileSyncETag(uri, tableId, localFile.lastModified(), entry.md5hash);
           success = true;
         } finally {
@@ -648,7 +679,7 @@ class ProcessManifestContentAndFileChanges {
           // file exists, but no record of what is on the server
           // compute local value
           hasUpToDateEntry = false;
-          md5hash = ODKFileUtils.getMd5Hash(sc.getAppName(), localFile);
+          md5hash = sc.getFileHashCache().getMd5Hash(localFile);
         }
         // so as it comes down from the manifest, the md5 hash includes a
         // "md5:" prefix. Add that and then check.
@@ -657,7 +688,7 @@ class ProcessManifestContentAndFileChanges {
           // it's not up to date, we need to download it.
           boolean success = false;
           try {
-            sc.getSynchronizer().downloadFile(localFile, uri);
+            sc.getSynchronizer().downloadFile(localFile, uri, entry.md5hash);
             updateFileSyncETag(uri, tableId, localFile.lastModified(), md5hash);
             success = true;
           } finally {
@@ -698,6 +729,30 @@ class ProcessManifestContentAndFileChanges {
       ArrayList<ColumnDefinition> fileAttachmentColumns,
       SyncAttachmentState attachmentState) throws HttpClientWebException,
       IOException, ServicesAvailabilityException  {
+    return syncRowLevelFileAttachments(serverInstanceFileUri, tableId, localRow,
+        fileAttachmentColumns, attachmentState, null);
+  }
+
+  /**
+   * As above, but transfers the upload and download batches through the given
+   * pipeline so that they are bounded by its in-flight byte budget and retried
+   * file-by-file on transient failures.
+   *
+   * @param serverInstanceFileUri
+   * @param tableId
+   * @param localRow
+   * @param attachmentState
+   * @param pipeline  null to transfer the batches directly
+   * @return true if sync state should move to synced (from synced_pending_files)
+   * @throws HttpClientWebException
+   * @throws IOException
+   * @throws ServicesAvailabilityException
+   */
+  boolean syncRowLevelFileAttachments(String serverInstanceFileUri, String tableId,
+      org.opendatakit.database.data.Row localRow,
+      ArrayList<ColumnDefinition> fileAttachmentColumns,
+      SyncAttachmentState attachmentState, AttachmentTransferPipeline pipeline)
+      throws HttpClientWebException, IOException, ServicesAvailabilityException  {
 
 
     // list of local non-null uriFragment field values
@@ -795,7 +850,7 @@ class ProcessManifestContentAndFileChanges {
           // server has the file
           if (cat.localFile.exists()) {
             // Check if the server and local versions match
-            String localMd5 = ODKFileUtils.getMd5Hash(sc.getAppName(), cat.localFile);
+            String localMd5 = sc.getFileHashCache().getMd5Hash(cat.localFile);
 
             if (!localMd5.equals(entry.md5hash)) {
               // Found, but it is wrong locally, so we need to pull it
@@ -860,7 +915,7 @@ class ProcessManifestContentAndFileChanges {
         // on the next iteration.
         if (batchSize + fileAttachment.localFile.length() > MAX_BATCH_SIZE && !batch.isEmpty()) {
           log.i(LOGTAG, "syncRowLevelFileAttachments uploading batch for " + instanceId);
-          sc.getSynchronizer().uploadInstanceFileBatch(batch, serverInstanceFileUri,
+          uploadInstanceFileBatch(pipeline, batch, batchSize, serverInstanceFileUri,
               instanceId, tableId);
           batch.clear();
           batchSize = 0;
@@ -873,7 +928,7 @@ class ProcessManifestContentAndFileChanges {
       if ( !batch.isEmpty() ) {
         // Upload the final batch
         log.i(LOGTAG, "syncRowLevelFileAttachments uploading batch for " + instanceId);
-        sc.getSynchronizer().uploadInstanceFileBatch(batch, serverInstanceFileUri,
+        uploadInstanceFileBatch(pipeline, batch, batchSize, serverInstanceFileUri,
             instanceId, tableId);
       }
 
@@ -897,7 +952,7 @@ class ProcessManifestContentAndFileChanges {
         if (batchSize + filesToDownloadSizes.get(fileAttachment) > MAX_BATCH_SIZE &&
             !batch.isEmpty()) {
           log.i(LOGTAG, "syncRowLevelFileAttachments downloading batch for " + instanceId);
-          sc.getSynchronizer().downloadInstanceFileBatch(batch,
+          downloadInstanceFileBatch(pipeline, batch, batchSize,
               serverInstanceFileUri, instanceId, tableId);
           batch.clear();
           batchSize = 0;
@@ -910,7 +965,7 @@ class ProcessManifestContentAndFileChanges {
       if ( !batch.isEmpty() ) {
         // download the final batch
         log.i(LOGTAG, "syncRowLevelFileAttachments downloading batch for " + instanceId);
-        sc.getSynchronizer().downloadInstanceFileBatch(batch, serverInstanceFileUri,
+        downloadInstanceFileBatch(pipeline, batch, batchSize, serverInstanceFileUri,
             instanceId, tableId);
       }
 
@@ -951,6 +1006,28 @@ class ProcessManifestContentAndFileChanges {
     }
   }
 
+  private void uploadInstanceFileBatch(AttachmentTransferPipeline pipeline,
+      List<CommonFileAttachmentTerms> batch, long batchSize, String serverInstanceFileUri,
+      String instanceId, String tableId) throws HttpClientWebException, IOException {
+    if (pipeline == null) {
+      sc.getSynchronizer().uploadInstanceFileBatch(batch, serverInstanceFileUri,
+          instanceId, tableId);
+    } else {
+      pipeline.uploadBatch(batch, batchSize, serverInstanceFileUri, instanceId, tableId);
+    }
+  }
+
+  private void downloadInstanceFileBatch(AttachmentTransferPipeline pipeline,
+      List<CommonFileAttachmentTerms> batch, long batchSize, String serverInstanceFileUri,
+      String instanceId, String tableId) throws HttpClientWebException, IOException {
+    if (pipeline == null) {
+      sc.getSynchronizer().downloadInstanceFileBatch(batch, serverInstanceFileUri,
+          instanceId, tableId);
+    } else {
+      pipeline.downloadBatch(batch, batchSize, serverInstanceFileUri, instanceId, tableId);
+    }
+  }
+
   /**********************************************************************************
    *
    * Database interactions
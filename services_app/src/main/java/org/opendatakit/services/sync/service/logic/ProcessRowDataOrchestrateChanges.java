@@ -38,6 +38,13 @@ import org.opendatakit.sync.service.TableLevelResult;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * SyncProcessor implements the cloud synchronization logic for Tables.
@@ -50,20 +57,38 @@ public class ProcessRowDataOrchestrateChanges {
 
   private static final String TAG = ProcessRowDataOrchestrateChanges.class.getSimpleName();
 
+  /**
+   * Default number of tables whose data rows and attachments are synchronized
+   * concurrently. Tables are independent on the server, so a full sync need not
+   * be the sum of each table's chain of network round-trips.
+   */
+  public static final int DEFAULT_MAX_CONCURRENT_TABLES = 4;
+
   private final WebLoggerIf log;
 
   private final SyncExecutionContext sc;
 
-  private final ProcessRowDataPullServerUpdates serverUpdateProcessor;
-  private final ProcessRowDataPushLocalChanges localChangesProcessor;
-  private final ProcessRowDataSyncAttachments syncAttachmentsProcessor;
+  private final int maxConcurrentTables;
 
   public ProcessRowDataOrchestrateChanges(SyncExecutionContext sharedContext) {
+    this(sharedContext, sharedContext.getMaxConcurrentTables());
+  }
+
+  /**
+   * @param sharedContext
+   * @param maxConcurrentTables  maximum number of tables to synchronize at once.
+   *                             1 synchronizes the tables sequentially on the
+   *                             calling thread.
+   */
+  public ProcessRowDataOrchestrateChanges(SyncExecutionContext sharedContext,
+      int maxConcurrentTables) {
+    if (maxConcurrentTables < 1) {
+      throw new IllegalArgumentException("maxConcurrentTables must be at least 1");
+    }
     this.sc = sharedContext;
     this.log = WebLogger.getLogger(sc.getAppName());
-    this.serverUpdateProcessor = new ProcessRowDataPullServerUpdates(sc);
-    this.localChangesProcessor = new ProcessRowDataPushLocalChanges(sc);
-    this.syncAttachmentsProcessor = new ProcessRowDataSyncAttachments(sc);
+    this.maxConcurrentTables = Math.min(maxConcurrentTables,
+        HttpRestProtocolWrapper.MAX_CONNECTIONS_PER_ROUTE);
   }
 
   /**
@@ -134,38 +159,130 @@ public class ProcessRowDataOrchestrateChanges {
    *          during the sync'ing of the table-level files, or if the table
    *          schema does not match, the local table will be omitted from this
    *          list.
+   *          <p>
+   *          Up to maxConcurrentTables of these are synchronized at once, each
+   *          on its own worker thread with its own database handle. Each table
+   *          reports into its own TableLevelResult.
    * @throws ServicesAvailabilityException
    */
   public void synchronizeDataRowsAndAttachments(List<TableResource> workingListOfTables,
-      SyncAttachmentState attachmentState) throws ServicesAvailabilityException {
+      final SyncAttachmentState attachmentState) throws ServicesAvailabilityException {
     log.i(TAG, "entered synchronizeDataRowsAndAttachments()");
 
-    DbHandle db = null;
+    int nThreads = Math.min(maxConcurrentTables, workingListOfTables.size());
+    if (nThreads <= 1) {
+      // we can assume that all the local table properties should
+      // sync with the server.
+      for (TableResource tableResource : workingListOfTables) {
+        synchronizeTable(tableResource, attachmentState);
+        sc.incMajorSyncStep();
+      }
+      return;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger(0);
+
+      @Override public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, TAG + "-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    try {
+      for (final TableResource tableResource : workingListOfTables) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override public Void call() throws Exception {
+            sc.beginWorker();
+            try {
+              synchronizeTable(tableResource, attachmentState);
+              sc.completeWorkerStep();
+            } finally {
+              sc.endWorker();
+            }
+            return null;
+          }
+        }));
+      }
+
+      // wait for every table; report the first failure once all are done.
+      Throwable failure = null;
+      for (Future<Void> f : futures) {
+        try {
+          f.get();
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = e.getCause();
+          }
+          log.printStackTrace(e.getCause());
+        }
+      }
 
-    // we can assume that all the local table properties should
-    // sync with the server.
-    for (TableResource tableResource : workingListOfTables) {
-      // Sync the local media files with the server if the table
-      // existed locally before we attempted downloading it.
-
-      String tableId = tableResource.getTableId();
-      TableDefinitionEntry te;
-      OrderedColumns orderedDefns;
-      String displayName;
-      try {
-        db = sc.getDatabase();
-        te = sc.getDatabaseService().getTableDefinitionEntry(sc.getAppName(), db,
-            tableId);
-        orderedDefns = sc.getDatabaseService().getUserDefinedColumns(sc.getAppName(), db, tableId);
-        displayName = sc.getTableDisplayName(tableId);
-      } finally {
-        sc.releaseDatabase(db);
-        db = null;
+      if (failure instanceof ServicesAvailabilityException) {
+        throw (ServicesAvailabilityException) failure;
+      } else if (failure instanceof RuntimeException) {
+        throw (RuntimeException) failure;
+      } else if (failure instanceof Error) {
+        throw (Error) failure;
+      } else if (failure != null) {
+        throw new IllegalStateException(failure);
+      }
+    } catch (InterruptedException e) {
+      log.e(TAG, "synchronizeDataRowsAndAttachments interrupted");
+      for (Future<Void> f : futures) {
+        f.cancel(true);
       }
+      // the tables that had not finished are not synchronized
+      for (TableResource tableResource : workingListOfTables) {
+        TableLevelResult tableLevelResult = sc.getTableLevelResult(tableResource.getTableId());
+        if (tableLevelResult.getSyncOutcome() == SyncOutcome.WORKING) {
+          tableLevelResult.setSyncOutcome(SyncOutcome.FAILURE);
+          tableLevelResult.setMessage("synchronization of table "
+              + tableResource.getTableId() + " was interrupted");
+        }
+      }
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
 
+  /**
+   * Synchronize the data rows and attachments of one table.
+   *
+   * @param tableResource
+   * @param attachmentState
+   * @throws ServicesAvailabilityException
+   */
+  private void synchronizeTable(TableResource tableResource,
+      SyncAttachmentState attachmentState) throws ServicesAvailabilityException {
+    // Sync the local media files with the server if the table
+    // existed locally before we attempted downloading it.
+
+    String tableId = tableResource.getTableId();
+    TableDefinitionEntry te;
+    OrderedColumns orderedDefns;
+    String displayName;
+    DbHandle db = null;
+    try {
+      db = sc.getDatabase();
+      te = sc.getDatabaseService().getTableDefinitionEntry(sc.getAppName(), db,
+          tableId);
+      orderedDefns = sc.getDatabaseService().getUserDefinedColumns(sc.getAppName(), db, tableId);
+      displayName = sc.getTableDisplayName(tableId);
+    } finally {
+      sc.releaseDatabase(db);
+      db = null;
+    }
+
+    try {
       synchronizeTableDataRowsAndAttachments(te, orderedDefns, displayName,
           attachmentState);
-      sc.incMajorSyncStep();
+    } finally {
+      // keep the batch sizes learned while syncing this table
+      sc.getBatchSizer().save();
     }
   }
 
@@ -192,6 +309,11 @@ public class ProcessRowDataOrchestrateChanges {
       TableDefinitionEntry te, OrderedColumns orderedColumns, String displayName,
       SyncAttachmentState attachmentState) throws ServicesAvailabilityException {
 
+    // the processors track per-table progress, so each table gets its own.
+    ProcessRowDataPullServerUpdates serverUpdateProcessor = new ProcessRowDataPullServerUpdates(sc);
+    ProcessRowDataPushLocalChanges localChangesProcessor = new ProcessRowDataPushLocalChanges(sc);
+    ProcessRowDataSyncAttachments syncAttachmentsProcessor = new ProcessRowDataSyncAttachments(sc);
+
     ArrayList<ColumnDefinition> fileAttachmentColumns = new ArrayList<ColumnDefinition>();
     for (ColumnDefinition cd : orderedColumns.getColumnDefinitions()) {
       if (cd.getType().getDataType() == ElementDataType.rowpath) {
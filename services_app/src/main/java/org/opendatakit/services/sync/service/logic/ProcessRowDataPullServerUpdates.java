@@ -16,16 +16,13 @@
 package org.opendatakit.services.sync.service.logic;
 
 import android.content.ContentValues;
-import org.opendatakit.aggregate.odktables.rest.ElementDataType;
 import org.opendatakit.aggregate.odktables.rest.SyncState;
-import org.opendatakit.aggregate.odktables.rest.entity.Column;
 import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
 import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
 import org.opendatakit.aggregate.odktables.rest.entity.RowResource;
 import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
 import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
 import org.opendatakit.database.data.ColumnDefinition;
-import org.opendatakit.database.data.ColumnList;
 import org.opendatakit.database.data.OrderedColumns;
 import org.opendatakit.database.data.Row;
 import org.opendatakit.database.data.TableDefinitionEntry;
@@ -35,6 +32,7 @@ import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.provider.DataTableColumns;
 import org.opendatakit.services.R;
 import org.opendatakit.services.sync.service.SyncExecutionContext;
+import org.opendatakit.services.sync.service.exceptions.HttpClientWebException;
 import org.opendatakit.sync.service.SyncAttachmentState;
 import org.opendatakit.sync.service.SyncOutcome;
 import org.opendatakit.sync.service.TableLevelResult;
@@ -44,6 +42,12 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * The refactored control loop for retrieving row changes from the server and
@@ -66,6 +70,12 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
   private static final double maxPercentage = 50.0;
   private static final int numberOfPhases = 2;
 
+  /**
+   * Maximum number of server row ids to match against the data table in one query.
+   * SQLite limits the number of bind parameters in a statement to 999.
+   */
+  private static final int maxRowIdsPerQuery = 500;
+
   private final ProcessManifestContentAndFileChanges manifestProcessor;
 
   public ProcessRowDataPullServerUpdates(SyncExecutionContext sharedContext) {
@@ -135,121 +145,113 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
         publishUpdateNotification(R.string.sync_fetching_local_rows_in_batch_server_row_changes,
                 tableId, -1.0);
 
-        // get all the rows in the data table -- we will iterate through
-        // them all.
-        UserTable localDataTable;
+        // get all the rows in the data table that match those sent from
+        // the server -- we will iterate through them all.
+        //
+        // Match the server row ids directly against the data table using
+        // bind parameters, a batch of ids at a time. This avoids staging
+        // every id into a local-only table with one IPC per id.
+        List<UserTable> localDataTables = new ArrayList<UserTable>();
         {
-            String[] empty = {};
-
-            // To get all the rows that match those sent from the server
-            // we create a local table and insert all of the row ids into
-            // that table. Then filter against the row ids in that table
-            // to pull out the matching rows in our table.
-
-            List<Column> columns = new ArrayList<Column>();
-            columns.add(
-                new Column(ID_COLUMN, ID_COLUMN, ElementDataType.string.name(),
-                    "[]"));
-            ColumnList columnList = new ColumnList(columns);
-
-            String local_id_table = "L__" + tableId;
-
-            // create the table (drop it first -- to get an empty table)
-            sc.getDatabaseService().deleteLocalOnlyTable(sc.getAppName(), db, local_id_table);
-            sc.getDatabaseService()
-                .createLocalOnlyTableWithColumns(sc.getAppName(), db, local_id_table, columnList);
-
-            // insert the row ids from the server
-            {
-              ContentValues cv = new ContentValues();
-              for (String id : changedServerRows.keySet()) {
-                cv.clear();
-                cv.put(ID_COLUMN, id);
-                sc.getDatabaseService().insertLocalOnlyRow(sc.getAppName(), db, local_id_table, cv);
-              }
-            }
+          String[] empty = {};
+          ArrayList<String> serverRowIds = new ArrayList<String>(changedServerRows.keySet());
+
+          for (int offset = 0; offset < serverRowIds.size(); offset += maxRowIdsPerQuery) {
+            int end = Math.min(serverRowIds.size(), offset + maxRowIdsPerQuery);
+            Object[] bindArgs = serverRowIds.subList(offset, end).toArray();
 
             // construct where clause filter
             StringBuilder b = new StringBuilder();
-            b.append(DataTableColumns.ID).append(" IN (SELECT ").append(ID_COLUMN)
-                .append(" FROM ").append(local_id_table).append(")");
+            b.append(DataTableColumns.ID).append(" IN (");
+            for (int j = 0; j < bindArgs.length; ++j) {
+              if (j != 0) {
+                b.append(",");
+              }
+              b.append("?");
+            }
+            b.append(")");
 
-            localDataTable = sc.getDatabaseService()
+            UserTable localDataTable = sc.getDatabaseService()
                 .privilegedSimpleQuery(sc.getAppName(), db, tableId, orderedColumns, b.toString(),
-                    empty, empty, null, new String[] { DataTableColumns.ID }, new String[] { "ASC" },
-                    null, null);
-        }
-
-        // //////////////////////////////////////////////////
-        // //////////////////////////////////////////////////
-        // fail the sync on this table if there are checkpoint rows.
+                    bindArgs, empty, null, new String[] { DataTableColumns.ID },
+                    new String[] { "ASC" }, null, null);
+
+            // //////////////////////////////////////////////////
+            // //////////////////////////////////////////////////
+            // fail the sync on this table if there are checkpoint rows.
+
+            if (localDataTable.hasCheckpointRows()) {
+              // should only be reachable on the first time through this for
+              // loop...
+              tableLevelResult.setMessage(sc.getString(R.string.sync_table_contains_checkpoints));
+              tableLevelResult.setSyncOutcome(SyncOutcome.TABLE_CONTAINS_CHECKPOINTS);
+              return;
+            }
 
-        if (localDataTable.hasCheckpointRows()) {
-          // should only be reachable on the first time through this for
-          // loop...
-          tableLevelResult.setMessage(sc.getString(R.string.sync_table_contains_checkpoints));
-          tableLevelResult.setSyncOutcome(SyncOutcome.TABLE_CONTAINS_CHECKPOINTS);
-          return;
+            localDataTables.add(localDataTable);
+          }
         }
 
-        // loop through the localRow table
-        for (int i = 0; i < localDataTable.getNumberOfRows(); i++) {
-          Row localRow = localDataTable.getRowAtIndex(i);
-          String stateStr = localRow.getDataByKey(DataTableColumns.SYNC_STATE);
-          SyncState state = stateStr == null ? null : SyncState.valueOf(stateStr);
+        for (UserTable localDataTable : localDataTables) {
+          // loop through the localRow table
+          for (int i = 0; i < localDataTable.getNumberOfRows(); i++) {
+            Row localRow = localDataTable.getRowAtIndex(i);
+            String stateStr = localRow.getDataByKey(DataTableColumns.SYNC_STATE);
+            SyncState state = stateStr == null ? null : SyncState.valueOf(stateStr);
+
+            String rowId = localDataTable.getRowId(i);
+
+            // see if there is a change to this row from our current
+            // server change set.
+            RowResource serverRow = changedServerRows.get(rowId);
+
+            if (serverRow == null) {
+              // we are selecting only the rows with ids matching those in the changedServerRows
+              // map. It should be impossible for this to be null.
+              tableLevelResult.setMessage(sc.getString(R.string.sync_table_erroneous_filter));
+              tableLevelResult.setSyncOutcome(SyncOutcome.LOCAL_DATABASE_EXCEPTION);
+              return;
+            }
 
-          String rowId = localDataTable.getRowId(i);
+            if (state == SyncState.synced_pending_files && serverRow.isDeleted() ) {
+              manifestProcessor.syncRowLevelFileAttachments(
+                  tableResource.getInstanceFilesUri(),
+                  tableResource.getTableId(), localRow, fileAttachmentColumns, SyncAttachmentState.UPLOAD);
 
-          // see if there is a change to this row from our current
-          // server change set.
-          RowResource serverRow = changedServerRows.get(rowId);
+            }
 
-          if (serverRow == null) {
-            // we are selecting only the rows with ids matching those in the changedServerRows
-            // map. It should be impossible for this to be null.
-            tableLevelResult.setMessage(sc.getString(R.string.sync_table_erroneous_filter));
-            tableLevelResult.setSyncOutcome(SyncOutcome.LOCAL_DATABASE_EXCEPTION);
-            return;
-          }
+            ContentValues values = new ContentValues();
 
-          if (state == SyncState.synced_pending_files && serverRow.isDeleted() ) {
-            manifestProcessor.syncRowLevelFileAttachments(
-                tableResource.getInstanceFilesUri(),
-                tableResource.getTableId(), localRow, fileAttachmentColumns, SyncAttachmentState.UPLOAD);
+            // set up to insert the in_conflict row from the server
+            for (DataKeyValue entry : serverRow.getValues()) {
+              String colName = entry.column;
+              values.put(colName, entry.value);
+            }
 
-          }
+            // insert in_conflict server row
+            values.put(DataTableColumns.ID, serverRow.getRowId());
+            values.put(DataTableColumns.ROW_ETAG, serverRow.getRowETag());
+            values.put(DataTableColumns.SYNC_STATE, (serverRow.isDeleted() ?
+                SyncState.deleted.name() : SyncState.changed.name()));
+            values.put(DataTableColumns.FORM_ID, serverRow.getFormId());
+            values.put(DataTableColumns.LOCALE, serverRow.getLocale());
+            values.put(DataTableColumns.SAVEPOINT_TIMESTAMP, serverRow.getSavepointTimestamp());
+            values.put(DataTableColumns.SAVEPOINT_CREATOR, serverRow.getSavepointCreator());
+            values.put(DataTableColumns.SAVEPOINT_TYPE, serverRow.getSavepointType());
+            RowFilterScope.Type type = serverRow.getRowFilterScope().getType();
+            values.put(DataTableColumns.FILTER_TYPE,
+                (type == null) ? RowFilterScope.Type.DEFAULT.name() : type.name());
+            values.put(DataTableColumns.FILTER_VALUE, serverRow.getRowFilterScope().getValue());
+            values.putNull(DataTableColumns.CONFLICT_TYPE);
 
-          ContentValues values = new ContentValues();
+            sc.getDatabaseService().privilegedPerhapsPlaceRowIntoConflictWithId(sc.getAppName(), sc
+                .getDatabase(), tableId, orderedColumns, values, rowId);
 
-          // set up to insert the in_conflict row from the server
-          for (DataKeyValue entry : serverRow.getValues()) {
-            String colName = entry.column;
-            values.put(colName, entry.value);
+            // remove this server row from the map of changes reported by the server.
+            // the following decision tree will always place the row into one of the
+            // local action lists.
+            changedServerRows.remove(rowId);
           }
-
-          // insert in_conflict server row
-          values.put(DataTableColumns.ID, serverRow.getRowId());
-          values.put(DataTableColumns.ROW_ETAG, serverRow.getRowETag());
-          values.put(DataTableColumns.SYNC_STATE, (serverRow.isDeleted() ?
-              SyncState.deleted.name() : SyncState.changed.name()));
-          values.put(DataTableColumns.FORM_ID, serverRow.getFormId());
-          values.put(DataTableColumns.LOCALE, serverRow.getLocale());
-          values.put(DataTableColumns.SAVEPOINT_TIMESTAMP, serverRow.getSavepointTimestamp());
-          values.put(DataTableColumns.SAVEPOINT_CREATOR, serverRow.getSavepointCreator());
-          values.put(DataTableColumns.SAVEPOINT_TYPE, serverRow.getSavepointType());
-          RowFilterScope.Type type = serverRow.getRowFilterScope().getType();
-          values.put(DataTableColumns.FILTER_TYPE,
-              (type == null) ? RowFilterScope.Type.DEFAULT.name() : type.name());
-          values.put(DataTableColumns.FILTER_VALUE, serverRow.getRowFilterScope().getValue());
-          values.putNull(DataTableColumns.CONFLICT_TYPE);
-
-          sc.getDatabaseService().privilegedPerhapsPlaceRowIntoConflictWithId(sc.getAppName(), sc
-              .getDatabase(), tableId, orderedColumns, values, rowId);
-
-          // remove this server row from the map of changes reported by the server.
-          // the following decision tree will always place the row into one of the
-          // local action lists.
-          changedServerRows.remove(rowId);
         }
 
         // Now, go through the remaining serverRows in the rows map. That
@@ -313,6 +315,58 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
     }
   }
 
+  /**
+   * Fetch a page of server changes, reporting its duration or failure to the
+   * batch sizer.
+   *
+   * @param tableResource
+   * @param dataETag
+   * @param websafeResumeCursor
+   * @param fetchLimit
+   * @return the page
+   * @throws HttpClientWebException
+   * @throws IOException
+   */
+  private RowResourceList fetchUpdates(TableResource tableResource, String dataETag,
+      String websafeResumeCursor, int fetchLimit) throws HttpClientWebException, IOException {
+    String tableId = tableResource.getTableId();
+    SyncBatchSizer batchSizer = sc.getBatchSizer();
+    long start = System.currentTimeMillis();
+    try {
+      RowResourceList rows = sc.getSynchronizer()
+          .getUpdates(tableResource, dataETag, websafeResumeCursor, fetchLimit);
+      batchSizer.recordFetch(tableId, fetchLimit, rows.getRows().size(),
+          System.currentTimeMillis() - start);
+      return rows;
+    } catch (HttpClientWebException e) {
+      batchSizer.recordFetchFailure(tableId, fetchLimit, e);
+      throw e;
+    } catch (IOException e) {
+      batchSizer.recordFetchFailure(tableId, fetchLimit, e);
+      throw e;
+    }
+  }
+
+  /**
+   * Wait for a prefetched page of server changes.
+   *
+   * @param prefetchedRows
+   * @return the page
+   * @throws Exception the exception thrown while fetching the page
+   */
+  private RowResourceList getPrefetchedRows(Future<RowResourceList> prefetchedRows)
+      throws Exception {
+    try {
+      return prefetchedRows.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw e;
+    }
+  }
+
   /**
    * Synchronize the table data rows.
    * <p/>
@@ -330,7 +384,7 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
    * @param fileAttachmentColumns  columns that can store file attachment filenames.
    * @throws ServicesAvailabilityException
    */
-  void updateLocalRowsFromServer(TableResource tableResource, TableDefinitionEntry te,
+  void updateLocalRowsFromServer(final TableResource tableResource, TableDefinitionEntry te,
       OrderedColumns orderedColumns, ArrayList<ColumnDefinition> fileAttachmentColumns)
       throws ServicesAvailabilityException {
 
@@ -350,10 +404,30 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
 
       String lastDataETag = null;
 
-      {
+      // The next page is requested while the current page is being applied
+      // to the database. At most one page is fetched ahead of the one being
+      // applied.
+      ExecutorService prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, TAG + "-prefetch");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      Future<RowResourceList> prefetchedRows = null;
+
+      try {
+        final String lastSyncedDataETag = te.getLastDataETag();
         String firstDataETag = null;
         String websafeResumeCursor = null;
 
+        // By default, the server uses a 2000-row limit in what it returns.
+        // if the table has more than 200 columns, reduce this to 200 rows.
+        // This is only the starting point; the batch sizer adjusts it from
+        // the measured duration of each request.
+        final int defaultFetchLimit = (orderedColumns.getColumnDefinitions().size() > maxColumnsToUseLargeFetchLimit)
+            ? smallFetchLimit : largeFetchLimit;
+
         int serverFetchNumber = -1;
 
         // may set tableResult syncOutcome
@@ -361,10 +435,7 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
           ++serverFetchNumber;
           RowResourceList rows = null;
 
-          // By default, the server uses a 2000-row limit in what it returns.
-          // if the table has more than 200 columns, reduce this to 200 rows.
-          int fetchLimit = (orderedColumns.getColumnDefinitions().size() > maxColumnsToUseLargeFetchLimit)
-              ? smallFetchLimit : largeFetchLimit;
+          int fetchLimit = sc.getBatchSizer().getFetchLimit(tableId, defaultFetchLimit);
 
           double percentPerPhase = (maxPercentage - minPercentage) / ((double) numberOfPhases);
           double baseForPhase = (serverFetchNumber % numberOfPhases) * percentPerPhase;
@@ -373,8 +444,13 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
           publishUpdateNotification(R.string.sync_getting_changed_rows_on_server, tableId, baseForPhase);
 
           try {
-            rows = sc.getSynchronizer()
-                .getUpdates(tableResource, te.getLastDataETag(), websafeResumeCursor, fetchLimit);
+            if (prefetchedRows == null) {
+              rows = fetchUpdates(tableResource, lastSyncedDataETag, websafeResumeCursor,
+                  fetchLimit);
+            } else {
+              rows = getPrefetchedRows(prefetchedRows);
+              prefetchedRows = null;
+            }
             if (firstDataETag == null) {
               firstDataETag = rows.getDataETag();
             }
@@ -385,31 +461,57 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
             return;
           }
 
-          updateLocalRowsFromServerRowResourceList(tableResource, orderedColumns,
-              fileAttachmentColumns, rows);
-
-          if (tableLevelResult.getSyncOutcome() != SyncOutcome.WORKING) {
-            // something went wrong -- do not proceed.
-            return;
-          }
-
+          // determine the next request from this page's dataETag and resume
+          // cursor before applying it, so that it can be fetched meanwhile.
+          boolean morePages;
           if ( lastDataETag == null ) {
             // there were no rows for this table on the server
-            break;
+            morePages = false;
           } else if (!lastDataETag.equals(firstDataETag)) {
             // there were intervening updates by other clients.
             // re-issue request for updates and process these
             // until we have no updates pending.
             websafeResumeCursor = null;
             firstDataETag = null;
+            morePages = true;
           } else if (rows.isHasMoreResults()) {
             websafeResumeCursor = rows.getWebSafeResumeCursor();
+            morePages = true;
           } else {
             // there were no intervening updates by other clients.
             // success -- exit the update loop...
+            morePages = false;
+          }
+
+          if (morePages) {
+            final String nextResumeCursor = websafeResumeCursor;
+            final int nextFetchLimit = sc.getBatchSizer().getFetchLimit(tableId, defaultFetchLimit);
+            prefetchedRows = prefetcher.submit(new Callable<RowResourceList>() {
+              @Override public RowResourceList call() throws Exception {
+                return fetchUpdates(tableResource, lastSyncedDataETag, nextResumeCursor,
+                    nextFetchLimit);
+              }
+            });
+          }
+
+          updateLocalRowsFromServerRowResourceList(tableResource, orderedColumns,
+              fileAttachmentColumns, rows);
+
+          if (tableLevelResult.getSyncOutcome() != SyncOutcome.WORKING) {
+            // something went wrong -- do not proceed.
+            return;
+          }
+
+          if (!morePages) {
             break;
           }
         }
+      } finally {
+        if (prefetchedRows != null) {
+          // abandon the page we no longer need
+          prefetchedRows.cancel(true);
+        }
+        prefetcher.shutdownNow();
       }
 
       if (tableLevelResult.getSyncOutcome() != SyncOutcome.WORKING) {
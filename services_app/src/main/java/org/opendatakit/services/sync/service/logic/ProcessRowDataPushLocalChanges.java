@@ -38,6 +38,7 @@ import org.opendatakit.provider.DataTableColumns;
 import org.opendatakit.services.R;
 import org.opendatakit.services.sync.service.SyncExecutionContext;
 import org.opendatakit.services.sync.service.exceptions.ClientDetectedVersionMismatchedServerResponseException;
+import org.opendatakit.services.sync.service.exceptions.HttpClientWebException;
 import org.opendatakit.sync.service.SyncOutcome;
 import org.opendatakit.sync.service.TableLevelResult;
 
@@ -59,6 +60,10 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
   private static final double minPercentage = 50.0;
   private static final double maxPercentage = 75.0;
 
+  /**
+   * Number of rows sent in the first push of a table; afterwards the batch
+   * sizer adjusts this from the measured duration of each push.
+   */
   private static final int UPSERT_BATCH_SIZE = 500;
 
   ProcessRowDataPushLocalChanges(SyncExecutionContext sharedContext) {
@@ -67,6 +72,37 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
     setUpdateNotificationBounds(minPercentage, maxPercentage, 1);
   }
 
+  /**
+   * Push a batch of local changes, reporting its duration or failure to the
+   * batch sizer.
+   *
+   * @param tableResource
+   * @param orderedColumns
+   * @param segmentAlter
+   * @return null if the server's dataETag has changed, otherwise the row-by-row results.
+   * @throws HttpClientWebException
+   * @throws IOException
+   */
+  private RowOutcomeList pushLocalRows(TableResource tableResource,
+      OrderedColumns orderedColumns, List<Row> segmentAlter)
+      throws HttpClientWebException, IOException {
+    String tableId = tableResource.getTableId();
+    SyncBatchSizer batchSizer = sc.getBatchSizer();
+    long start = System.currentTimeMillis();
+    try {
+      RowOutcomeList outcomes = sc.getSynchronizer()
+          .pushLocalRows(tableResource, orderedColumns, segmentAlter);
+      batchSizer.recordPush(tableId, segmentAlter.size(), System.currentTimeMillis() - start);
+      return outcomes;
+    } catch (HttpClientWebException e) {
+      batchSizer.recordPushFailure(tableId, segmentAlter.size(), e);
+      throw e;
+    } catch (IOException e) {
+      batchSizer.recordPushFailure(tableId, segmentAlter.size(), e);
+      throw e;
+    }
+  }
+
   /**
    * We pushed changes up to the server and now need to update the local rowETags to match
    * the rowETags assigned to those changes by the server.
@@ -310,6 +346,7 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
 
         // create the list of IDs
         sc.getDatabaseService().privilegedExecute(sc.getAppName(), db, sqlCommand, bindArgs);
+        indexLocalIdTable(db, local_id_table);
 
         // now count the number
         StringBuilder b = new StringBuilder();
@@ -335,17 +372,12 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
 
       setUpdateNotificationBounds(minPercentage, maxPercentage, rowsToSyncCount);
 
-      String whereClause;
-      {
-        StringBuilder whereClauseBuilder = new StringBuilder();
-        whereClauseBuilder.append(DataTableColumns.ID).append(" IN (SELECT ")
-            .append(ID_COLUMN).append(" FROM ").append(local_id_table)
-            .append(" LIMIT ? OFFSET ? )");
-        whereClause = whereClauseBuilder.toString();
-      }
+      // page through the ids in id order, resuming after the last id of each page
+      String firstPageWhereClause = localIdPageWhereClause(local_id_table, true);
+      String nextPageWhereClause = localIdPageWhereClause(local_id_table, false);
 
       // these are all the various actions we will need to take:
-      int fetchOffset = 0;
+      String lastSeenId = null;
       int fetchLimit = (orderedColumns.getColumnDefinitions().size() > maxColumnsToUseLargeFetchLimit)
           ? smallFetchLimit : largeFetchLimit;
 
@@ -363,7 +395,15 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
             try {
               db = sc.getDatabase();
               String[] empty = {};
-              Object[] bindArgs = new Object[] {fetchLimit, fetchOffset};
+              String whereClause;
+              Object[] bindArgs;
+              if (lastSeenId == null) {
+                whereClause = firstPageWhereClause;
+                bindArgs = new Object[] {fetchLimit};
+              } else {
+                whereClause = nextPageWhereClause;
+                bindArgs = new Object[] {lastSeenId, fetchLimit};
+              }
 
               localDataTable = sc.getDatabaseService()
                   .privilegedSimpleQuery(sc.getAppName(), db, tableId, orderedColumns, whereClause,
@@ -375,7 +415,9 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
             }
           }
 
-          fetchOffset += localDataTable.getNumberOfRows();
+          if (localDataTable.getNumberOfRows() != 0) {
+            lastSeenId = localDataTable.getRowId(localDataTable.getNumberOfRows() - 1);
+          }
 
           /**************************
            * PART 2: UPDATE THE DATA
@@ -395,8 +437,8 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
 
             int sendOffset = 0;
             while (sendOffset < localDataTable.getNumberOfRows()) {
-              // alter UPSERT_BATCH_SIZE rows at a time to the server
-              int max = sendOffset + UPSERT_BATCH_SIZE;
+              // alter a batch of rows at a time to the server
+              int max = sendOffset + sc.getBatchSizer().getPushBatchSize(tableId, UPSERT_BATCH_SIZE);
               if (max > localDataTable.getNumberOfRows()) {
                 max = localDataTable.getNumberOfRows();
               }
@@ -409,8 +451,8 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
               publishUpdateNotification(R.string.sync_pushing_local_row_changes_to_server,
                   tableId, -1.0);
 
-              RowOutcomeList outcomes = sc.getSynchronizer()
-                  .pushLocalRows(tableResource, orderedColumns, segmentAlter);
+              RowOutcomeList outcomes = pushLocalRows(tableResource, orderedColumns,
+                  segmentAlter);
               if (outcomes == null) {
                 // can't proceed because the server dataETag has changed.
                 // Signal that we need to re-pull server updates then
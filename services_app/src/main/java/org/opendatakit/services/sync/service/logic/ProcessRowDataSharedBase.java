@@ -1,6 +1,9 @@
 package org.opendatakit.services.sync.service.logic;
 
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.logging.WebLogger;
+import org.opendatakit.provider.DataTableColumns;
 import org.opendatakit.logging.WebLoggerIf;
 import org.opendatakit.services.sync.service.SyncExecutionContext;
 import org.opendatakit.sync.service.SyncOutcome;
@@ -48,6 +51,46 @@ public abstract class ProcessRowDataSharedBase implements IProcessRowData {
     this.largeFetchLimit = largeFetchLimit;
   }
 
+  /**
+   * Index the id column of a local id table (e.g., L__tableId) once it has been
+   * filled, so that each page of ids can be found without scanning the table.
+   *
+   * @param db
+   * @param localIdTable
+   * @throws ServicesAvailabilityException
+   */
+  void indexLocalIdTable(DbHandle db, String localIdTable) throws ServicesAvailabilityException {
+    StringBuilder b = new StringBuilder();
+    b.append("CREATE INDEX IF NOT EXISTS ").append(localIdTable).append("_id_index ON ")
+        .append(localIdTable).append(" (").append(ID_COLUMN).append(")");
+    sc.getDatabaseService().privilegedExecute(sc.getAppName(), db, b.toString(),
+        new Object[] {});
+  }
+
+  /**
+   * Where clause selecting the data rows of the next page of ids in a local id table.
+   * Pages are taken in id order, starting after the last id of the previous page,
+   * so each page costs the same regardless of how many pages preceded it.
+   * <p/>
+   * The bind arguments are the last id of the previous page (omitted for the first
+   * page) followed by the number of ids in the page. The rows must be retrieved
+   * ordered by DataTableColumns.ID ascending.
+   *
+   * @param localIdTable
+   * @param firstPage
+   * @return the where clause
+   */
+  static String localIdPageWhereClause(String localIdTable, boolean firstPage) {
+    StringBuilder b = new StringBuilder();
+    b.append(DataTableColumns.ID).append(" IN (SELECT ")
+        .append(ID_COLUMN).append(" FROM ").append(localIdTable);
+    if (!firstPage) {
+      b.append(" WHERE ").append(ID_COLUMN).append(" > ?");
+    }
+    b.append(" ORDER BY ").append(ID_COLUMN).append(" LIMIT ? )");
+    return b.toString();
+  }
+
   public SyncExecutionContext getSyncExecutionContext() {
     return sc;
   }
@@ -83,6 +126,18 @@ public abstract class ProcessRowDataSharedBase implements IProcessRowData {
         minPercentage + rowsProcessed * perRowIncrement, false);
   }
 
+  /**
+   * As publishUpdateNotification(idResource, tableId), also reporting the
+   * kilobytes of attachments transferred so far for the table.
+   */
+  public void publishAttachmentNotification(int idResource, String tableId,
+      long bytesTransferred) {
+    ++rowsProcessed;
+    sc.updateNotification(SyncProgressState.ROWS, idResource,
+        new Object[] { tableId, rowsProcessed, totalAffectedRows, bytesTransferred / 1024L },
+        minPercentage + rowsProcessed * perRowIncrement, false);
+  }
+
   /**
    * Common error reporting...
    *
@@ -37,6 +37,9 @@ import org.opendatakit.sync.service.TableLevelResult;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * SyncProcessor implements the cloud synchronization logic for Tables.
@@ -83,13 +86,13 @@ class ProcessRowDataSyncAttachments extends ProcessRowDataSharedBase {
    * @return true if changes need to be pulled from the server before continuing
    * @throws ServicesAvailabilityException
    */
-  public void syncAttachments(TableResource tableResource,
+  public void syncAttachments(final TableResource tableResource,
       TableDefinitionEntry te, OrderedColumns orderedColumns,
-      ArrayList<ColumnDefinition> fileAttachmentColumns,
-      SyncAttachmentState attachmentState) throws ServicesAvailabilityException {
+      final ArrayList<ColumnDefinition> fileAttachmentColumns,
+      final SyncAttachmentState attachmentState) throws ServicesAvailabilityException {
 
     // Prepare the tableLevelResult.
-    String tableId = te.getTableId();
+    final String tableId = te.getTableId();
     TableLevelResult tableLevelResult = sc.getTableLevelResult(tableId);
     getLogger().i( TAG, "syncAttachments - tableId: " + tableId +
         " attachmentState: " + attachmentState.toString());
@@ -153,6 +156,7 @@ class ProcessRowDataSyncAttachments extends ProcessRowDataSharedBase {
 
         // create the list of IDs
         sc.getDatabaseService().privilegedExecute(sc.getAppName(), db, sqlCommand, bindArgs);
+        indexLocalIdTable(db, local_id_table);
 
         // now count the number
         StringBuilder b = new StringBuilder();
@@ -180,24 +184,22 @@ class ProcessRowDataSyncAttachments extends ProcessRowDataSharedBase {
     if ( rowsToSyncCount != 0 ) {
       setUpdateNotificationBounds(minPercentage, maxPercentage, rowsToSyncCount);
 
-      int fetchOffset = 0;
+      // shared with the other tables; shut down when the sync ends
+      final AttachmentTransferPipeline pipeline = sc.getAttachmentTransferPipeline();
+      String lastSeenId = null;
       int fetchLimit = (orderedColumns.getColumnDefinitions().size() > maxColumnsToUseLargeFetchLimit)
           ? smallFetchLimit : largeFetchLimit;
 
-      String whereClause;
-      {
-        StringBuilder whereClauseBuilder = new StringBuilder();
-        whereClauseBuilder.append(DataTableColumns.ID).append(" IN (SELECT ")
-            .append(ID_COLUMN).append(" FROM ").append(local_id_table)
-            .append(" LIMIT ? OFFSET ? )");
-        whereClause = whereClauseBuilder.toString();
-      }
+      // page through the ids in id order, resuming after the last id of each page
+      String firstPageWhereClause = localIdPageWhereClause(local_id_table, true);
+      String nextPageWhereClause = localIdPageWhereClause(local_id_table, false);
 
       for (; ; ) {
 
         publishUpdateNotification(R.string.sync_fetch_batch_attachment_changes, tableId, -1.0);
 
         UserTable localDataTable;
+        List<Future<SyncOutcome>> rowOutcomes = new ArrayList<Future<SyncOutcome>>();
         try {
           // //////////////////////////////////////////////////
           // //////////////////////////////////////////////////
@@ -206,29 +208,40 @@ class ProcessRowDataSyncAttachments extends ProcessRowDataSharedBase {
             try {
               db = sc.getDatabase();
               String[] empty = {};
-              Object[] bindArgs = new Object[] {fetchLimit, fetchOffset};
+              String whereClause;
+              Object[] bindArgs;
+              if (lastSeenId == null) {
+                whereClause = firstPageWhereClause;
+                bindArgs = new Object[] {fetchLimit};
+              } else {
+                whereClause = nextPageWhereClause;
+                bindArgs = new Object[] {lastSeenId, fetchLimit};
+              }
 
               localDataTable = sc.getDatabaseService()
                   .privilegedSimpleQuery(sc.getAppName(), db, tableId, orderedColumns, whereClause,
                       bindArgs, empty, null, new String[] { DataTableColumns.ID },
-                      new String[] { "ASC" }, fetchLimit, fetchOffset);
+                      new String[] { "ASC" }, null, null);
             } finally {
               sc.releaseDatabase(db);
               db = null;
             }
           }
 
-          fetchOffset += localDataTable.getNumberOfRows();
+          if (localDataTable.getNumberOfRows() != 0) {
+            lastSeenId = localDataTable.getRowId(localDataTable.getNumberOfRows() - 1);
+          }
 
           /**************************
            * PART 2: UPDATE THE DATA
            **************************/
 
-          // loop through the localRow table
+          // hand the rows with attachments to the transfer pipeline so that
+          // several rows' files are in flight at once.
           for (int i = 0; i < localDataTable.getNumberOfRows(); i++) {
-            Row localRow = localDataTable.getRowAtIndex(i);
+            final Row localRow = localDataTable.getRowAtIndex(i);
             String stateStr = localRow.getDataByKey(DataTableColumns.SYNC_STATE);
-            SyncState state = (stateStr == null) ? null : SyncState.valueOf(stateStr);
+            final SyncState state = (stateStr == null) ? null : SyncState.valueOf(stateStr);
 
             getLogger().i(TAG, "syncAttachments examining row " + localRow.getDataByKey(DataTableColumns.ID));
 
@@ -248,65 +261,54 @@ class ProcessRowDataSyncAttachments extends ProcessRowDataSharedBase {
             }
 
             if (syncAttachments) {
-              // And try to push the file attachments...
-              try {
-                boolean outcome = true;
-
-                SyncAttachmentState filteredAttachmentState = (state == SyncState.in_conflict ?
-                    SyncAttachmentState.DOWNLOAD :
-                    attachmentState);
-
-                outcome = manifestProcessor.
-                    syncRowLevelFileAttachments(tableResource.getInstanceFilesUri(), tableId,
-                        localRow, fileAttachmentColumns, attachmentState);
-
-                if (outcome) {
-                  if (state == SyncState.synced_pending_files) {
-                    // OK -- we succeeded in putting/getting all attachments
-                    // update our state to the synced state.
-                    DbHandle db = null;
-                    try {
-                      db = sc.getDatabase();
-                      sc.getDatabaseService()
-                          .privilegedUpdateRowETagAndSyncState(sc.getAppName(), db, tableId,
-                              localRow.getDataByKey(DataTableColumns.ID), localRow.getDataByKey(DataTableColumns.ROW_ETAG),
-                              SyncState.synced.name());
-                    } finally {
-                      sc.releaseDatabase(db);
-                      db = null;
-                    }
-                  }
+              rowOutcomes.add(pipeline.submitRow(new Callable<SyncOutcome>() {
+                @Override public SyncOutcome call() {
+                  return syncRowAttachments(tableResource, tableId, localRow, state,
+                      fileAttachmentColumns, attachmentState, pipeline);
                 }
-              } catch (Throwable e) {
-                getLogger().printStackTrace(e);
-                tableLevelSyncOutcome = sc.exceptionEquivalentOutcome(e);
-                getLogger().e(TAG, "[synchronizeTableRest] error synchronizing attachments " + e.toString());
-              }
-              tableLevelResult.incLocalAttachmentRetries();
-
-              getLogger().i(TAG, "syncAttachments completed processing for " + localRow.getDataByKey(DataTableColumns.ID));
-
-              int idString;
-              switch (attachmentState) {
-              default:
-              case NONE:
-                idString = R.string.sync_skipping_attachments_server_row;
-                break;
-              case SYNC:
-                idString = R.string.sync_syncing_attachments_server_row;
-                break;
-              case UPLOAD:
-                idString = R.string.sync_uploading_attachments_server_row;
-                break;
-              case DOWNLOAD:
-                idString = R.string.sync_downloading_attachments_server_row;
-                break;
-              }
+              }));
+            }
+          }
 
-              publishUpdateNotification(idString, tableId);
+          // collect the outcomes in row order
+          for (Future<SyncOutcome> rowOutcome : rowOutcomes) {
+            SyncOutcome outcome;
+            try {
+              outcome = rowOutcome.get();
+            } catch (ExecutionException e) {
+              getLogger().printStackTrace(e.getCause());
+              outcome = sc.exceptionEquivalentOutcome(e.getCause());
+            }
+            if (outcome != SyncOutcome.WORKING) {
+              tableLevelSyncOutcome = outcome;
             }
+            tableLevelResult.incLocalAttachmentRetries();
+
+            int idString;
+            switch (attachmentState) {
+            default:
+            case NONE:
+              idString = R.string.sync_skipping_attachments_server_row;
+              break;
+            case SYNC:
+              idString = R.string.sync_syncing_attachments_server_row;
+              break;
+            case UPLOAD:
+              idString = R.string.sync_uploading_attachments_server_row;
+              break;
+            case DOWNLOAD:
+              idString = R.string.sync_downloading_attachments_server_row;
+              break;
+            }
+
+            publishAttachmentNotification(idString, tableId,
+                pipeline.getBytesTransferred(tableId));
           }
         } catch (Exception e) {
+          // abandon this table's rows that have not started
+          for (Future<SyncOutcome> rowOutcome : rowOutcomes) {
+            rowOutcome.cancel(false);
+          }
           exception("synchronizeTable - pushing data up to server", tableId, e, tableLevelResult);
           return;
         }
@@ -323,6 +325,9 @@ class ProcessRowDataSyncAttachments extends ProcessRowDataSharedBase {
           break;
         }
       }
+      getLogger().i(TAG, "syncAttachments - tableId: " + tableId + " transferred "
+          + pipeline.getBytesTransferred(tableId) + " bytes, retried "
+          + pipeline.getFileRetries(tableId) + " files individually");
     }
 
     if ( tableLevelSyncOutcome != SyncOutcome.WORKING ) {
@@ -335,4 +340,52 @@ class ProcessRowDataSyncAttachments extends ProcessRowDataSharedBase {
     // if we got here, perhaps some of the attachments were sync'd.
     return;
   }
+
+  /**
+   * Sync the attachments of one row. Runs on a pipeline worker thread.
+   *
+   * @return WORKING on success, otherwise the outcome equivalent to the failure.
+   */
+  private SyncOutcome syncRowAttachments(TableResource tableResource, String tableId,
+      Row localRow, SyncState state, ArrayList<ColumnDefinition> fileAttachmentColumns,
+      SyncAttachmentState attachmentState, AttachmentTransferPipeline pipeline) {
+    SyncOutcome rowOutcome = SyncOutcome.WORKING;
+    // And try to push the file attachments...
+    try {
+      boolean outcome = true;
+
+      SyncAttachmentState filteredAttachmentState = (state == SyncState.in_conflict ?
+          SyncAttachmentState.DOWNLOAD :
+          attachmentState);
+
+      outcome = manifestProcessor.
+          syncRowLevelFileAttachments(tableResource.getInstanceFilesUri(), tableId,
+              localRow, fileAttachmentColumns, attachmentState, pipeline);
+
+      if (outcome) {
+        if (state == SyncState.synced_pending_files) {
+          // OK -- we succeeded in putting/getting all attachments
+          // update our state to the synced state.
+          DbHandle db = null;
+          try {
+            db = sc.getDatabase();
+            sc.getDatabaseService()
+                .privilegedUpdateRowETagAndSyncState(sc.getAppName(), db, tableId,
+                    localRow.getDataByKey(DataTableColumns.ID), localRow.getDataByKey(DataTableColumns.ROW_ETAG),
+                    SyncState.synced.name());
+          } finally {
+            sc.releaseDatabase(db);
+            db = null;
+          }
+        }
+      }
+    } catch (Throwable e) {
+      getLogger().printStackTrace(e);
+      rowOutcome = sc.exceptionEquivalentOutcome(e);
+      getLogger().e(TAG, "[synchronizeTableRest] error synchronizing attachments " + e.toString());
+    }
+
+    getLogger().i(TAG, "syncAttachments completed processing for " + localRow.getDataByKey(DataTableColumns.ID));
+    return rowOutcome;
+  }
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.sync.service.logic;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
+import org.opendatakit.database.data.ColumnDefinition;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.httpclientandroidlib.entity.AbstractHttpEntity;
+import org.opendatakit.httpclientandroidlib.entity.ContentType;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip-compressed JSON RowList request body for pushing local rows to the server.
+ * <p/>
+ * The RowList is written with a JsonGenerator directly into the gzip stream on the
+ * connection as the request is sent. Only one row's server representation exists at
+ * a time; the full RowList is never built and its JSON is never held as a String.
+ * <p/>
+ * Repeatable: the body is regenerated from the local rows if the request must be
+ * re-sent (e.g., after an authentication challenge).
+ */
+class RowListJsonEntity extends AbstractHttpEntity {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  // do not flush the socket after every row
+  private static final ObjectWriter rowWriter = ODKFileUtils.mapper.writer()
+      .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+  private final List<String> elementKeys;
+  private final List<org.opendatakit.database.data.Row> rows;
+  private final String dataETag;
+
+  /**
+   * @param orderedColumns the columns of the table
+   * @param rows           the local rows to insert, update or delete on the server
+   * @param dataETag       the server dataETag these changes are based upon
+   */
+  RowListJsonEntity(OrderedColumns orderedColumns, List<org.opendatakit.database.data.Row> rows,
+      String dataETag) {
+    this.elementKeys = new ArrayList<String>();
+    for (ColumnDefinition column : orderedColumns.getColumnDefinitions()) {
+      if (column.isUnitOfRetention()) {
+        elementKeys.add(column.getElementKey());
+      }
+    }
+    this.rows = rows;
+    this.dataETag = dataETag;
+    setContentType(ContentType.APPLICATION_JSON.toString());
+    setContentEncoding("gzip");
+    setChunked(true);
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  @Override
+  public long getContentLength() {
+    return -1;
+  }
+
+  @Override
+  public InputStream getContent() throws IOException, UnsupportedOperationException {
+    throw new UnsupportedOperationException("RowListJsonEntity can only be written");
+  }
+
+  @Override
+  public boolean isStreaming() {
+    return false;
+  }
+
+  @Override
+  public void writeTo(OutputStream outstream) throws IOException {
+    if (outstream == null) {
+      throw new IllegalArgumentException("Output stream may not be null");
+    }
+    GZIPOutputStream gzip = new GZIPOutputStream(outstream, BUFFER_SIZE);
+    JsonGenerator generator = ODKFileUtils.mapper.getFactory()
+        .createGenerator(gzip, JsonEncoding.UTF8);
+    try {
+      // same properties as a serialized RowList
+      generator.writeStartObject();
+      generator.writeArrayFieldStart("rows");
+      for (org.opendatakit.database.data.Row rowToAlter : rows) {
+        rowWriter.writeValue(generator, toServerRow(rowToAlter));
+      }
+      generator.writeEndArray();
+      generator.writeStringField("dataETag", dataETag);
+      generator.writeEndObject();
+    } finally {
+      // finishes the gzip stream
+      generator.close();
+    }
+  }
+
+  private Row toServerRow(org.opendatakit.database.data.Row rowToAlter) {
+    ArrayList<DataKeyValue> values = new ArrayList<DataKeyValue>(elementKeys.size());
+    for (String elementKey : elementKeys) {
+      values.add(new DataKeyValue(elementKey, rowToAlter.getDataByKey(elementKey)));
+    }
+
+    Row row = Row.forUpdate(rowToAlter.getDataByKey(DataTableColumns.ID),
+        rowToAlter.getDataByKey(DataTableColumns.ROW_ETAG),
+        rowToAlter.getDataByKey(DataTableColumns.FORM_ID),
+        rowToAlter.getDataByKey(DataTableColumns.LOCALE),
+        rowToAlter.getDataByKey(DataTableColumns.SAVEPOINT_TYPE),
+        rowToAlter.getDataByKey(DataTableColumns.SAVEPOINT_TIMESTAMP),
+        rowToAlter.getDataByKey(DataTableColumns.SAVEPOINT_CREATOR),
+        RowFilterScope.asRowFilter(rowToAlter.getDataByKey(DataTableColumns.FILTER_TYPE),
+            rowToAlter.getDataByKey(DataTableColumns.FILTER_VALUE)),
+        values);
+
+    boolean isDeleted = SyncState.deleted.name().equals(
+        rowToAlter.getDataByKey(DataTableColumns.SYNC_STATE));
+    row.setDeleted(isDeleted);
+    return row;
+  }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.sync.service.logic;
+
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.services.sync.service.exceptions.InternalServerFailureException;
+import org.opendatakit.services.sync.service.exceptions.NetworkTransmissionException;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Chooses, for each table, the number of rows requested in each page pulled from
+ * the server (the fetchLimit) and the number of rows sent in each push request.
+ * <p/>
+ * A size grows while full requests complete well within a target duration and
+ * there is heap to spare. It shrinks so that the next request should take about
+ * the target duration when a request is slow, by half when a request fails with
+ * a network or server error, and by half when the heap is nearly exhausted. The
+ * learned sizes are saved with the sync ETags (see {@link Store}) so that the next
+ * sync of a table starts from them rather than from the column-count heuristic,
+ * and are forgotten along with the ETags of the table or server.
+ * <p/>
+ * Thread-safe; tables are synchronized concurrently.
+ */
+public final class SyncBatchSizer {
+
+  private static final String TAG = SyncBatchSizer.class.getSimpleName();
+
+  static final String FETCH_LIMIT = "fetchLimit";
+  static final String PUSH_BATCH_SIZE = "pushBatchSize";
+
+  static final int MIN_BATCH_SIZE = 20;
+  /**
+   * The server does not return more than this many rows in one page.
+   */
+  static final int MAX_FETCH_LIMIT = 2000;
+  static final int MAX_PUSH_BATCH_SIZE = 1000;
+
+  /**
+   * A request should take about this long. Long enough that per-request latency
+   * is amortized, short enough to stay well clear of socket timeouts.
+   */
+  static final long TARGET_REQUEST_MILLIS = 4000L;
+
+  // fraction of the maximum heap that must be free to grow a size / below which sizes shrink
+  private static final double MIN_HEADROOM_TO_GROW = 0.25;
+  private static final double MIN_HEADROOM = 0.10;
+
+  /**
+   * Where the learned sizes are kept between syncs.
+   */
+  public interface Store {
+    /**
+     * @return tableId -to- FETCH_LIMIT / PUSH_BATCH_SIZE -to- size
+     */
+    Map<String, Map<String, Integer>> load();
+
+    /**
+     * Replace the saved sizes of the tables in the map.
+     *
+     * @param sizes tableId -to- FETCH_LIMIT / PUSH_BATCH_SIZE -to- size
+     */
+    void save(Map<String, Map<String, Integer>> sizes);
+  }
+
+  private final String appName;
+  private final Store store;
+
+  // tableId -> FETCH_LIMIT / PUSH_BATCH_SIZE -> size
+  private Map<String, Map<String, Integer>> sizes = null;
+  private boolean dirty = false;
+
+  public SyncBatchSizer(String appName, Store store) {
+    this.appName = appName;
+    this.store = store;
+  }
+
+  /**
+   * @param tableId
+   * @param defaultFetchLimit used if nothing has been learned for this table
+   * @return the number of rows to request in the next page pulled from the server
+   */
+  public synchronized int getFetchLimit(String tableId, int defaultFetchLimit) {
+    return getSize(tableId, FETCH_LIMIT, defaultFetchLimit, MAX_FETCH_LIMIT);
+  }
+
+  /**
+   * @param tableId
+   * @param defaultPushBatchSize used if nothing has been learned for this table
+   * @return the number of rows to send in the next push request
+   */
+  public synchronized int getPushBatchSize(String tableId, int defaultPushBatchSize) {
+    return getSize(tableId, PUSH_BATCH_SIZE, defaultPushBatchSize, MAX_PUSH_BATCH_SIZE);
+  }
+
+  /**
+   * Record a completed pull of a page of server changes.
+   *
+   * @param tableId
+   * @param fetchLimit    the number of rows requested
+   * @param rows          the number of rows returned
+   * @param elapsedMillis duration of the request, including decoding the response
+   */
+  public synchronized void recordFetch(String tableId, int fetchLimit, int rows,
+      long elapsedMillis) {
+    adapt(tableId, FETCH_LIMIT, fetchLimit, rows, elapsedMillis, MAX_FETCH_LIMIT);
+  }
+
+  /**
+   * Record a completed push of local changes.
+   *
+   * @param tableId
+   * @param rows          the number of rows sent
+   * @param elapsedMillis duration of the request
+   */
+  public synchronized void recordPush(String tableId, int rows, long elapsedMillis) {
+    adapt(tableId, PUSH_BATCH_SIZE, rows, rows, elapsedMillis, MAX_PUSH_BATCH_SIZE);
+  }
+
+  /**
+   * Record a failed pull. Network and server failures halve the fetchLimit.
+   *
+   * @param tableId
+   * @param fetchLimit the number of rows requested
+   * @param e
+   */
+  public synchronized void recordFetchFailure(String tableId, int fetchLimit, Exception e) {
+    if (isTransient(e)) {
+      setSize(tableId, FETCH_LIMIT, fetchLimit / 2, MAX_FETCH_LIMIT);
+    }
+  }
+
+  /**
+   * Record a failed push. Network and server failures halve the push batch size.
+   *
+   * @param tableId
+   * @param rows the number of rows sent
+   * @param e
+   */
+  public synchronized void recordPushFailure(String tableId, int rows, Exception e) {
+    if (isTransient(e)) {
+      setSize(tableId, PUSH_BATCH_SIZE, rows / 2, MAX_PUSH_BATCH_SIZE);
+    }
+  }
+
+  /**
+   * Save the learned sizes, if they have changed.
+   */
+  public synchronized void save() {
+    if (!dirty) {
+      return;
+    }
+    try {
+      store.save(sizes);
+      dirty = false;
+    } catch (RuntimeException e) {
+      WebLogger.getLogger(appName).w(TAG, "save: unable to save sync batch sizes: "
+          + e.toString());
+    }
+  }
+
+  private void adapt(String tableId, String kind, int current, int rows, long elapsedMillis,
+      int max) {
+    double headroom = getHeapHeadroom();
+    if (headroom < MIN_HEADROOM) {
+      setSize(tableId, kind, current / 2, max);
+    } else if (elapsedMillis > TARGET_REQUEST_MILLIS) {
+      if (rows > MIN_BATCH_SIZE) {
+        // the next request should take about the target duration
+        int size = (int) ((rows * TARGET_REQUEST_MILLIS) / elapsedMillis);
+        setSize(tableId, kind, Math.min(current, size), max);
+      }
+    } else if (rows >= current && elapsedMillis < TARGET_REQUEST_MILLIS / 2
+        && headroom >= MIN_HEADROOM_TO_GROW) {
+      setSize(tableId, kind, current + current / 2, max);
+    } else {
+      setSize(tableId, kind, current, max);
+    }
+  }
+
+  private int getSize(String tableId, String kind, int defaultSize, int max) {
+    Map<String, Integer> tableSizes = getSizes().get(tableId);
+    Integer size = (tableSizes == null) ? null : tableSizes.get(kind);
+    return clamp((size == null) ? defaultSize : size, max);
+  }
+
+  private void setSize(String tableId, String kind, int size, int max) {
+    Map<String, Map<String, Integer>> all = getSizes();
+    Map<String, Integer> tableSizes = all.get(tableId);
+    if (tableSizes == null) {
+      tableSizes = new HashMap<String, Integer>();
+      all.put(tableId, tableSizes);
+    }
+    Integer newSize = clamp(size, max);
+    if (!newSize.equals(tableSizes.put(kind, newSize))) {
+      dirty = true;
+    }
+  }
+
+  private Map<String, Map<String, Integer>> getSizes() {
+    if (sizes == null) {
+      try {
+        sizes = store.load();
+      } catch (RuntimeException e) {
+        WebLogger.getLogger(appName).w(TAG, "getSizes: unable to load sync batch sizes: "
+            + e.toString());
+      }
+      if (sizes == null) {
+        sizes = new HashMap<String, Map<String, Integer>>();
+      }
+    }
+    return sizes;
+  }
+
+  private static int clamp(int size, int max) {
+    return Math.max(MIN_BATCH_SIZE, Math.min(max, size));
+  }
+
+  private static double getHeapHeadroom() {
+    Runtime rt = Runtime.getRuntime();
+    long used = rt.totalMemory() - rt.freeMemory();
+    return ((double) (rt.maxMemory() - used)) / ((double) rt.maxMemory());
+  }
+
+  private static boolean isTransient(Exception e) {
+    return (e instanceof IOException) || (e instanceof NetworkTransmissionException) ||
+        (e instanceof InternalServerFailureException);
+  }
+}
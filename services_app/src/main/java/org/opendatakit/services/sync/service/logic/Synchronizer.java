@@ -324,6 +324,20 @@ public interface Synchronizer {
    */
   void downloadFile(File destFile, URI downloadUrl) throws HttpClientWebException, IOException;
 
+  /**
+   * Download a file from the given Uri and store it in the destFile, resuming
+   * any partial download left by an earlier attempt.
+   *
+   * @param destFile
+   * @param downloadUrl
+   * @param expectedMd5Hash md5 hash from the manifest (or null). If supplied,
+   *                        the downloaded content is verified against it.
+   * @throws HttpClientWebException
+   * @throws IOException
+   */
+  void downloadFile(File destFile, URI downloadUrl, String expectedMd5Hash)
+      throws HttpClientWebException, IOException;
+
   /**
    * Delete the given config file on the server.
    *
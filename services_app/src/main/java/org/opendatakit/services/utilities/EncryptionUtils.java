@@ -14,7 +14,7 @@
 
 package org.opendatakit.services.utilities;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -23,6 +23,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.DigestOutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
@@ -96,10 +98,23 @@ public class EncryptionUtils {
   private static final String FILE = "file";
   private static final String BASE64_ENCRYPTED_ELEMENT_SIGNATURE = "base64EncryptedElementSignature";
   private static final String NEW_LINE = "\n";
+  private static final int BUFFER_SIZE = 8192;
 
   private EncryptionUtils() {
   }
 
+  /**
+   * Writes the plaintext of a submission onto a stream, so that it can be
+   * encrypted (or saved) as it is generated.
+   */
+  public interface SubmissionWriter {
+    /**
+     * @param out the stream to write to; do not close it.
+     * @throws IOException
+     */
+    void writeSubmission(OutputStream out) throws IOException;
+  }
+
   public static final class EncryptedFormInformation {
     public final String appName;
     public final String tableId;
@@ -195,8 +210,12 @@ public class EncryptionUtils {
       elementSignatureSource.append(value).append("\n");
     }
 
-    public void appendSubmissionFileSignatureSource(String contents, File file) {
-      String md5Hash = ODKFileUtils.getNakedMd5Hash(appName, contents);
+    public void appendSubmissionFileSignatureSource(byte[] md5Digest, File file) {
+      // same zero-padded form as ODKFileUtils.getNakedMd5Hash()
+      String md5Hash = new BigInteger(1, md5Digest).toString(16);
+      while (md5Hash.length() < 32) {
+        md5Hash = "0" + md5Hash;
+      }
       appendElementSignatureSource(file.getName() + "::" + md5Hash);
     }
 
@@ -392,30 +411,48 @@ public class EncryptionUtils {
     }
   }
 
-  private static void encryptIntoFile(String contents, File submissionFile, File encryptedFile,
-      EncryptedFormInformation formInfo) throws IOException, NoSuchAlgorithmException,
-      NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+  /**
+   * Write the submission through the cipher into the encrypted file.
+   *
+   * @param writer
+   * @param c             the initialized cipher
+   * @param encryptedFile
+   * @return the MD5 digest of the plaintext, computed as it streams past
+   * @throws IOException
+   * @throws NoSuchAlgorithmException
+   */
+  static byte[] encryptAndDigest(SubmissionWriter writer, Cipher c, File encryptedFile)
+      throws IOException, NoSuchAlgorithmException {
+    MessageDigest md = MessageDigest.getInstance("MD5");
+
+    OutputStream fout;
+    fout = new FileOutputStream(encryptedFile);
+    fout = new CipherOutputStream(fout, c);
+    fout = new DigestOutputStream(fout, md);
+    fout = new BufferedOutputStream(fout, BUFFER_SIZE);
+    try {
+      writer.writeSubmission(fout);
+    } finally {
+      fout.close();
+    }
+    return md.digest();
+  }
 
-    // add elementSignatureSource for this file...
-    formInfo.appendSubmissionFileSignatureSource(contents, submissionFile);
+  /**
+   * Streams the submission through the cipher into the encrypted file, computing
+   * the hash of the plaintext for the element signature along the way. Neither
+   * the plaintext nor the ciphertext is ever held in memory as a whole.
+   */
+  private static void encryptIntoFile(SubmissionWriter writer, File submissionFile,
+      File encryptedFile, EncryptedFormInformation formInfo) throws IOException,
+      NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+      InvalidAlgorithmParameterException {
 
     try {
-      Cipher c = formInfo.getCipher();
+      byte[] md5Digest = encryptAndDigest(writer, formInfo.getCipher(), encryptedFile);
 
-      OutputStream fout;
-      fout = new FileOutputStream(encryptedFile);
-      fout = new CipherOutputStream(fout, c);
-      InputStream fin;
-      fin = new ByteArrayInputStream(contents.getBytes(CharEncoding.UTF_8));
-      byte[] buffer = new byte[2048];
-      int len = fin.read(buffer);
-      while (len != -1) {
-        fout.write(buffer, 0, len);
-        len = fin.read(buffer);
-      }
-      fin.close();
-      fout.flush();
-      fout.close();
+      // add elementSignatureSource for this file...
+      formInfo.appendSubmissionFileSignatureSource(md5Digest, submissionFile);
       WebLogger.getLogger(formInfo.appName).i(t, "Encrpyted: content -> " + encryptedFile.getName());
     } catch (IOException e) {
       WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: content -> " + encryptedFile.getName());
@@ -463,7 +500,7 @@ public class EncryptionUtils {
     return allSuccessful;
   }
 
-  private static List<MimeFile> encryptSubmissionFiles(FileSet fileSet, String submission,
+  private static List<MimeFile> encryptSubmissionFiles(FileSet fileSet, SubmissionWriter submission,
                                                        File submissionXml, File submissionXmlEnc, EncryptedFormInformation formInfo) {
 
     // encrypt files that do not end with ".enc"
@@ -523,13 +560,14 @@ public class EncryptionUtils {
    * Does not delete any of the original files.
    *
    * @parma fileSet
-   * @param submission
+   * @param submission writes the plaintext submission; called once, after the media files
+   *                   have been encrypted
    * @param submissionXml
    * @param submissionXmlEnc
    * @param formInfo
    * @return
    */
-  public static boolean generateEncryptedSubmission(FileSet fileSet, String submission,
+  public static boolean generateEncryptedSubmission(FileSet fileSet, SubmissionWriter submission,
       File submissionXml, File submissionXmlEnc, EncryptedFormInformation formInfo) {
 
     // Step 1: encrypt the submission and all the media files...
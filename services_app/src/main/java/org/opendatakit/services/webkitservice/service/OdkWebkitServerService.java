@@ -28,6 +28,7 @@ import org.opendatakit.webkitserver.service.WebkitServerInterface;
 import java.io.File;
 import java.io.IOException;
 
+import fi.iki.elonen.NanoHTTPD;
 import fi.iki.elonen.SimpleWebServer;
 
 public class OdkWebkitServerService extends Service {
@@ -43,7 +44,35 @@ public class OdkWebkitServerService extends Service {
     }
   }
 
+  /**
+   * Number of connections served concurrently. A form render requests dozens
+   * of assets at once; browsers open at most about 6 connections per host.
+   */
+  private static final int MAX_WORKERS = 8;
+
+  /**
+   * Number of connections that may wait for a worker before being refused.
+   */
+  private static final int MAX_QUEUED_CONNECTIONS = 64;
+
+  /**
+   * Total size of the small, frequently requested files (form definitions,
+   * scripts, stylesheets) held in memory by the server.
+   */
+  private static final long HOT_ASSET_CACHE_MAX_BYTES = 8L * 1024L * 1024L;
+
+  /**
+   * Size of the largest file held in memory by the server.
+   */
+  private static final long HOT_ASSET_CACHE_MAX_ENTRY_BYTES = 256L * 1024L;
+
+  /**
+   * Answer gzip-accepting requests with a file's pre-compressed ".gz" sibling.
+   */
+  private static final boolean SERVE_PRECOMPRESSED_FILES = true;
+
   private SimpleWebServer server = null;
+  private NanoHTTPD.BoundedThreadPoolAsyncRunner asyncRunner = null;
   private volatile Thread webServer = null;
   private WebkitServiceInterface servInterface;
 
@@ -102,10 +131,17 @@ public class OdkWebkitServerService extends Service {
       stopServer();
       SimpleWebServer testing = new SimpleWebServer(WebkitServerConsts.HOSTNAME, WebkitServerConsts.PORT, new File(ODKFileUtils.getOdkFolder()).getAbsoluteFile(), false);
       //SimpleWebServer testing = new SimpleWebServer();
+      testing.setHotAssetCacheLimits(HOT_ASSET_CACHE_MAX_BYTES, HOT_ASSET_CACHE_MAX_ENTRY_BYTES);
+      testing.setServePrecompressedFiles(SERVE_PRECOMPRESSED_FILES);
+      NanoHTTPD.BoundedThreadPoolAsyncRunner runner =
+          new NanoHTTPD.BoundedThreadPoolAsyncRunner(MAX_WORKERS, MAX_QUEUED_CONNECTIONS);
+      testing.setAsyncRunner(runner);
       try {
         testing.start();
         server = testing;
+        asyncRunner = runner;
       } catch (IOException e) {
+        runner.shutdown();
         Log.v("Sync.Thread.WebServer", "Exception: " + e.toString());
       }
     }
@@ -118,8 +154,17 @@ public class OdkWebkitServerService extends Service {
       } catch (Exception e) {
         // ignore...
       }
+      StringBuilder b = new StringBuilder();
+      server.getHotAssetCache().dump(b);
+      Log.i(LOGTAG, "stopServer -- " + b.toString());
       server = null;
     }
+    if (asyncRunner != null) {
+      Log.i(LOGTAG, "stopServer -- served " + asyncRunner.getRequestCount() +
+          " connections, refused " + asyncRunner.getRejectedConnectionCount());
+      asyncRunner.shutdown();
+      asyncRunner = null;
+    }
   }
 
   private class WebkitServiceInterface extends WebkitServerInterface.Stub {
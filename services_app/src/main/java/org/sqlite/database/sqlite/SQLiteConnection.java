@@ -500,8 +500,9 @@ public final class SQLiteConnection extends SQLiteClosable implements Cancellati
     * Session qualifier supplied by user.
     * This can be accessed outside of locks
     * Thread safe.
+    * Changes when a pooled connection is leased to another session.
     */
-   private final String mSessionQualifier;
+   private volatile String mSessionQualifier;
 
    /**
     * The operations log.
@@ -578,6 +579,21 @@ public final class SQLiteConnection extends SQLiteClosable implements Cancellati
       return mSessionQualifier;
    }
 
+   /**
+    * Record the session that a pooled connection has been leased to,
+    * so that its operations and any leak report name that session.
+    *
+    * @param sessionQualifier
+    */
+   public void setSessionQualifier(String sessionQualifier) {
+      synchronized (mConnectionPtrMutex) {
+         mSessionQualifier = sessionQualifier;
+         if (mAllocationReference != null) {
+            mAllocationReference = mConfiguration.appName + " " + sessionQualifier;
+         }
+      }
+   }
+
    public String getPath() {
       return mConfiguration.path;
    }
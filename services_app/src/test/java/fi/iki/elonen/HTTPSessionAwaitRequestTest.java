@@ -0,0 +1,112 @@
+package fi.iki.elonen;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+public class HTTPSessionAwaitRequestTest extends TestCase {
+
+    private static final int READ_TIMEOUT = 5000;
+
+    private volatile boolean queued = false;
+
+    private final NanoHTTPD server = new NanoHTTPD(0) {
+        @Override
+        protected boolean hasQueuedConnections() {
+            return queued;
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, session.getUri());
+        }
+    };
+
+    private ServerSocket serverSocket;
+
+    private Socket client;
+
+    private Socket accepted;
+
+    @Override
+    protected void setUp() throws Exception {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        client = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        accepted = serverSocket.accept();
+        accepted.setSoTimeout(READ_TIMEOUT);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        client.close();
+        accepted.close();
+        serverSocket.close();
+    }
+
+    private NanoHTTPD.HTTPSession newSession() throws Exception {
+        return server.new HTTPSession(new NanoHTTPD.DefaultTempFileManager(), accepted.getInputStream(), new ByteArrayOutputStream());
+    }
+
+    public void testIdleConnectionIsReleasedWhenConnectionsAreQueued() throws Exception {
+        NanoHTTPD.HTTPSession session = newSession();
+        queued = true;
+
+        long start = System.currentTimeMillis();
+        assertFalse(session.awaitRequest(accepted));
+        long elapsed = System.currentTimeMillis() - start;
+
+        // well before the read timeout
+        assertTrue("waited " + elapsed + "ms", elapsed < READ_TIMEOUT / 2);
+        assertEquals(READ_TIMEOUT, accepted.getSoTimeout());
+    }
+
+    public void testIdleConnectionIsReleasedAfterReadTimeout() throws Exception {
+        NanoHTTPD.HTTPSession session = newSession();
+        accepted.setSoTimeout(3 * NanoHTTPD.IDLE_POLL_INTERVAL);
+
+        long start = System.currentTimeMillis();
+        assertFalse(session.awaitRequest(accepted));
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue("waited " + elapsed + "ms", elapsed >= 3 * NanoHTTPD.IDLE_POLL_INTERVAL - 50);
+        assertEquals(3 * NanoHTTPD.IDLE_POLL_INTERVAL, accepted.getSoTimeout());
+    }
+
+    public void testRequestArrivingAfterSeveralPollsIsServed() throws Exception {
+        final NanoHTTPD.HTTPSession session = newSession();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(3 * NanoHTTPD.IDLE_POLL_INTERVAL);
+                    OutputStream out = client.getOutputStream();
+                    out.write("GET /late HTTP/1.1\r\n\r\n".getBytes("UTF-8"));
+                    out.flush();
+                } catch (Exception e) {
+                    // the test fails on the assertions below
+                }
+            }
+        });
+        writer.start();
+
+        assertTrue(session.awaitRequest(accepted));
+        writer.join();
+        assertEquals(READ_TIMEOUT, accepted.getSoTimeout());
+
+        // the first byte was left for execute()
+        session.execute();
+        assertEquals("/late", session.getUri());
+        assertEquals(NanoHTTPD.Method.GET, session.getMethod());
+    }
+
+    public void testClosedConnectionIsReleased() throws Exception {
+        NanoHTTPD.HTTPSession session = newSession();
+        client.close();
+
+        assertFalse(session.awaitRequest(accepted));
+    }
+}
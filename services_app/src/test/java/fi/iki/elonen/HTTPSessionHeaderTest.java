@@ -0,0 +1,181 @@
+package fi.iki.elonen;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class HTTPSessionHeaderTest extends TestCase {
+
+    /**
+     * The request as seen by serve().
+     */
+    private static class Request {
+        NanoHTTPD.Method method;
+        String uri;
+        Map<String, String> headers;
+        Map<String, List<String>> parameters;
+    }
+
+    private final List<Request> requests = new ArrayList<Request>();
+
+    private final NanoHTTPD server = new NanoHTTPD(0) {
+        @Override
+        public Response serve(IHTTPSession session) {
+            Request r = new Request();
+            r.method = session.getMethod();
+            r.uri = session.getUri();
+            r.headers = session.getHeaders();
+            r.parameters = session.getParameters();
+            requests.add(r);
+            return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, "ok");
+        }
+    };
+
+    private NanoHTTPD.HTTPSession newSession(String input) throws Exception {
+        return server.new HTTPSession(new NanoHTTPD.DefaultTempFileManager(),
+                new ByteArrayInputStream(input.getBytes("UTF-8")), new ByteArrayOutputStream());
+    }
+
+    private static void assertConnectionClosed(NanoHTTPD.HTTPSession session) throws IOException {
+        try {
+            session.execute();
+            fail("expected the connection to be closed");
+        } catch (SocketException e) {
+            // expected
+        }
+    }
+
+    public void testRequestLine() throws Exception {
+        NanoHTTPD.HTTPSession session = newSession("PUT /a%20b/c?x=1&y=2&x=3 HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        session.execute();
+
+        assertEquals(1, requests.size());
+        Request r = requests.get(0);
+        assertEquals(NanoHTTPD.Method.PUT, r.method);
+        assertEquals("/a b/c", r.uri);
+        assertEquals(2, r.parameters.get("x").size());
+        assertEquals("1", r.parameters.get("x").get(0));
+        assertEquals("3", r.parameters.get("x").get(1));
+        assertEquals("2", r.parameters.get("y").get(0));
+        assertEquals("localhost", r.headers.get("host"));
+    }
+
+    public void testMissingVersionIsHttp11() throws Exception {
+        NanoHTTPD.HTTPSession session = newSession("GET /index.html\r\n\r\n");
+        // HTTP/1.1 keeps the connection open after the response
+        session.execute();
+
+        assertEquals(1, requests.size());
+        assertEquals("/index.html", requests.get(0).uri);
+    }
+
+    public void testHttp10ClosesConnection() throws Exception {
+        NanoHTTPD.HTTPSession session = newSession("GET / HTTP/1.0\r\n\r\n");
+        assertConnectionClosed(session);
+        assertEquals(1, requests.size());
+    }
+
+    public void testOddWhitespace() throws Exception {
+        NanoHTTPD.HTTPSession session = newSession(
+                "GET   /odd \t HTTP/1.1  \r\n"
+                + "Host :   localhost  \r\n"
+                + "Accept:\ttext/plain\r\n"
+                + "X-Empty:\r\n"
+                + "not a header line\r\n"
+                + "\r\n");
+        session.execute();
+
+        Request r = requests.get(0);
+        assertEquals(NanoHTTPD.Method.GET, r.method);
+        assertEquals("/odd", r.uri);
+        assertEquals("localhost", r.headers.get("host"));
+        assertEquals("text/plain", r.headers.get("accept"));
+        assertEquals("", r.headers.get("x-empty"));
+        assertEquals(3, r.headers.size());
+    }
+
+    public void testBareLineFeeds() throws Exception {
+        NanoHTTPD.HTTPSession session = newSession("GET /lf HTTP/1.1\nHost: localhost\n\n");
+        session.execute();
+
+        Request r = requests.get(0);
+        assertEquals("/lf", r.uri);
+        assertEquals("localhost", r.headers.get("host"));
+    }
+
+    public void testFoldedHeader() throws Exception {
+        NanoHTTPD.HTTPSession session = newSession(
+                "GET / HTTP/1.1\r\n"
+                + "X-Folded: one\r\n"
+                + "   two\r\n"
+                + "\tthree: 3\r\n"
+                + "Host: localhost\r\n"
+                + "\r\n");
+        session.execute();
+
+        Request r = requests.get(0);
+        assertEquals("one two three: 3", r.headers.get("x-folded"));
+        assertEquals("localhost", r.headers.get("host"));
+        assertFalse(r.headers.containsKey("three"));
+    }
+
+    public void testHeaderNamesAreLowerCased() throws Exception {
+        NanoHTTPD.HTTPSession session = newSession(
+                "GET / HTTP/1.1\r\n"
+                + "CONTENT-TYPE: text/plain\r\n"
+                + "X-ODK-Custom: Mixed Case Value\r\n"
+                + "\r\n");
+        session.execute();
+
+        Request r = requests.get(0);
+        assertEquals("text/plain", r.headers.get("content-type"));
+        assertEquals("Mixed Case Value", r.headers.get("x-odk-custom"));
+        assertFalse(r.headers.containsKey("X-ODK-Custom"));
+    }
+
+    public void testUnknownMethodIsRejected() throws Exception {
+        NanoHTTPD.HTTPSession session = newSession("BREW /pot HTTP/1.1\r\n\r\n");
+        session.execute();
+
+        // answered with BAD_REQUEST without reaching serve()
+        assertEquals(0, requests.size());
+    }
+
+    public void testPipelinedRequests() throws Exception {
+        NanoHTTPD.HTTPSession session = newSession(
+                "GET /first?a=1 HTTP/1.1\r\n"
+                + "X-Request: first\r\n"
+                + "\r\n"
+                + "DELETE /second HTTP/1.1\r\n"
+                + "X-Other: second\r\n"
+                + "Connection: close\r\n"
+                + "\r\n");
+        session.execute();
+        assertConnectionClosed(session);
+
+        assertEquals(2, requests.size());
+        Request first = requests.get(0);
+        Request second = requests.get(1);
+
+        assertEquals(NanoHTTPD.Method.GET, first.method);
+        assertEquals("/first", first.uri);
+        assertEquals("first", first.headers.get("x-request"));
+        assertEquals("1", first.parameters.get("a").get(0));
+
+        assertEquals(NanoHTTPD.Method.DELETE, second.method);
+        assertEquals("/second", second.uri);
+        assertEquals("second", second.headers.get("x-other"));
+        assertFalse(second.headers.containsKey("x-request"));
+        assertTrue(second.parameters.isEmpty());
+
+        // the first request's maps are not cleared by the second request
+        assertEquals("first", first.headers.get("x-request"));
+        assertEquals(1, first.parameters.size());
+    }
+}
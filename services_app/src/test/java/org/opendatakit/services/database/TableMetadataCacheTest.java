@@ -0,0 +1,53 @@
+package org.opendatakit.services.database;
+
+import junit.framework.TestCase;
+
+public class TableMetadataCacheTest extends TestCase {
+
+    private static final String SQL = "SELECT * FROM t1";
+
+    public void testFilterColumnCheckIsRemembered() {
+        TableMetadataCache cache = new TableMetadataCache();
+        assertNull(cache.getFilterColumnCheck(SQL));
+
+        cache.putFilterColumnCheck(SQL, true, cache.getGeneration());
+        assertEquals(Boolean.TRUE, cache.getFilterColumnCheck(SQL));
+
+        cache.putFilterColumnCheck("SELECT 1", false, cache.getGeneration());
+        assertEquals(Boolean.FALSE, cache.getFilterColumnCheck("SELECT 1"));
+    }
+
+    public void testAnyInvalidationDropsFilterColumnChecks() {
+        TableMetadataCache cache = new TableMetadataCache();
+        cache.putFilterColumnCheck(SQL, true, cache.getGeneration());
+
+        // a schema change to any table may change the columns of the statement
+        cache.invalidate("t2");
+        assertNull(cache.getFilterColumnCheck(SQL));
+
+        cache.putFilterColumnCheck(SQL, true, cache.getGeneration());
+        cache.invalidate(null);
+        assertNull(cache.getFilterColumnCheck(SQL));
+    }
+
+    public void testCheckReadBeforeInvalidationIsNotRemembered() {
+        TableMetadataCache cache = new TableMetadataCache();
+        long generation = cache.getGeneration();
+        cache.invalidate("t1");
+
+        cache.putFilterColumnCheck(SQL, true, generation);
+        assertNull(cache.getFilterColumnCheck(SQL));
+    }
+
+    public void testCheckIsNotRememberedWhileChangeIsPending() {
+        TableMetadataCache cache = new TableMetadataCache();
+        cache.beginPendingChange("t2");
+
+        cache.putFilterColumnCheck(SQL, true, cache.getGeneration());
+        assertNull(cache.getFilterColumnCheck(SQL));
+
+        cache.endPendingChange("t2");
+        cache.putFilterColumnCheck(SQL, true, cache.getGeneration());
+        assertEquals(Boolean.TRUE, cache.getFilterColumnCheck(SQL));
+    }
+}
@@ -0,0 +1,123 @@
+package org.opendatakit.services.database.service;
+
+import junit.framework.TestCase;
+
+import org.opendatakit.database.service.DbChunk;
+import org.opendatakit.database.utilities.DbChunkUtil;
+
+import java.util.List;
+
+public class ParceledChunkStoreTest extends TestCase {
+
+    private static final int CHUNK_SIZE = 100;
+    private static final long TTL = 1000L;
+
+    private long now = 5000L;
+
+    private ParceledChunkStore newStore(long maxBytes) {
+        return new ParceledChunkStore(maxBytes, TTL) {
+            @Override
+            long elapsedRealtime() {
+                return now;
+            }
+        };
+    }
+
+    private static List<DbChunk> result(int bytes) throws Exception {
+        List<DbChunk> chunks = DbChunkUtil.convertToChunks(new byte[bytes], CHUNK_SIZE);
+        assertTrue(chunks.size() > 1);
+        return chunks;
+    }
+
+    private static long sizeOf(List<DbChunk> chunks) {
+        long total = 0L;
+        for (DbChunk chunk : chunks) {
+            total += chunk.getData().length;
+        }
+        return total;
+    }
+
+    private static void assertEvicted(ParceledChunkStore store, DbChunk chunk) {
+        try {
+            store.get(chunk.getThisID());
+            fail("expected ChunkEvictedException");
+        } catch (ParceledChunkStore.ChunkEvictedException e) {
+            // expected
+        }
+    }
+
+    public void testResultLargerThanBudgetIsHeldInFull() throws Exception {
+        List<DbChunk> chunks = result(10 * CHUNK_SIZE);
+        ParceledChunkStore store = newStore(sizeOf(chunks) / 2);
+
+        store.putAll(chunks);
+
+        assertEquals(chunks.size(), store.getChunkCount());
+        assertEquals(0L, store.getEvictionCount());
+        for (DbChunk chunk : chunks) {
+            assertSame(chunk, store.remove(chunk.getThisID()));
+        }
+        assertEquals(0L, store.getTotalBytes());
+    }
+
+    public void testOlderResultIsEvictedFirst() throws Exception {
+        List<DbChunk> first = result(4 * CHUNK_SIZE);
+        List<DbChunk> second = result(4 * CHUNK_SIZE);
+        ParceledChunkStore store = newStore(sizeOf(second) + CHUNK_SIZE);
+
+        store.putAll(first);
+        store.putAll(second);
+
+        // only the eldest chunks of the first result needed to go
+        assertEvicted(store, first.get(0));
+        assertTrue(store.getEvictionCount() > 0L);
+        assertTrue(store.getEvictionCount() < first.size());
+        assertTrue(store.getTotalBytes() <= store.getMaxBytes());
+        for (DbChunk chunk : second) {
+            assertSame(chunk, store.get(chunk.getThisID()));
+        }
+    }
+
+    public void testOversizedResultIsFirstToGoOnNextPut() throws Exception {
+        List<DbChunk> large = result(10 * CHUNK_SIZE);
+        List<DbChunk> small = result(2 * CHUNK_SIZE);
+        ParceledChunkStore store = newStore(sizeOf(small));
+
+        store.putAll(large);
+        store.putAll(small);
+
+        for (DbChunk chunk : large) {
+            assertEvicted(store, chunk);
+        }
+        for (DbChunk chunk : small) {
+            assertSame(chunk, store.remove(chunk.getThisID()));
+        }
+        assertEquals(large.size(), store.getEvictedMissCount());
+    }
+
+    public void testChunksExpire() throws Exception {
+        List<DbChunk> chunks = result(3 * CHUNK_SIZE);
+        ParceledChunkStore store = newStore(1024L * 1024L);
+
+        store.putAll(chunks);
+        now += TTL - 1L;
+        assertSame(chunks.get(0), store.get(chunks.get(0).getThisID()));
+
+        now += 1L;
+        assertEvicted(store, chunks.get(1));
+        assertEquals(0, store.getChunkCount());
+        assertEquals(chunks.size(), store.getExpirationCount());
+        assertEquals(0L, store.getTotalBytes());
+    }
+
+    public void testRetrievedChunkIsGone() throws Exception {
+        List<DbChunk> chunks = result(2 * CHUNK_SIZE);
+        ParceledChunkStore store = newStore(1024L * 1024L);
+
+        store.putAll(chunks);
+        DbChunk chunk = chunks.get(0);
+        assertSame(chunk, store.remove(chunk.getThisID()));
+        assertNull(store.remove(chunk.getThisID()));
+        assertEquals(sizeOf(chunks) - chunk.getData().length, store.getTotalBytes());
+    }
+}
@@ -0,0 +1,147 @@
+package org.opendatakit.services.submissions.provider;
+
+import junit.framework.TestCase;
+
+import org.kxml2.io.KXmlSerializer;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+public class SubmissionXmlGeneratorTest extends TestCase {
+
+  private static final String OPENROSA = "http://openrosa.org/xforms";
+
+  private Document generate(List<String[]> meta, Map<String, Object> values) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    // no null values are written, so nothing is logged
+    SubmissionXmlGenerator.generateXml(new KXmlSerializer(), out, "data", "myTable", meta,
+        values, null);
+
+    String xml = new String(out.toByteArray(), "UTF-8");
+    assertFalse("no XML declaration", xml.startsWith("<?xml"));
+
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    return factory.newDocumentBuilder().parse(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  private static List<Element> childElements(Node parent) {
+    List<Element> children = new ArrayList<Element>();
+    NodeList nodes = parent.getChildNodes();
+    for (int i = 0; i < nodes.getLength(); ++i) {
+      if (nodes.item(i).getNodeType() == Node.ELEMENT_NODE) {
+        children.add((Element) nodes.item(i));
+      }
+    }
+    return children;
+  }
+
+  public void testRootElementAndIdAttribute() throws Exception {
+    Document doc = generate(new ArrayList<String[]>(), new HashMap<String, Object>());
+
+    Element root = doc.getDocumentElement();
+    assertEquals("data", root.getLocalName());
+    assertNull(root.getNamespaceURI());
+    assertEquals("myTable", root.getAttribute("id"));
+  }
+
+  public void testMetaElementsUseJrPrefix() throws Exception {
+    List<String[]> meta = new ArrayList<String[]>();
+    meta.add(new String[] { OPENROSA, "instanceID", "uuid:1234" });
+    meta.add(new String[] { OPENROSA, "timeEnd", "2016-01-01T00:00:00Z" });
+    meta.add(new String[] { null, "rowETag", "etag" });
+
+    Document doc = generate(meta, new HashMap<String, Object>());
+
+    List<Element> rootChildren = childElements(doc.getDocumentElement());
+    assertEquals(1, rootChildren.size());
+    Element metaElement = rootChildren.get(0);
+    assertEquals("meta", metaElement.getLocalName());
+    assertEquals(OPENROSA, metaElement.getNamespaceURI());
+    assertEquals("jr", metaElement.getPrefix());
+
+    List<Element> metaChildren = childElements(metaElement);
+    assertEquals(3, metaChildren.size());
+
+    assertEquals("instanceID", metaChildren.get(0).getLocalName());
+    assertEquals(OPENROSA, metaChildren.get(0).getNamespaceURI());
+    assertEquals("jr", metaChildren.get(0).getPrefix());
+    assertEquals("uuid:1234", metaChildren.get(0).getTextContent());
+
+    assertEquals("timeEnd", metaChildren.get(1).getLocalName());
+    assertEquals("jr", metaChildren.get(1).getPrefix());
+
+    // extra metadata tags are not in any namespace
+    assertEquals("rowETag", metaChildren.get(2).getLocalName());
+    assertNull(metaChildren.get(2).getNamespaceURI());
+    assertEquals("etag", metaChildren.get(2).getTextContent());
+  }
+
+  public void testNullMetaValueIsEmptyElement() throws Exception {
+    List<String[]> meta = new ArrayList<String[]>();
+    meta.add(new String[] { OPENROSA, "instanceID", "uuid:1234" });
+    meta.add(new String[] { null, "filterValue", null });
+
+    Document doc = generate(meta, new HashMap<String, Object>());
+
+    Element metaElement = childElements(doc.getDocumentElement()).get(0);
+    Element filterValue = childElements(metaElement).get(1);
+    assertEquals("filterValue", filterValue.getLocalName());
+    assertFalse(filterValue.hasChildNodes());
+  }
+
+  public void testValuesAreSortedAndNested() throws Exception {
+    Map<String, Object> values = new HashMap<String, Object>();
+    values.put("zeta", "last");
+    values.put("alpha", 3);
+    List<Object> list = new ArrayList<Object>();
+    list.add("a");
+    list.add(2);
+    list.add(true);
+    values.put("choices", list);
+    Map<String, Object> group = new HashMap<String, Object>();
+    group.put("inner", 1.5);
+    group.put("empty", "");
+    values.put("group", group);
+
+    Document doc = generate(new ArrayList<String[]>(), values);
+
+    List<Element> children = childElements(doc.getDocumentElement());
+    // meta, then the values in name order
+    assertEquals(5, children.size());
+    assertEquals("alpha", children.get(1).getLocalName());
+    assertEquals("3", children.get(1).getTextContent());
+    assertEquals("choices", children.get(2).getLocalName());
+    assertEquals("a 2 true", children.get(2).getTextContent());
+    assertEquals("group", children.get(3).getLocalName());
+    assertEquals("zeta", children.get(4).getLocalName());
+    assertEquals("last", children.get(4).getTextContent());
+
+    List<Element> groupChildren = childElements(children.get(3));
+    assertEquals(2, groupChildren.size());
+    assertEquals("empty", groupChildren.get(0).getLocalName());
+    assertFalse(groupChildren.get(0).hasChildNodes());
+    assertEquals("inner", groupChildren.get(1).getLocalName());
+    assertEquals("1.5", groupChildren.get(1).getTextContent());
+  }
+
+  public void testTextIsEscaped() throws Exception {
+    Map<String, Object> values = new HashMap<String, Object>();
+    values.put("note", "a < b & c > \"d\"");
+
+    Document doc = generate(new ArrayList<String[]>(), values);
+
+    Element note = childElements(doc.getDocumentElement()).get(1);
+    assertEquals("a < b & c > \"d\"", note.getTextContent());
+  }
+}
@@ -0,0 +1,153 @@
+package org.opendatakit.services.sync.service.logic;
+
+import junit.framework.TestCase;
+
+import org.opendatakit.services.sync.service.exceptions.InternalServerFailureException;
+import org.opendatakit.services.sync.service.exceptions.NetworkTransmissionException;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+public class SyncBatchSizerTest extends TestCase {
+
+    private static final String APP_NAME = "default";
+    private static final String TABLE_ID = "t1";
+
+    private static class MemoryStore implements SyncBatchSizer.Store {
+        private final Map<String, Map<String, Integer>> saved =
+            new HashMap<String, Map<String, Integer>>();
+        int saveCount = 0;
+
+        @Override
+        public Map<String, Map<String, Integer>> load() {
+            Map<String, Map<String, Integer>> copy = new HashMap<String, Map<String, Integer>>();
+            for (Map.Entry<String, Map<String, Integer>> e : saved.entrySet()) {
+                copy.put(e.getKey(), new HashMap<String, Integer>(e.getValue()));
+            }
+            return copy;
+        }
+
+        @Override
+        public void save(Map<String, Map<String, Integer>> sizes) {
+            ++saveCount;
+            for (Map.Entry<String, Map<String, Integer>> e : sizes.entrySet()) {
+                saved.put(e.getKey(), new HashMap<String, Integer>(e.getValue()));
+            }
+        }
+    }
+
+    private MemoryStore store;
+    private SyncBatchSizer sizer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        store = new MemoryStore();
+        sizer = new SyncBatchSizer(APP_NAME, store);
+    }
+
+    public void testDefaultIsClamped() {
+        assertEquals(100, sizer.getFetchLimit(TABLE_ID, 100));
+        assertEquals(SyncBatchSizer.MIN_BATCH_SIZE, sizer.getFetchLimit(TABLE_ID, 5));
+        assertEquals(SyncBatchSizer.MAX_FETCH_LIMIT, sizer.getFetchLimit(TABLE_ID, 5000));
+        assertEquals(SyncBatchSizer.MAX_PUSH_BATCH_SIZE, sizer.getPushBatchSize(TABLE_ID, 5000));
+    }
+
+    public void testFastFullRequestsGrow() {
+        sizer.recordFetch(TABLE_ID, 100, 100, 100L);
+        assertEquals(150, sizer.getFetchLimit(TABLE_ID, 100));
+        sizer.recordFetch(TABLE_ID, 150, 150, 100L);
+        assertEquals(225, sizer.getFetchLimit(TABLE_ID, 100));
+
+        sizer.recordPush(TABLE_ID, 200, 100L);
+        assertEquals(300, sizer.getPushBatchSize(TABLE_ID, 200));
+
+        // other tables are unaffected
+        assertEquals(100, sizer.getFetchLimit("t2", 100));
+    }
+
+    public void testPartialPageDoesNotGrow() {
+        sizer.recordFetch(TABLE_ID, 100, 40, 100L);
+        assertEquals(100, sizer.getFetchLimit(TABLE_ID, 500));
+    }
+
+    public void testGrowthIsClamped() {
+        sizer.recordFetch(TABLE_ID, 1900, 1900, 100L);
+        assertEquals(SyncBatchSizer.MAX_FETCH_LIMIT, sizer.getFetchLimit(TABLE_ID, 100));
+
+        sizer.recordPush(TABLE_ID, 900, 100L);
+        assertEquals(SyncBatchSizer.MAX_PUSH_BATCH_SIZE, sizer.getPushBatchSize(TABLE_ID, 100));
+    }
+
+    public void testSlowRequestShrinksToTargetDuration() {
+        sizer.recordFetch(TABLE_ID, 1000, 1000, 2L * SyncBatchSizer.TARGET_REQUEST_MILLIS);
+        assertEquals(500, sizer.getFetchLimit(TABLE_ID, 1000));
+
+        sizer.recordPush(TABLE_ID, 400, 4L * SyncBatchSizer.TARGET_REQUEST_MILLIS);
+        assertEquals(100, sizer.getPushBatchSize(TABLE_ID, 400));
+    }
+
+    public void testShrinkIsClamped() {
+        sizer.recordPush(TABLE_ID, 100, 100L * SyncBatchSizer.TARGET_REQUEST_MILLIS);
+        assertEquals(SyncBatchSizer.MIN_BATCH_SIZE, sizer.getPushBatchSize(TABLE_ID, 100));
+    }
+
+    public void testTransientFailuresHalve() {
+        sizer.recordFetchFailure(TABLE_ID, 400,
+            new NetworkTransmissionException("timeout", null, null, null));
+        assertEquals(200, sizer.getFetchLimit(TABLE_ID, 400));
+
+        sizer.recordFetchFailure(TABLE_ID, 200, new IOException("reset"));
+        assertEquals(100, sizer.getFetchLimit(TABLE_ID, 400));
+
+        sizer.recordPushFailure(TABLE_ID, 400,
+            new InternalServerFailureException("500", null, null));
+        assertEquals(200, sizer.getPushBatchSize(TABLE_ID, 400));
+
+        // halving does not go below the minimum
+        sizer.recordFetchFailure(TABLE_ID, 30, new IOException("reset"));
+        assertEquals(SyncBatchSizer.MIN_BATCH_SIZE, sizer.getFetchLimit(TABLE_ID, 400));
+    }
+
+    public void testOtherFailuresDoNotChangeSizes() {
+        sizer.recordFetchFailure(TABLE_ID, 400, new IllegalStateException("bad data"));
+        assertEquals(300, sizer.getFetchLimit(TABLE_ID, 300));
+
+        sizer.recordPushFailure(TABLE_ID, 400, new IllegalArgumentException("bad row"));
+        assertEquals(300, sizer.getPushBatchSize(TABLE_ID, 300));
+    }
+
+    public void testLearnedSizesAreSavedAndReloaded() {
+        sizer.save();
+        assertEquals(0, store.saveCount);
+
+        sizer.recordFetch(TABLE_ID, 100, 100, 100L);
+        sizer.save();
+        assertEquals(1, store.saveCount);
+        // unchanged sizes are not saved again
+        sizer.save();
+        assertEquals(1, store.saveCount);
+
+        SyncBatchSizer next = new SyncBatchSizer(APP_NAME, store);
+        assertEquals(150, next.getFetchLimit(TABLE_ID, 100));
+    }
+
+    public void testUnavailableStoreUsesDefaults() {
+        SyncBatchSizer unsaved = new SyncBatchSizer(APP_NAME, new SyncBatchSizer.Store() {
+            @Override
+            public Map<String, Map<String, Integer>> load() {
+                throw new IllegalStateException("database unavailable");
+            }
+
+            @Override
+            public void save(Map<String, Map<String, Integer>> sizes) {
+                throw new IllegalStateException("database unavailable");
+            }
+        });
+        assertEquals(100, unsaved.getFetchLimit(TABLE_ID, 100));
+        unsaved.recordFetch(TABLE_ID, 100, 100, 100L);
+        unsaved.save();
+        assertEquals(150, unsaved.getFetchLimit(TABLE_ID, 100));
+    }
+}
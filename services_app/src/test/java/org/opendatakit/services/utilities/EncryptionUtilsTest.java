@@ -0,0 +1,119 @@
+package org.opendatakit.services.utilities;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public class EncryptionUtilsTest extends TestCase {
+
+    // spans several of the stream buffers
+    private static final int PLAINTEXT_SIZE = 3 * 8192 + 17;
+
+    private byte[] plaintext;
+    private SecretKeySpec key;
+    private IvParameterSpec iv;
+    private File encryptedFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Random random = new Random(42L);
+        plaintext = new byte[PLAINTEXT_SIZE];
+        random.nextBytes(plaintext);
+        byte[] keyBytes = new byte[16];
+        random.nextBytes(keyBytes);
+        key = new SecretKeySpec(keyBytes, "AES");
+        byte[] ivBytes = new byte[16];
+        random.nextBytes(ivBytes);
+        iv = new IvParameterSpec(ivBytes);
+        encryptedFile = File.createTempFile("submission", ".xml.enc");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        encryptedFile.delete();
+        super.tearDown();
+    }
+
+    private Cipher getCipher(int mode) throws Exception {
+        Cipher c = Cipher.getInstance(EncryptionUtils.SYMMETRIC_ALGORITHM);
+        c.init(mode, key, iv);
+        return c;
+    }
+
+    public void testDigestIsOfPlaintext() throws Exception {
+        // written in odd-sized pieces, as the XML serializer does
+        EncryptionUtils.SubmissionWriter writer = new EncryptionUtils.SubmissionWriter() {
+            @Override
+            public void writeSubmission(OutputStream out) throws IOException {
+                int offset = 0;
+                int len = 1;
+                while (offset < plaintext.length) {
+                    int n = Math.min(len, plaintext.length - offset);
+                    out.write(plaintext, offset, n);
+                    offset += n;
+                    len = (len * 7) % 5003 + 1;
+                }
+            }
+        };
+
+        byte[] digest = EncryptionUtils.encryptAndDigest(writer,
+            getCipher(Cipher.ENCRYPT_MODE), encryptedFile);
+
+        byte[] expected = MessageDigest.getInstance("MD5").digest(plaintext);
+        assertTrue(Arrays.equals(expected, digest));
+    }
+
+    public void testEncryptedFileDecryptsToPlaintext() throws Exception {
+        EncryptionUtils.SubmissionWriter writer = new EncryptionUtils.SubmissionWriter() {
+            @Override
+            public void writeSubmission(OutputStream out) throws IOException {
+                out.write(plaintext);
+            }
+        };
+
+        EncryptionUtils.encryptAndDigest(writer, getCipher(Cipher.ENCRYPT_MODE), encryptedFile);
+
+        assertFalse(encryptedFile.length() == 0);
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        InputStream in = new CipherInputStream(new FileInputStream(encryptedFile),
+            getCipher(Cipher.DECRYPT_MODE));
+        try {
+            byte[] buffer = new byte[4096];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                decrypted.write(buffer, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        assertTrue(Arrays.equals(plaintext, decrypted.toByteArray()));
+    }
+
+    public void testEmptySubmission() throws Exception {
+        EncryptionUtils.SubmissionWriter writer = new EncryptionUtils.SubmissionWriter() {
+            @Override
+            public void writeSubmission(OutputStream out) throws IOException {
+            }
+        };
+
+        byte[] digest = EncryptionUtils.encryptAndDigest(writer,
+            getCipher(Cipher.ENCRYPT_MODE), encryptedFile);
+
+        byte[] expected = MessageDigest.getInstance("MD5").digest(new byte[0]);
+        assertTrue(Arrays.equals(expected, digest));
+    }
+}